@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+
+import org.sufficientlysecure.keychain.util.ParcelableFileCache;
+
+/**
+ * A file cache of key rings, which writes them in a plain binary encoding instead of going
+ * through a Parcel for each of them.
+ */
+public class KeyRingFileCache extends ParcelableFileCache<ParcelableKeyRing> {
+
+    private static final int HAS_BYTES = 1;
+    private static final int HAS_EXPECTED_FINGERPRINT = 1 << 1;
+    private static final int HAS_KEY_ID_HEX = 1 << 2;
+    private static final int HAS_KEYBASE_NAME = 1 << 3;
+
+    public KeyRingFileCache(Context context, String filename) {
+        super(context, filename);
+    }
+
+    @Override
+    protected void writeEntry(DataOutputStream out, ParcelableKeyRing entry) throws IOException {
+        int flags = (entry.mBytes != null ? HAS_BYTES : 0)
+                | (entry.mExpectedFingerprint != null ? HAS_EXPECTED_FINGERPRINT : 0)
+                | (entry.mKeyIdHex != null ? HAS_KEY_ID_HEX : 0)
+                | (entry.mKeybaseName != null ? HAS_KEYBASE_NAME : 0);
+        out.writeByte(flags);
+
+        if (entry.mBytes != null) {
+            out.writeInt(entry.mBytes.length);
+            out.write(entry.mBytes);
+        }
+        if (entry.mExpectedFingerprint != null) {
+            out.writeUTF(entry.mExpectedFingerprint);
+        }
+        if (entry.mKeyIdHex != null) {
+            out.writeUTF(entry.mKeyIdHex);
+        }
+        if (entry.mKeybaseName != null) {
+            out.writeUTF(entry.mKeybaseName);
+        }
+    }
+
+    @Override
+    protected ParcelableKeyRing readEntry(byte[] data, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        int flags = in.readUnsignedByte();
+
+        byte[] bytes = null;
+        if ((flags & HAS_BYTES) != 0) {
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+        }
+        String expectedFingerprint = (flags & HAS_EXPECTED_FINGERPRINT) != 0 ? in.readUTF() : null;
+        String keyIdHex = (flags & HAS_KEY_ID_HEX) != 0 ? in.readUTF() : null;
+        String keybaseName = (flags & HAS_KEYBASE_NAME) != 0 ? in.readUTF() : null;
+
+        return new ParcelableKeyRing(bytes, expectedFingerprint, keyIdHex, keybaseName);
+    }
+
+}
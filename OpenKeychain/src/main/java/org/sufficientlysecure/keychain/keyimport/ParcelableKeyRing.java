@@ -52,6 +52,14 @@ public class ParcelableKeyRing implements Parcelable {
         mKeybaseName = keybaseName;
     }
 
+    ParcelableKeyRing(byte[] bytes, String expectedFingerprint, String keyIdHex,
+                      String keybaseName) {
+        mBytes = bytes;
+        mExpectedFingerprint = expectedFingerprint;
+        mKeyIdHex = keyIdHex;
+        mKeybaseName = keybaseName;
+    }
+
     private ParcelableKeyRing(Parcel source) {
         mBytes = source.createByteArray();
 
@@ -33,6 +33,8 @@ import org.sufficientlysecure.keychain.service.DeleteKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 
+import java.util.ArrayList;
+
 /** An operation which implements a high level keyring delete operation.
  *
  * This operation takes a list of masterKeyIds as input, deleting all
@@ -76,6 +78,7 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
 
         boolean cancelled = false;
         int success = 0, fail = 0;
+        ArrayList<Long> deletedMasterKeyIds = new ArrayList<>();
         for (long masterKeyId : masterKeyIds) {
             if (checkCancelled()) {
                 cancelled = true;
@@ -85,7 +88,10 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
                     KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null
             );
             if (count > 0) {
+                // deleting the public keyring also deletes the secret one on cascade
+                ProviderHelper.invalidateTrustedMasterKeys(masterKeyId);
                 log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+                deletedMasterKeyIds.add(masterKeyId);
                 success += 1;
             } else {
                 log.add(LogType.MSG_DEL_KEY_FAIL, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
@@ -95,7 +101,8 @@ public class DeleteOperation extends BaseOperation<DeleteKeyringParcel> {
 
         if (isSecret && success > 0) {
             log.add(LogType.MSG_DEL_CONSOLIDATE, 1);
-            ConsolidateResult sub = mProviderHelper.consolidateDatabaseStep1(mProgressable);
+            ConsolidateResult sub = mProviderHelper.consolidateDatabaseIncremental(
+                    deletedMasterKeyIds, mProgressable);
             log.add(sub, 2);
         }
 
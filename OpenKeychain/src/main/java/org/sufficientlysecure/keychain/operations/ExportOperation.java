@@ -26,7 +26,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Proxy;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
@@ -48,6 +54,7 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -196,7 +203,33 @@ public class ExportOperation extends BaseOperation<ExportKeyringParcel> {
 
     }
 
-    ExportResult exportKeyRings(OperationLog log, long[] masterKeyIds, boolean exportSecret,
+    /** Maximum number of keyrings per cpu core which are canonicalized ahead of the output. */
+    private static final int EXPORT_AHEAD_PER_CORE = 2;
+
+    /** A single keyring on its way to the output, as prepared by one of the export threads. */
+    private static class ExportItem {
+        final long mMasterKeyId;
+        final boolean mHasSecret;
+        final OperationLog mPublicLog = new OperationLog();
+        final OperationLog mSecretLog = new OperationLog();
+        CanonicalizedKeyRing mPublicRing;
+        CanonicalizedKeyRing mSecretRing;
+
+        ExportItem(long masterKeyId, boolean hasSecret) {
+            mMasterKeyId = masterKeyId;
+            mHasSecret = hasSecret;
+        }
+    }
+
+    /**
+     * Exports keyrings as a sequence of armored blocks, in order of their master key ids.
+     * <p/>
+     * Only the list of master key ids is queried up front. The keyring data is loaded from the
+     * keyrings tables one keyring at a time, then decoded and canonicalized on one thread per
+     * cpu core, while the calling thread writes the results in their original order. At most
+     * EXPORT_AHEAD_PER_CORE keyrings per core are held in memory, no matter how many there are.
+     */
+    ExportResult exportKeyRings(OperationLog log, long[] masterKeyIds, final boolean exportSecret,
                                 OutputStream outStream) {
 
         /* TODO isn't this checked above, with the isStorageMounted call?
@@ -212,103 +245,118 @@ public class ExportOperation extends BaseOperation<ExportKeyringParcel> {
 
         int okSecret = 0, okPublic = 0, progress = 0;
 
-        Cursor cursor = null;
+        int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(numCores);
+        ArrayDeque<Future<ExportItem>> pending = new ArrayDeque<>();
+
         try {
 
-            String selection = null, selectionArgs[] = null;
+            long[] ids;
+            boolean[] hasSecret;
+            {
+                String selection = null, selectionArgs[] = null;
+
+                if (masterKeyIds != null) {
+                    // convert long[] to String[]
+                    selectionArgs = new String[masterKeyIds.length];
+                    for (int i = 0; i < masterKeyIds.length; i++) {
+                        selectionArgs[i] = Long.toString(masterKeyIds[i]);
+                    }
+
+                    // generates ?,?,? as placeholders for selectionArgs
+                    String placeholders = TextUtils.join(",",
+                            Collections.nCopies(masterKeyIds.length, "?"));
 
-            if (masterKeyIds != null) {
-                // convert long[] to String[]
-                selectionArgs = new String[masterKeyIds.length];
-                for (int i = 0; i < masterKeyIds.length; i++) {
-                    selectionArgs[i] = Long.toString(masterKeyIds[i]);
+                    // put together selection string
+                    selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                            + " IN (" + placeholders + ")";
                 }
 
-                // generates ?,?,? as placeholders for selectionArgs
-                String placeholders = TextUtils.join(",",
-                        Collections.nCopies(masterKeyIds.length, "?"));
+                // no blobs in here, those are loaded one by one below
+                Cursor cursor = mProviderHelper.getContentResolver().query(
+                        KeyRings.buildUnifiedKeyRingsUri(), new String[]{
+                                KeyRings.MASTER_KEY_ID, KeyRings.HAS_ANY_SECRET
+                        }, selection, selectionArgs, Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                );
 
-                // put together selection string
-                selection = Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
-                        + " IN (" + placeholders + ")";
+                if (cursor == null) {
+                    log.add(LogType.MSG_EXPORT_ERROR_DB, 1);
+                    return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
+                }
+                try {
+                    ids = new long[cursor.getCount()];
+                    hasSecret = new boolean[cursor.getCount()];
+                    for (int i = 0; cursor.moveToNext(); i++) {
+                        ids[i] = cursor.getLong(0);
+                        hasSecret[i] = cursor.getInt(1) > 0;
+                    }
+                } finally {
+                    cursor.close();
+                }
             }
 
-            cursor = mProviderHelper.getContentResolver().query(
-                    KeyRings.buildUnifiedKeyRingsUri(), new String[]{
-                            KeyRings.MASTER_KEY_ID, KeyRings.PUBKEY_DATA,
-                            KeyRings.PRIVKEY_DATA, KeyRings.HAS_ANY_SECRET
-                    }, selection, selectionArgs, Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
-            );
-
-            if (cursor == null || !cursor.moveToFirst()) {
+            if (ids.length == 0) {
                 log.add(LogType.MSG_EXPORT_ERROR_DB, 1);
                 return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
             }
 
-            int numKeys = cursor.getCount();
+            int numKeys = ids.length;
 
             updateProgress(
                     mContext.getResources().getQuantityString(R.plurals.progress_exporting_key,
                             numKeys), 0, numKeys);
 
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
-
-                long keyId = cursor.getLong(0);
-                ArmoredOutputStream arOutStream = null;
-
-                // Create an output stream
-                try {
-                    arOutStream = new ArmoredOutputStream(outStream);
-
-                    log.add(LogType.MSG_EXPORT_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+            int submitted = 0;
+            while (progress < numKeys) {
+
+                // keep the export threads busy, but never run further ahead than this
+                while (submitted < numKeys && pending.size() < numCores * EXPORT_AHEAD_PER_CORE) {
+                    final ExportItem item = new ExportItem(ids[submitted],
+                            exportSecret && hasSecret[submitted]);
+                    submitted += 1;
+                    pending.add(executor.submit(new Callable<ExportItem>() {
+                        @Override
+                        public ExportItem call() {
+                            item.mPublicRing = loadForExport(
+                                    KeyRingData.buildPublicKeyRingUri(item.mMasterKeyId),
+                                    item.mPublicLog);
+                            if (item.mPublicRing != null && item.mHasSecret) {
+                                item.mSecretRing = loadForExport(
+                                        KeyRingData.buildSecretKeyRingUri(item.mMasterKeyId),
+                                        item.mSecretLog);
+                            }
+                            return item;
+                        }
+                    }));
+                }
 
-                    byte[] data = cursor.getBlob(1);
-                    CanonicalizedKeyRing ring =
-                            UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-                    ring.encode(arOutStream);
+                ExportItem item = pending.poll().get();
+                String keyIdStr = KeyFormattingUtils.beautifyKeyId(item.mMasterKeyId);
 
-                    okPublic += 1;
-                } catch (PgpGeneralException e) {
+                log.add(LogType.MSG_EXPORT_PUBLIC, 1, keyIdStr);
+                log.addAll(item.mPublicLog.toList());
+                if (item.mPublicRing == null) {
                     log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
                     updateProgress(progress++, numKeys);
                     continue;
-                } finally {
-                    // make sure this is closed
-                    if (arOutStream != null) {
-                        arOutStream.close();
-                    }
-                    arOutStream = null;
                 }
-
-                if (exportSecret && cursor.getInt(3) > 0) {
-                    try {
-                        arOutStream = new ArmoredOutputStream(outStream);
-
-                        // export secret key part
-                        log.add(LogType.MSG_EXPORT_SECRET, 2, KeyFormattingUtils.beautifyKeyId
-                                (keyId));
-                        byte[] data = cursor.getBlob(2);
-                        CanonicalizedKeyRing ring =
-                                UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-                        ring.encode(arOutStream);
-
-                        okSecret += 1;
-                    } catch (PgpGeneralException e) {
+                writeArmored(item.mPublicRing, outStream);
+                okPublic += 1;
+
+                if (item.mHasSecret) {
+                    // export secret key part
+                    log.add(LogType.MSG_EXPORT_SECRET, 2, keyIdStr);
+                    log.addAll(item.mSecretLog.toList());
+                    if (item.mSecretRing == null) {
                         log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
                         updateProgress(progress++, numKeys);
                         continue;
-                    } finally {
-                        // make sure this is closed
-                        if (arOutStream != null) {
-                            arOutStream.close();
-                        }
                     }
+                    writeArmored(item.mSecretRing, outStream);
+                    okSecret += 1;
                 }
 
                 updateProgress(progress++, numKeys);
-
-                cursor.moveToNext();
             }
 
             updateProgress(R.string.progress_done, numKeys, numKeys);
@@ -316,16 +364,18 @@ public class ExportOperation extends BaseOperation<ExportKeyringParcel> {
         } catch (IOException e) {
             log.add(LogType.MSG_EXPORT_ERROR_IO, 1);
             return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "error preparing keyrings for export", e);
+            log.add(LogType.MSG_EXPORT_ERROR_KEY, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
         } finally {
+            executor.shutdownNow();
             // Make sure the stream is closed
             if (outStream != null) try {
                 outStream.close();
             } catch (Exception e) {
                 Log.e(Constants.TAG, "error closing stream", e);
             }
-            if (cursor != null) {
-                cursor.close();
-            }
         }
 
 
@@ -334,6 +384,34 @@ public class ExportOperation extends BaseOperation<ExportKeyringParcel> {
 
     }
 
+    /**
+     * Loads the keyring data at the given uri and canonicalizes it for export. This is safe to
+     * call from multiple threads, as long as each uses its own log.
+     *
+     * @return the canonicalized keyring, or null if it is gone or could not be canonicalized
+     */
+    private CanonicalizedKeyRing loadForExport(Uri uri, OperationLog log) {
+        try {
+            byte[] data = (byte[]) mProviderHelper.getGenericData(
+                    uri, KeyRingData.KEY_RING_DATA, ProviderHelper.FIELD_TYPE_BLOB);
+            return UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
+        } catch (ProviderHelper.NotFoundException | PgpGeneralException | IOException e) {
+            Log.e(Constants.TAG, "error loading keyring for export", e);
+            return null;
+        }
+    }
+
+    private static void writeArmored(CanonicalizedKeyRing ring, OutputStream outStream)
+            throws IOException {
+        ArmoredOutputStream arOutStream = new ArmoredOutputStream(outStream);
+        try {
+            ring.encode(arOutStream);
+        } finally {
+            // make sure this is closed
+            arOutStream.close();
+        }
+    }
+
     @NonNull
     public ExportResult execute(ExportKeyringParcel exportInput, CryptoInputParcel cryptoInput) {
         switch (exportInput.mExportType) {
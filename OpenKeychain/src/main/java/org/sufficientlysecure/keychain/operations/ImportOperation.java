@@ -21,20 +21,20 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.io.IOException;
 import java.net.Proxy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -42,6 +42,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
@@ -49,6 +50,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -169,6 +171,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
         int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
         ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
 
         boolean cancelled = false;
         int position = 0;
@@ -189,103 +192,24 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
 
             try {
 
-                UncachedKeyRing key = null;
-
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
-                }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is
-                    // smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (keyServerUri != null
+                // Make sure we have the keyserver instances cached, if we need them
+                if (entry.mBytes == null) {
+                    if (keyServer == null && keyServerUri != null
                             && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
-                            keyServer = new HkpKeyserver(keyServerUri);
-                        }
-
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
-                                        entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy)
-                                        .getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
-                            }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
-                        }
+                        log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
+                        keyServer = new HkpKeyserver(keyServerUri);
                     }
-
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver();
-                        }
-
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
-
-                            // If there already is a key, merge the two
-                            if (key != null && keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                keybaseKey = key.merge(keybaseKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (keybaseKey != null) {
-                                    key = keybaseKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (keybaseKey != null) {
-                                key = keybaseKey;
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
-                        }
+                    if (keybaseServer == null && entry.mKeybaseName != null) {
+                        keybaseServer = new KeybaseKeyserver();
                     }
                 }
 
+                UncachedKeyRing key = fetchKeyRing(entry, keyServer, keybaseServer, proxy, log);
                 if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
                     badKeys += 1;
                     continue;
                 }
 
-                // If we have an expected fingerprint, make sure it matches
-                if (entry.mExpectedFingerprint != null) {
-                    if (!key.containsSubkey(entry.mExpectedFingerprint)) {
-                        log.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
-                        badKeys += 1;
-                        continue;
-                    } else {
-                        log.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
-                    }
-                }
-
                 // Another check if we have been cancelled
                 if (checkCancelled()) {
                     cancelled = true;
@@ -312,6 +236,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                     newKeys += 1;
                     if (key.isSecret()) {
                         secret += 1;
+                        secretMasterKeyIds.add(key.getMasterKeyId());
                     }
                     importedMasterKeyIds.add(key.getMasterKeyId());
                 }
@@ -326,10 +251,11 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             position++;
         }
 
-        // Special: consolidate on secret key import (cannot be cancelled!)
+        // Special: verify certifications by new secret keys (cannot be cancelled!)
         if (secret > 0) {
             setPreventCancel();
-            ConsolidateResult result = mProviderHelper.consolidateDatabaseStep1(progressable);
+            ConsolidateResult result = mProviderHelper.consolidateDatabaseIncremental(
+                    secretMasterKeyIds, progressable);
             log.add(result, 1);
         }
 
@@ -384,6 +310,106 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
                 importedMasterKeyIdsArray);
     }
 
+    /**
+     * Obtains the keyring of an entry, either from its byte data or by fetching it from the
+     * keyserver and/or keybase.io, and checks it against the expected fingerprint if there is
+     * one. This method is safe to call from multiple threads, as long as each uses its own log.
+     *
+     * @param keyServer keyserver to fetch from, or null to skip the keyserver
+     * @param keybaseServer keybase server to fetch from, or null to skip keybase.io
+     * @return the keyring, or null if none could be obtained. the reason is logged in this case.
+     */
+    private static UncachedKeyRing fetchKeyRing(ParcelableKeyRing entry, HkpKeyserver keyServer,
+            KeybaseKeyserver keybaseServer, Proxy proxy, OperationLog log)
+            throws IOException, PgpGeneralException {
+
+        UncachedKeyRing key = null;
+
+        // If there is already byte data, use that
+        if (entry.mBytes != null) {
+            key = UncachedKeyRing.decodeFromData(entry.mBytes);
+        }
+        // Otherwise, we need to fetch the data from a server first
+        else {
+
+            // We fetch from keyservers first, because we tend to get more certificates
+            // from there, so the number of certificates which are merged in later is
+            // smaller.
+
+            // If we have a keyserver and a fingerprint or at least a keyId,
+            // download from HKP
+            if (keyServer != null
+                    && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                try {
+                    byte[] data;
+                    // Download by fingerprint, or keyId - whichever is available
+                    if (entry.mExpectedFingerprint != null) {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
+                                entry.mExpectedFingerprint.substring(24));
+                        data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy)
+                                .getBytes();
+                    } else {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                        data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
+                    }
+                    key = UncachedKeyRing.decodeFromData(data);
+                    if (key != null) {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                    } else {
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                    }
+                } catch (Keyserver.QueryFailedException e) {
+                    Log.e(Constants.TAG, "query failed", e);
+                    log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
+                }
+            }
+
+            // If we have a keybase name, try to fetch from there
+            if (keybaseServer != null && entry.mKeybaseName != null) {
+                try {
+                    log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+                    byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
+                    UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
+
+                    // If there already is a key, merge the two
+                    if (key != null && keybaseKey != null) {
+                        log.add(LogType.MSG_IMPORT_MERGE, 3);
+                        keybaseKey = key.merge(keybaseKey, log, 4);
+                        // If the merge didn't fail, use the new merged key
+                        if (keybaseKey != null) {
+                            key = keybaseKey;
+                        } else {
+                            log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                        }
+                    } else if (keybaseKey != null) {
+                        key = keybaseKey;
+                    }
+                } catch (Keyserver.QueryFailedException e) {
+                    // download failed, too bad. just proceed
+                    Log.e(Constants.TAG, "query failed", e);
+                    log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_ERROR, 3, e.getMessage());
+                }
+            }
+        }
+
+        if (key == null) {
+            log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+            return null;
+        }
+
+        // If we have an expected fingerprint, make sure it matches
+        if (entry.mExpectedFingerprint != null) {
+            if (!key.containsSubkey(entry.mExpectedFingerprint)) {
+                log.add(LogType.MSG_IMPORT_FINGERPRINT_ERROR, 2);
+                return null;
+            } else {
+                log.add(LogType.MSG_IMPORT_FINGERPRINT_OK, 2);
+            }
+        }
+
+        return key;
+    }
+
     @NonNull
     @Override
     public OperationResult execute(ImportKeyringParcel importInput, CryptoInputParcel cryptoInput) {
@@ -393,7 +419,7 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         ImportKeyResult result;
 
         if (keyList == null) {// import from file, do serially
-            ParcelableFileCache<ParcelableKeyRing> cache = new ParcelableFileCache<>(mContext,
+            ParcelableFileCache<ParcelableKeyRing> cache = new KeyRingFileCache(mContext,
                     "key_import.pcl");
 
             result = serialKeyRingImport(cache, null, null);
@@ -420,8 +446,8 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
             }
             if (keyFingerprintSet.size() == keyList.size()) {
                 // all keys have unique fingerprints
-                result = multiThreadedKeyImport(keyList.iterator(), keyList.size(), keyServer,
-                        proxy);
+                result = pipelinedKeyImport(
+                        keyList.iterator(), keyList.size(), keyServer, proxy, false, true);
             } else {
                 result = serialKeyRingImport(keyList, keyServer, proxy);
             }
@@ -431,161 +457,382 @@ public class ImportOperation extends BaseOperation<ImportKeyringParcel> {
         return result;
     }
 
+    /** Number of keyrings which are fetched from keyservers concurrently. */
+    private static final int PIPELINE_FETCH_THREADS = 4;
+    /** Maximum number of keyrings in flight in the pipeline, this bounds its memory use. */
+    private static final int PIPELINE_CAPACITY = 32;
+    /** Maximum number of keyrings which are saved in a single database transaction. */
+    private static final int PIPELINE_WRITE_BATCH = 25;
+
+    /** A single keyring on its way through the import pipeline. */
+    private static class PipelineItem {
+        final ParcelableKeyRing mEntry;
+        final OperationLog mLog = new OperationLog();
+        UncachedKeyRing mKeyRing;
+        CanonicalizedPublicKeyRing mCanonicalized;
+        boolean mCancelled;
+        // only used by the saving thread, true once the keyring has left the write queue
+        boolean mArrived;
+        SaveKeyringResult mResult;
+        long mMasterKeyId;
+        boolean mSecret;
+
+        PipelineItem(ParcelableKeyRing entry) {
+            mEntry = entry;
+        }
+    }
+
+    /**
+     * Imports keyrings which are available as bytes, decoding and canonicalizing them on all
+     * cpu cores while they are saved in the order they come from the iterator. This is meant
+     * for the re-import during consolidation, which cannot be cancelled. Certifications by
+     * imported secret keys are not verified here, consolidation takes care of that itself.
+     * <p/>
+     * Like serialKeyRingImport, we expect calling functions to handle the contact sync.
+     */
     @NonNull
-    private ImportKeyResult multiThreadedKeyImport(Iterator<ParcelableKeyRing> keyListIterator,
-                                                   int totKeys, final String keyServer,
-                                                   final Proxy proxy) {
-        Log.d(Constants.TAG, "Multi-threaded key import starting");
-        if (keyListIterator != null) {
-            KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
+    public ImportKeyResult parallelKeyRingImport(Iterator<ParcelableKeyRing> entries, int num) {
+        return pipelinedKeyImport(entries, num, null, null, true, false);
+    }
 
-            final ProgressScaler ignoreProgressable = new ProgressScaler();
+    /**
+     * Imports keyrings in a staged pipeline: keyrings are fetched with bounded concurrency,
+     * then decoded and canonicalized on one thread per cpu core, and finally saved by the
+     * calling thread alone, which commits public keyrings in batches of one transaction each.
+     * <p/>
+     * There are never more than PIPELINE_CAPACITY keyrings in flight, new entries are only
+     * taken from the iterator when earlier ones have been saved.
+     * <p/>
+     * Like serialKeyRingImport, we expect calling functions to handle the contact sync.
+     *
+     * @param inOrder if true, keyrings are saved in the order of the iterator, otherwise in the
+     *                order they are ready in. a keyring which takes long to fetch holds back all
+     *                following ones in the first case.
+     * @param consolidate if true, certifications by newly imported secret keys are verified
+     *                    once all keyrings are saved.
+     */
+    @NonNull
+    private ImportKeyResult pipelinedKeyImport(Iterator<ParcelableKeyRing> entries, int num,
+                                               String keyServerUri, final Proxy proxy,
+                                               boolean inOrder, boolean consolidate) {
+        Log.d(Constants.TAG, "Pipelined key import starting");
+
+        mProgressable.setProgress(R.string.progress_importing, 0, 100);
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, num);
+
+        // If there aren't even any keys, do nothing here.
+        if (entries == null || !entries.hasNext()) {
+            return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
+        }
 
-            final int maxThreads = 200;
-            ExecutorService importExecutor = new ThreadPoolExecutor(0, maxThreads,
-                    30L, TimeUnit.SECONDS,
-                    new SynchronousQueue<Runnable>());
+        final HkpKeyserver keyServer;
+        if (keyServerUri != null) {
+            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, keyServerUri);
+            keyServer = new HkpKeyserver(keyServerUri);
+        } else {
+            keyServer = null;
+        }
+        final KeybaseKeyserver keybaseServer = new KeybaseKeyserver();
 
-            ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                    new ExecutorCompletionService<>(importExecutor);
+        int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        final ExecutorService fetchExecutor = Executors.newFixedThreadPool(PIPELINE_FETCH_THREADS);
+        final ExecutorService decodeExecutor = Executors.newFixedThreadPool(numCores);
+        final BlockingQueue<PipelineItem> writeQueue = new LinkedBlockingQueue<>();
+        ArrayDeque<PipelineItem> inFlight = inOrder ? new ArrayDeque<PipelineItem>() : null;
 
-            while (keyListIterator.hasNext()) { // submit all key rings to be imported
+        int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
+        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
+        ArrayList<PipelineItem> uncommitted = new ArrayList<>();
+        ArrayList<PipelineItem> saved = new ArrayList<>();
 
-                final ParcelableKeyRing pkRing = keyListIterator.next();
+        boolean cancelled = false;
+        int submitted = 0, finished = 0;
 
-                Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                        () {
+        try {
+            mProviderHelper.beginDeferredSaves();
 
-                    @Override
-                    public ImportKeyResult call() {
+            while (true) {
 
-                        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                        list.add(pkRing);
+                // feed the pipeline as long as there is capacity
+                while (!cancelled && entries.hasNext() && submitted - finished < PIPELINE_CAPACITY) {
+                    if (checkCancelled()) {
+                        cancelled = true;
+                        break;
+                    }
 
-                        return serialKeyRingImport(list, keyServer, ignoreProgressable, proxy);
+                    final PipelineItem item = new PipelineItem(entries.next());
+                    submitted += 1;
+                    if (inFlight != null) {
+                        inFlight.add(item);
                     }
-                };
 
-                importCompletionService.submit(importOperationCallable);
-            }
+                    final Runnable decode = new Runnable() {
+                        @Override
+                        public void run() {
+                            // anything which goes wrong here makes this a bad key
+                            boolean decoded = false;
+                            try {
+                                if (checkCancelled()) {
+                                    item.mCancelled = true;
+                                    return;
+                                }
+                                if (item.mKeyRing == null) {
+                                    item.mKeyRing = fetchKeyRing(
+                                            item.mEntry, null, null, proxy, item.mLog);
+                                }
+                                // canonicalize public keys ahead of time, this is the expensive
+                                // part of saving a new keyring
+                                if (item.mKeyRing != null && !item.mKeyRing.isSecret()) {
+                                    item.mCanonicalized = (CanonicalizedPublicKeyRing)
+                                            item.mKeyRing.canonicalize(item.mLog, 3);
+                                }
+                                decoded = true;
+                            } catch (IOException | PgpGeneralException | RuntimeException e) {
+                                Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                            } finally {
+                                if (!decoded) {
+                                    item.mKeyRing = null;
+                                    item.mCanonicalized = null;
+                                }
+                                writeQueue.add(item);
+                            }
+                        }
+                    };
 
-            while (!accumulator.isImportFinished()) { // accumulate the results of each import
-                try {
-                    accumulator.accumulateKeyImport(importCompletionService.take().get());
-                } catch (InterruptedException | ExecutionException e) {
-                    Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                            "import", e);
-                    // do nothing?
-                    if (e instanceof ExecutionException) {
-                        // Since serialKeyRingImport does not throw any exceptions, this is what
-                        // would have happened if
-                        // we were importing the key on this thread
-                        throw new RuntimeException();
+                    if (item.mEntry.mBytes != null) {
+                        // nothing to fetch, go straight to decoding
+                        decodeExecutor.execute(decode);
+                        continue;
+                    }
+
+                    fetchExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // the item must reach the write queue whatever happens, or the
+                            // saving thread waits for it forever
+                            boolean handedOver = false;
+                            try {
+                                if (checkCancelled()) {
+                                    item.mCancelled = true;
+                                    return;
+                                }
+                                item.mKeyRing = fetchKeyRing(
+                                        item.mEntry, keyServer, keybaseServer, proxy, item.mLog);
+                                if (item.mKeyRing != null) {
+                                    decodeExecutor.execute(decode);
+                                    handedOver = true;
+                                }
+                            } catch (IOException | PgpGeneralException | RuntimeException e) {
+                                Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                            } finally {
+                                if (!handedOver) {
+                                    item.mKeyRing = null;
+                                    writeQueue.add(item);
+                                }
+                            }
+                        }
+                    });
+                }
+
+                // everything that was submitted has been saved?
+                if (finished == submitted) {
+                    break;
+                }
+
+                // commit the current batch if it's full, or if there is nothing else to do
+                PipelineItem item = nextPipelineItem(writeQueue, inFlight, false);
+                if (item == null || uncommitted.size() >= PIPELINE_WRITE_BATCH) {
+                    commitPipelineBatch(uncommitted, saved);
+                    if (item == null) {
+                        item = nextPipelineItem(writeQueue, inFlight, true);
                     }
                 }
+
+                finished += 1;
+                mProgressable.setProgress(finished, num);
+
+                if (item.mCancelled || checkCancelled()) {
+                    cancelled = true;
+                    continue;
+                }
+
+                if (item.mKeyRing == null) {
+                    saved.add(item);
+                    continue;
+                }
+
+                // for public keys, the results are only counted once they are committed
+                if (!item.mKeyRing.isSecret()) {
+                    mProviderHelper.clearLog();
+                    item.mResult = item.mCanonicalized != null
+                            ? mProviderHelper.savePublicKeyRing(
+                                    item.mCanonicalized, new ProgressScaler())
+                            : mProviderHelper.savePublicKeyRing(
+                                    item.mKeyRing, new ProgressScaler());
+                    uncommitted.add(item);
+                    continue;
+                }
+
+                // secret keys are saved immediately, and never in a batch
+                commitPipelineBatch(uncommitted, saved);
+                mProviderHelper.clearLog();
+                item.mResult = mProviderHelper.saveSecretKeyRing(item.mKeyRing, new ProgressScaler());
+                uncommitted.add(item);
+                commitPipelineBatch(uncommitted, saved);
             }
-            return accumulator.getConsolidatedResult();
-        }
-        return null; // TODO: Decide if we should just crash instead of returning null
-    }
 
-    /**
-     * Used to accumulate the results of individual key imports
-     */
-    private class KeyImportAccumulator {
-        private OperationResult.OperationLog mImportLog = new OperationResult.OperationLog();
-        Progressable mProgressable;
-        private int mTotalKeys;
-        private int mImportedKeys = 0;
-        ArrayList<Long> mImportedMasterKeyIds = new ArrayList<Long>();
-        private int mBadKeys = 0;
-        private int mNewKeys = 0;
-        private int mUpdatedKeys = 0;
-        private int mSecret = 0;
-        private int mResultType = 0;
-
-        /**
-         * Accumulates keyring imports and updates the progressable whenever a new key is imported.
-         * Also sets the progress to 0 on instantiation.
-         *
-         * @param totalKeys            total number of keys to be imported
-         * @param externalProgressable the external progressable to be updated every time a key
-         *                             is imported
-         */
-        public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
-            mTotalKeys = totalKeys;
-            mProgressable = externalProgressable;
-            mProgressable.setProgress(0, totalKeys);
-        }
+            commitPipelineBatch(uncommitted, saved);
 
-        public int getTotalKeys() {
-            return mTotalKeys;
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted during pipelined import", e);
+            cancelled = true;
+        } finally {
+            fetchExecutor.shutdownNow();
+            decodeExecutor.shutdownNow();
+            // if interrupted, keyrings may be left over which still count towards the result
+            commitPipelineBatch(uncommitted, saved);
+            try {
+                mProviderHelper.commitDeferredSaves();
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(Constants.TAG, "Error committing remaining keyrings", e);
+            }
         }
 
-        public int getImportedKeys() {
-            return mImportedKeys;
+        // results are tallied in the order keyrings were saved in
+        for (PipelineItem item : saved) {
+            log.addAll(item.mLog.toList());
+            SaveKeyringResult result = item.mResult;
+            if (result == null || !result.success()) {
+                badKeys += 1;
+            } else if (result.updated()) {
+                updatedKeys += 1;
+                importedMasterKeyIds.add(item.mMasterKeyId);
+            } else {
+                newKeys += 1;
+                if (item.mSecret) {
+                    secret += 1;
+                    secretMasterKeyIds.add(item.mMasterKeyId);
+                }
+                importedMasterKeyIds.add(item.mMasterKeyId);
+            }
+            if (result != null) {
+                log.add(result, 2);
+            }
         }
 
-        public synchronized void accumulateKeyImport(ImportKeyResult result) {
-            mImportedKeys++;
+        // Special: verify certifications by new secret keys (cannot be cancelled!)
+        if (consolidate && secret > 0) {
+            setPreventCancel();
+            ConsolidateResult result = mProviderHelper.consolidateDatabaseIncremental(
+                    secretMasterKeyIds, mProgressable);
+            log.add(result, 1);
+        }
 
-            mProgressable.setProgress(mImportedKeys, mTotalKeys);
+        // convert to long array
+        long[] importedMasterKeyIdsArray = new long[importedMasterKeyIds.size()];
+        for (int i = 0; i < importedMasterKeyIds.size(); ++i) {
+            importedMasterKeyIdsArray[i] = importedMasterKeyIds.get(i);
+        }
 
-            mImportLog.addAll(result.getLog().toList());//accumulates log
-            mBadKeys += result.mBadKeys;
-            mNewKeys += result.mNewKeys;
-            mUpdatedKeys += result.mUpdatedKeys;
-            mSecret += result.mSecret;
+        int resultType = 0;
+        if (cancelled) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            resultType |= ImportKeyResult.RESULT_CANCELLED;
+        }
 
-            long[] masterKeyIds = result.getImportedMasterKeyIds();
-            for (long masterKeyId : masterKeyIds) {
-                mImportedMasterKeyIds.add(masterKeyId);
+        // special return case: no new keys at all
+        if (badKeys == 0 && newKeys == 0 && updatedKeys == 0) {
+            resultType = ImportKeyResult.RESULT_FAIL_NOTHING;
+        } else {
+            if (newKeys > 0) {
+                resultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
+            }
+            if (updatedKeys > 0) {
+                resultType |= ImportKeyResult.RESULT_OK_UPDATED;
             }
+            if (badKeys > 0) {
+                resultType |= ImportKeyResult.RESULT_WITH_ERRORS;
+                if (newKeys == 0 && updatedKeys == 0) {
+                    resultType |= ImportKeyResult.RESULT_ERROR;
+                }
+            }
+            if (log.containsWarnings()) {
+                resultType |= ImportKeyResult.RESULT_WARNINGS;
+            }
+        }
 
-            // if any key import has been cancelled, set result type to cancelled
-            // resultType is added to in getConsolidatedKayImport to account for remaining factors
-            mResultType |= result.getResult() & ImportKeyResult.RESULT_CANCELLED;
+        // Final log entry, it's easier to do this individually
+        if ((newKeys > 0 || updatedKeys > 0) && badKeys > 0) {
+            log.add(LogType.MSG_IMPORT_PARTIAL, 1);
+        } else if (newKeys > 0 || updatedKeys > 0) {
+            log.add(LogType.MSG_IMPORT_SUCCESS, 1);
+        } else {
+            log.add(LogType.MSG_IMPORT_ERROR, 1);
         }
 
-        /**
-         * returns accumulated result of all imports so far
-         */
-        public ImportKeyResult getConsolidatedResult() {
+        return new ImportKeyResult(resultType, log, newKeys, updatedKeys, badKeys, secret,
+                importedMasterKeyIdsArray);
+    }
 
-            // adding required information to mResultType
-            // special case,no keys requested for import
-            if (mBadKeys == 0 && mNewKeys == 0 && mUpdatedKeys == 0) {
-                mResultType = ImportKeyResult.RESULT_FAIL_NOTHING;
-            } else {
-                if (mNewKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
-                }
-                if (mUpdatedKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_OK_UPDATED;
-                }
-                if (mBadKeys > 0) {
-                    mResultType |= ImportKeyResult.RESULT_WITH_ERRORS;
-                    if (mNewKeys == 0 && mUpdatedKeys == 0) {
-                        mResultType |= ImportKeyResult.RESULT_ERROR;
-                    }
-                }
-                if (mImportLog.containsWarnings()) {
-                    mResultType |= ImportKeyResult.RESULT_WARNINGS;
-                }
+    /**
+     * Takes the next keyring to save from the pipeline. If inFlight is given, this is always its
+     * oldest keyring, others which arrive before it are kept until it is their turn.
+     *
+     * @param block whether to wait for the next keyring, or return null if there is none yet
+     */
+    private static PipelineItem nextPipelineItem(BlockingQueue<PipelineItem> writeQueue,
+                                                 ArrayDeque<PipelineItem> inFlight, boolean block)
+            throws InterruptedException {
+        if (inFlight == null) {
+            return block ? writeQueue.take() : writeQueue.poll();
+        }
+        while (!inFlight.peek().mArrived) {
+            PipelineItem item = block ? writeQueue.take() : writeQueue.poll();
+            if (item == null) {
+                return null;
             }
+            item.mArrived = true;
+        }
+        return inFlight.poll();
+    }
 
-            long masterKeyIds[] = new long[mImportedMasterKeyIds.size()];
-            for (int i = 0; i < masterKeyIds.length; i++) {
-                masterKeyIds[i] = mImportedMasterKeyIds.get(i);
+    /**
+     * Commits the deferred saves of the pipeline. If the batch fails as a whole, its keyrings
+     * are saved again one by one, so a single bad keyring doesn't take the others down with it.
+     * Afterwards, the keyrings are moved over to the saved list, keeping only what is needed
+     * for the final result.
+     */
+    private void commitPipelineBatch(ArrayList<PipelineItem> uncommitted,
+                                     ArrayList<PipelineItem> saved) {
+        if (mProviderHelper.hasDeferredSaves()) {
+            try {
+                mProviderHelper.commitDeferredSaves();
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(Constants.TAG, "Batch save failed, retrying keyrings individually", e);
+                for (PipelineItem item : uncommitted) {
+                    if (item.mKeyRing.isSecret() || !item.mResult.success()) {
+                        continue;
+                    }
+                    mProviderHelper.clearLog();
+                    item.mResult = mProviderHelper.savePublicKeyRing(
+                            item.mKeyRing, new ProgressScaler());
+                }
+            } finally {
+                mProviderHelper.beginDeferredSaves();
             }
-
-            return new ImportKeyResult(mResultType, mImportLog, mNewKeys, mUpdatedKeys, mBadKeys,
-                    mSecret, masterKeyIds);
         }
 
-        public boolean isImportFinished() {
-            return mTotalKeys == mImportedKeys;
+        for (PipelineItem item : uncommitted) {
+            item.mMasterKeyId = item.mKeyRing.getMasterKeyId();
+            item.mSecret = item.mKeyRing.isSecret();
+            item.mKeyRing = null;
+            item.mCanonicalized = null;
+            saved.add(item);
         }
+        uncommitted.clear();
     }
 
 }
@@ -27,6 +27,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.Operat
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation.KeyCache;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
@@ -47,6 +48,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** This is a high-level operation, which encapsulates one or more sign/encrypt
@@ -58,6 +64,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    /** Maximum number of inputs which are signed/encrypted concurrently. */
+    private static final int PARALLEL_MAX_THREADS = 4;
+
     public SignEncryptOperation(Context context, ProviderHelper providerHelper,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
@@ -92,6 +101,13 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             }
         }
 
+        // keys are looked up and unlocked only once for all inputs
+        KeyCache keyCache = new KeyCache();
+
+        if (inputBytes == null && inputUris.size() > 1 && outputUris.size() == inputUris.size()) {
+            return executeParallel(input, cryptoInput, log, inputUris, outputUris, keyCache);
+        }
+
         do {
 
             if (checkCancelled()) {
@@ -147,6 +163,7 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
             PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
                     new ProgressScaler(mProgressable, 100 * count / total, 100 * ++count / total, 100), mCancelled);
+            op.setKeyCache(keyCache);
             PgpSignEncryptResult result = op.execute(input, cryptoInput, inputData, outStream);
             results.add(result);
             log.add(result, 2);
@@ -185,4 +202,235 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
     }
 
+    /**
+     * Signs/encrypts a number of uris on a bounded pool of worker threads. The first input is
+     * processed on its own, so that keys are resolved and unlocked (or a passphrase is
+     * requested) only once, the remaining inputs then share those keys.
+     *
+     * Results are handled in input order, with the same fail-fast behavior as the serial case.
+     */
+    @NonNull
+    private SignEncryptResult executeParallel(final SignEncryptParcel input,
+            final CryptoInputParcel cryptoInput, OperationLog log, ArrayDeque<Uri> inputUris,
+            ArrayDeque<Uri> outputUris, final KeyCache keyCache) {
+
+        final int total = inputUris.size();
+        final ParallelProgress progress = new ParallelProgress(mProgressable, total);
+        ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
+        NfcSignOperationsBuilder pendingInputBuilder = null;
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        }
+
+        // the first input resolves and unlocks all keys, all others wait for it
+        InputResult first = signEncryptUri(input, cryptoInput, inputUris.removeFirst(),
+                outputUris.removeFirst(), keyCache, progress.forInput(0));
+        SignEncryptResult earlyResult = handleInputResult(first, cryptoInput, log, results, null);
+        if (earlyResult != null) {
+            return earlyResult;
+        }
+        if (first.mResult.isPending()) {
+            RequiredInputParcel requiredInput = first.mResult.getRequiredInputParcel();
+            pendingInputBuilder = new NfcSignOperationsBuilder(requiredInput.mSignatureTime,
+                    input.getSignatureMasterKeyId(), input.getSignatureSubKeyId());
+            pendingInputBuilder.addAll(requiredInput);
+        }
+
+        int numThreads = Math.min(PARALLEL_MAX_THREADS,
+                Math.max(1, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        try {
+            ArrayList<Future<InputResult>> futures = new ArrayList<>();
+            for (int i = 1; i < total; i++) {
+                final int index = i;
+                final Uri inputUri = inputUris.removeFirst();
+                final Uri outputUri = outputUris.removeFirst();
+
+                futures.add(executor.submit(new Callable<InputResult>() {
+                    @Override
+                    public InputResult call() {
+                        if (failed.get() || checkCancelled()) {
+                            return null;
+                        }
+                        return signEncryptUri(input, cryptoInput, inputUri, outputUri, keyCache,
+                                progress.forInput(index));
+                    }
+                }));
+            }
+
+            for (Future<InputResult> future : futures) {
+                InputResult inputResult = future.get();
+                if (inputResult == null) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+                }
+
+                earlyResult = handleInputResult(inputResult, cryptoInput, log, results, failed);
+                if (earlyResult != null) {
+                    return earlyResult;
+                }
+                if (inputResult.mResult.isPending()) {
+                    RequiredInputParcel requiredInput = inputResult.mResult.getRequiredInputParcel();
+                    if (pendingInputBuilder == null) {
+                        pendingInputBuilder = new NfcSignOperationsBuilder(requiredInput.mSignatureTime,
+                                input.getSignatureMasterKeyId(), input.getSignatureSubKeyId());
+                    }
+                    pendingInputBuilder.addAll(requiredInput);
+                }
+            }
+
+        } catch (InterruptedException e) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        } catch (ExecutionException e) {
+            // same as in the serial case, unexpected exceptions are not handled here
+            throw new RuntimeException(e.getCause());
+        } finally {
+            failed.set(true);
+            executor.shutdownNow();
+        }
+
+        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
+            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results, null);
+
+    }
+
+    /**
+     * Adds the result of a single input to the log and list of results. Returns a final result
+     * if the whole operation should stop here, null otherwise.
+     */
+    private SignEncryptResult handleInputResult(InputResult inputResult,
+            CryptoInputParcel cryptoInput, OperationLog log, ArrayList<PgpSignEncryptResult> results,
+            AtomicBoolean failed) {
+
+        log.addAll(inputResult.mLog.toList());
+        if (inputResult.mResult == null) {
+            if (failed != null) {
+                failed.set(true);
+            }
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+
+        PgpSignEncryptResult result = inputResult.mResult;
+        results.add(result);
+        log.add(result, 2);
+
+        if (result.isPending()) {
+            RequiredInputParcel requiredInput = result.getRequiredInputParcel();
+            // Passphrase returns immediately, nfc are aggregated
+            if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
+                if (failed != null) {
+                    failed.set(true);
+                }
+                return new SignEncryptResult(log, requiredInput, results, cryptoInput);
+            }
+        } else if (!result.success()) {
+            if (failed != null) {
+                failed.set(true);
+            }
+            return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+        }
+
+        return null;
+    }
+
+    /** Result of a single input, along with the log entries for opening its streams. */
+    private static class InputResult {
+        final OperationLog mLog = new OperationLog();
+        PgpSignEncryptResult mResult;
+    }
+
+    private InputResult signEncryptUri(SignEncryptParcel input, CryptoInputParcel cryptoInput,
+            Uri inputUri, Uri outputUri, KeyCache keyCache, Progressable progressable) {
+        InputResult inputResult = new InputResult();
+
+        inputResult.mLog.add(LogType.MSG_SE_INPUT_URI, 1);
+        InputData inputData;
+        try {
+            InputStream is = mContext.getContentResolver().openInputStream(inputUri);
+            long fileSize = FileHelper.getFileSize(mContext, inputUri, 0);
+            String filename = FileHelper.getFilename(mContext, inputUri);
+            inputData = new InputData(is, fileSize, filename);
+        } catch (FileNotFoundException e) {
+            inputResult.mLog.add(LogType.MSG_SE_ERROR_INPUT_URI_NOT_FOUND, 1);
+            return inputResult;
+        }
+
+        OutputStream outStream;
+        try {
+            outStream = mContext.getContentResolver().openOutputStream(outputUri);
+        } catch (FileNotFoundException e) {
+            inputResult.mLog.add(LogType.MSG_SE_ERROR_OUTPUT_URI_NOT_FOUND, 1);
+            return inputResult;
+        }
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mProviderHelper,
+                progressable, mCancelled);
+        op.setKeyCache(keyCache);
+        inputResult.mResult = op.execute(input, cryptoInput, inputData, outStream);
+        return inputResult;
+    }
+
+    /**
+     * Combines the progress of concurrently processed inputs into a single progress value.
+     */
+    private static class ParallelProgress {
+        private final Progressable mWrapped;
+        private final int[] mProgress;
+
+        ParallelProgress(Progressable wrapped, int numInputs) {
+            mWrapped = wrapped;
+            mProgress = new int[numInputs];
+        }
+
+        private synchronized int update(int index, int current, int total) {
+            mProgress[index] = total > 0 ? 100 * current / total : 0;
+            int sum = 0;
+            for (int progress : mProgress) {
+                sum += progress;
+            }
+            return sum / mProgress.length;
+        }
+
+        Progressable forInput(final int index) {
+            return new Progressable() {
+                @Override
+                public void setProgress(String message, int current, int total) {
+                    if (mWrapped != null) {
+                        mWrapped.setProgress(message, update(index, current, total), 100);
+                    }
+                }
+
+                @Override
+                public void setProgress(int resourceId, int current, int total) {
+                    if (mWrapped != null) {
+                        mWrapped.setProgress(resourceId, update(index, current, total), 100);
+                    }
+                }
+
+                @Override
+                public void setProgress(int current, int total) {
+                    if (mWrapped != null) {
+                        mWrapped.setProgress(update(index, current, total), 100);
+                    }
+                }
+
+                @Override
+                public void setPreventCancel() {
+                    if (mWrapped != null) {
+                        mWrapped.setPreventCancel();
+                    }
+                }
+            };
+        }
+    }
+
 }
@@ -40,6 +40,14 @@ public class DecryptVerifyResult extends InputPendingResult {
 
     byte[] mOutputBytes;
 
+    // throughput counters, sizes in bytes and times in nanoseconds
+    long mInputSize;
+    long mOutputSize;
+    long mTotalTime;
+    long mCipherTime;
+    long mHashTime;
+    long mIoTime;
+
     public DecryptVerifyResult(int result, OperationLog log) {
         super(result, log);
     }
@@ -54,6 +62,12 @@ public class DecryptVerifyResult extends InputPendingResult {
         mSignatureResult = source.readParcelable(OpenPgpSignatureResult.class.getClassLoader());
         mDecryptMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
         mCachedCryptoInputParcel = source.readParcelable(CryptoInputParcel.class.getClassLoader());
+        mInputSize = source.readLong();
+        mOutputSize = source.readLong();
+        mTotalTime = source.readLong();
+        mCipherTime = source.readLong();
+        mHashTime = source.readLong();
+        mIoTime = source.readLong();
     }
 
 
@@ -101,6 +115,57 @@ public class DecryptVerifyResult extends InputPendingResult {
         return mOutputBytes;
     }
 
+    /**
+     * Sets the throughput counters of the operation. Sizes are in bytes, times in nanoseconds.
+     *
+     * @param cipherTime time spent decrypting and decompressing data
+     * @param hashTime time spent updating the signature hash
+     * @param ioTime time spent reading input and writing output
+     */
+    public void setThroughput(long inputSize, long outputSize, long totalTime,
+                              long cipherTime, long hashTime, long ioTime) {
+        mInputSize = inputSize;
+        mOutputSize = outputSize;
+        mTotalTime = totalTime;
+        mCipherTime = cipherTime;
+        mHashTime = hashTime;
+        mIoTime = ioTime;
+    }
+
+    /** @return number of input bytes processed */
+    public long getInputSize() {
+        return mInputSize;
+    }
+
+    /** @return number of output bytes written */
+    public long getOutputSize() {
+        return mOutputSize;
+    }
+
+    public long getTotalTimeNanos() {
+        return mTotalTime;
+    }
+
+    public long getCipherTimeNanos() {
+        return mCipherTime;
+    }
+
+    public long getHashTimeNanos() {
+        return mHashTime;
+    }
+
+    public long getIoTimeNanos() {
+        return mIoTime;
+    }
+
+    /** @return processed input bytes per second, or 0 if no time was recorded */
+    public long getBytesPerSecond() {
+        if (mTotalTime <= 0) {
+            return 0;
+        }
+        return (long) (mInputSize * 1000000000.0 / mTotalTime);
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -110,6 +175,12 @@ public class DecryptVerifyResult extends InputPendingResult {
         dest.writeParcelable(mSignatureResult, 0);
         dest.writeParcelable(mDecryptMetadata, 0);
         dest.writeParcelable(mCachedCryptoInputParcel, 0);
+        dest.writeLong(mInputSize);
+        dest.writeLong(mOutputSize);
+        dest.writeLong(mTotalTime);
+        dest.writeLong(mCipherTime);
+        dest.writeLong(mHashTime);
+        dest.writeLong(mIoTime);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
@@ -548,17 +548,20 @@ public abstract class OperationResult implements Parcelable {
         MSG_CON_DELETE_SECRET (LogLevel.DEBUG, R.string.msg_con_delete_secret),
         MSG_CON_ERROR_BAD_STATE (LogLevel.ERROR, R.string.msg_con_error_bad_state),
         MSG_CON_ERROR_CONCURRENT(LogLevel.ERROR, R.string.msg_con_error_concurrent),
+        MSG_CON_ERROR_CORRUPT_CACHE (LogLevel.ERROR, R.string.msg_con_error_corrupt_cache),
         MSG_CON_ERROR_DB (LogLevel.ERROR, R.string.msg_con_error_db),
         MSG_CON_ERROR_IO_PUBLIC (LogLevel.ERROR, R.string.msg_con_error_io_public),
         MSG_CON_ERROR_IO_SECRET (LogLevel.ERROR, R.string.msg_con_error_io_secret),
         MSG_CON_ERROR_PUBLIC (LogLevel.ERROR, R.string.msg_con_error_public),
         MSG_CON_ERROR_SECRET (LogLevel.ERROR, R.string.msg_con_error_secret),
         MSG_CON_RECOVER (LogLevel.DEBUG, R.string.msg_con_recover),
+        MSG_CON_RECOVER_SKIP (LogLevel.DEBUG, R.plurals.msg_con_recover_skip),
         MSG_CON_RECURSIVE (LogLevel.OK, R.string.msg_con_recursive),
         MSG_CON_REIMPORT_PUBLIC (LogLevel.DEBUG, R.plurals.msg_con_reimport_public),
         MSG_CON_REIMPORT_PUBLIC_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_public_skip),
         MSG_CON_REIMPORT_SECRET (LogLevel.DEBUG, R.plurals.msg_con_reimport_secret),
         MSG_CON_REIMPORT_SECRET_SKIP (LogLevel.DEBUG, R.string.msg_con_reimport_secret_skip),
+        MSG_CON_RESAVE (LogLevel.DEBUG, R.plurals.msg_con_resave),
         MSG_CON (LogLevel.START, R.string.msg_con),
         MSG_CON_SAVE_PUBLIC (LogLevel.DEBUG, R.string.msg_con_save_public),
         MSG_CON_SAVE_SECRET (LogLevel.DEBUG, R.string.msg_con_save_secret),
@@ -177,6 +177,14 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         return true;
     }
 
+    /**
+     * Unlocks this key with a private key previously extracted from it, see UnlockedKeyCache.
+     */
+    void unlock(PGPPrivateKey privateKey) {
+        mPrivateKey = privateKey;
+        mPrivateKeyState = PRIVATE_KEY_STATE_UNLOCKED;
+    }
+
     /**
      * Returns a list of all supported hash algorithms.
      */
@@ -315,7 +323,7 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         return new UncachedSecretKey(mSecretKey);
     }
 
-    // HACK, for TESTING ONLY!!
+    // used by UnlockedKeyCache, and for testing
     PGPPrivateKey getPrivateKey() {
         return mPrivateKey;
     }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Follows the packet structure of an OpenPGP packet stream while it is read by someone else,
+ * remembering the tag and body length of the most recently started packet.
+ *
+ * This allows finding out the length of a literal data packet right after its header was
+ * parsed, instead of skipping through the whole packet. The body length is only known for
+ * packets with a definite length, i.e. not for partial or indeterminate lengths.
+ *
+ * @see <a href="http://tools.ietf.org/html/rfc4880#section-4.2">RFC 4880, section 4.2</a>
+ */
+class PacketLengthTrackingInputStream extends FilterInputStream {
+
+    private static final int STATE_TAG = 0;
+    private static final int STATE_OLD_LENGTH = 1;
+    private static final int STATE_NEW_LENGTH = 2;
+    private static final int STATE_NEW_LENGTH_TWO = 3;
+    private static final int STATE_NEW_LENGTH_FOUR = 4;
+    private static final int STATE_BODY = 5;
+    private static final int STATE_DONE = 6;
+
+    private int mState = STATE_TAG;
+    // if the current packet has partial body lengths, and if the current part is one of those
+    private boolean mPartialPacket;
+    private boolean mPartialPart;
+    // length octets still to be read, and the length read so far
+    private int mLengthOctets;
+    private long mLength;
+    private long mBodyRemaining;
+
+    private int mLastTag = -1;
+    private long mLastBodyLength = -1;
+
+    PacketLengthTrackingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /** @return the tag of the last packet whose header was read, or -1 if there was none */
+    int getLastPacketTag() {
+        return mLastTag;
+    }
+
+    /** @return the body length of the last packet, or -1 if it is not a definite length */
+    long getLastBodyLength() {
+        return mLastBodyLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            update(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = in.read(b, off, len);
+        for (int i = 0; i < result; i++) {
+            if (mState == STATE_BODY) {
+                // skip over body data in bulk
+                int skip = (int) Math.min(mBodyRemaining, result - i);
+                mBodyRemaining -= skip;
+                i += skip - 1;
+                if (mBodyRemaining == 0) {
+                    endOfBody();
+                }
+            } else if (mState == STATE_DONE) {
+                break;
+            } else {
+                update(b[off + i] & 0xff);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped data must be seen as well, so read it instead
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int result = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if (result < 0) {
+                break;
+            }
+            skipped += result;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void update(int b) {
+        switch (mState) {
+            case STATE_TAG: {
+                if ((b & 0x80) == 0) {
+                    // not a packet header, stop following the stream
+                    mLastTag = -1;
+                    mLastBodyLength = -1;
+                    mState = STATE_DONE;
+                    return;
+                }
+                mPartialPacket = false;
+                mPartialPart = false;
+                mLength = 0;
+                mLastBodyLength = -1;
+                if ((b & 0x40) != 0) {
+                    mLastTag = b & 0x3f;
+                    mState = STATE_NEW_LENGTH;
+                } else {
+                    mLastTag = (b & 0x3f) >> 2;
+                    int lengthType = b & 0x03;
+                    if (lengthType == 3) {
+                        // indeterminate length, the packet extends to the end of the stream
+                        mState = STATE_DONE;
+                        return;
+                    }
+                    mLengthOctets = 1 << lengthType;
+                    mState = STATE_OLD_LENGTH;
+                }
+                return;
+            }
+            case STATE_OLD_LENGTH: {
+                mLength = (mLength << 8) | b;
+                if (--mLengthOctets == 0) {
+                    startBody(mLength);
+                }
+                return;
+            }
+            case STATE_NEW_LENGTH: {
+                mPartialPart = false;
+                if (b < 192) {
+                    startBody(b);
+                } else if (b <= 223) {
+                    mLength = b;
+                    mState = STATE_NEW_LENGTH_TWO;
+                } else if (b == 255) {
+                    mLength = 0;
+                    mLengthOctets = 4;
+                    mState = STATE_NEW_LENGTH_FOUR;
+                } else {
+                    // partial body length
+                    mPartialPacket = true;
+                    mPartialPart = true;
+                    startBody(1L << (b & 0x1f));
+                }
+                return;
+            }
+            case STATE_NEW_LENGTH_TWO: {
+                startBody(((mLength - 192) << 8) + b + 192);
+                return;
+            }
+            case STATE_NEW_LENGTH_FOUR: {
+                mLength = (mLength << 8) | b;
+                if (--mLengthOctets == 0) {
+                    startBody(mLength);
+                }
+                return;
+            }
+            case STATE_BODY: {
+                if (--mBodyRemaining == 0) {
+                    endOfBody();
+                }
+            }
+        }
+    }
+
+    private void startBody(long length) {
+        if (!mPartialPacket) {
+            mLastBodyLength = length;
+        }
+        mBodyRemaining = length;
+        if (length == 0) {
+            endOfBody();
+        } else {
+            mState = STATE_BODY;
+        }
+    }
+
+    private void endOfBody() {
+        // a partial body is followed by the length of its next part
+        mState = mPartialPart ? STATE_NEW_LENGTH : STATE_TAG;
+    }
+
+}
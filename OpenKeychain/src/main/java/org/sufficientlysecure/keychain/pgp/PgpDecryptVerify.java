@@ -20,11 +20,13 @@ package org.sufficientlysecure.keychain.pgp;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
 import android.webkit.MimeTypeMap;
 
 import org.openintents.openpgp.OpenPgpMetadata;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
+import org.spongycastle.bcpg.PacketTags;
 import org.spongycastle.openpgp.PGPCompressedData;
 import org.spongycastle.openpgp.PGPDataValidationException;
 import org.spongycastle.openpgp.PGPEncryptedData;
@@ -67,19 +69,26 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel> {
 
+    // these are only set during executeBatch, to share key lookups between messages
+    private LongSparseArray<CanonicalizedSecretKeyRing> mBatchSecretKeyRings;
+    private HashSet<Long> mBatchMissingSubKeyIds;
+    private LongSparseArray<CanonicalizedSecretKey> mBatchUnlockedKeys;
+
     public PgpDecryptVerify(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
@@ -135,6 +144,62 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         return executeInternal(input, cryptoInput, inputData, outputStream);
     }
 
+    /**
+     * Decrypts and/or verifies a number of messages with the same parameters. Secret keyrings,
+     * passphrases and unlocked keys are looked up only once per subkey for the whole batch.
+     *
+     * @return one result per input, in the same order
+     */
+    @NonNull
+    public ArrayList<DecryptVerifyResult> executeBatch(PgpDecryptVerifyInputParcel input,
+            CryptoInputParcel cryptoInput, List<InputData> inputData, List<OutputStream> outputStreams) {
+        if (inputData.size() != outputStreams.size()) {
+            throw new IllegalArgumentException("need exactly one output per input!");
+        }
+
+        mBatchSecretKeyRings = new LongSparseArray<>();
+        mBatchMissingSubKeyIds = new HashSet<>();
+        mBatchUnlockedKeys = new LongSparseArray<>();
+        try {
+            ArrayList<DecryptVerifyResult> results = new ArrayList<>(inputData.size());
+            for (int i = 0; i < inputData.size(); i++) {
+                results.add(executeInternal(input, cryptoInput, inputData.get(i), outputStreams.get(i)));
+            }
+            return results;
+        } finally {
+            mBatchSecretKeyRings = null;
+            mBatchMissingSubKeyIds = null;
+            mBatchUnlockedKeys = null;
+        }
+    }
+
+    /**
+     * Returns the secret keyring containing the given subkey. During a batch, each keyring is
+     * only retrieved from the database once.
+     */
+    private CanonicalizedSecretKeyRing getSecretKeyRingForSubKey(long subKeyId)
+            throws ProviderHelper.NotFoundException {
+        if (mBatchSecretKeyRings == null) {
+            return mProviderHelper.getCanonicalizedSecretKeyRingBySubkey(subKeyId);
+        }
+
+        CanonicalizedSecretKeyRing secretKeyRing = mBatchSecretKeyRings.get(subKeyId);
+        if (secretKeyRing != null) {
+            return secretKeyRing;
+        }
+        if (mBatchMissingSubKeyIds.contains(subKeyId)) {
+            throw new ProviderHelper.NotFoundException();
+        }
+        try {
+            secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRingBySubkey(subKeyId);
+        } catch (ProviderHelper.NotFoundException e) {
+            mBatchMissingSubKeyIds.add(subKeyId);
+            throw e;
+        }
+        mBatchSecretKeyRings.put(subKeyId, secretKeyRing);
+        return secretKeyRing;
+    }
+
     @NonNull
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
@@ -159,10 +224,10 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                         return verifyCleartextSignature(aIn, outputStream, 0);
                     } else {
                         // else: ascii armored encryption! go on...
-                        return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                        return decryptVerify(input, cryptoInput, inputData, in, outputStream, 0);
                     }
                 } else {
-                    return decryptVerify(input, cryptoInput, in, outputStream, 0);
+                    return decryptVerify(input, cryptoInput, inputData, in, outputStream, 0);
                 }
             }
         } catch (PGPException e) {
@@ -221,9 +286,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = mProviderHelper.getCanonicalizedPublicKeyRingBySubkey(sigKeyId);
                 signingKey = signingRing.getPublicKey(sigKeyId);
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
@@ -319,9 +382,13 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
     /** Decrypt and/or verify binary or ascii armored pgp data. */
     @NonNull
     private DecryptVerifyResult decryptVerify(
-            PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput, InputData inputData,
             InputStream in, OutputStream out, int indent) throws IOException, PGPException {
 
+        long startTime = System.nanoTime();
+        long startPosition = inputData.getStreamPosition();
+        long startReadTime = inputData.getStreamReadTime();
+
         OperationLog log = new OperationLog();
 
         log.add(LogType.MSG_DC, indent);
@@ -377,6 +444,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
         Passphrase passphrase = null;
         boolean skippedDisallowedKey = false;
+        boolean secretKeyUnlocked = false;
 
         // go through all objects and find one we can decrypt
         while (it.hasNext()) {
@@ -396,9 +464,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 CanonicalizedSecretKeyRing secretKeyRing;
                 try {
                     // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getCanonicalizedSecretKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)
-                    );
+                    secretKeyRing = getSecretKeyRingForSubKey(subKeyId);
                 } catch (ProviderHelper.NotFoundException e) {
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
@@ -439,7 +505,12 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
                 encryptedDataAsymmetric = encData;
 
-                if (secretEncryptionKey.getSecretKeyType() == SecretKeyType.DIVERT_TO_CARD) {
+                // if this key was unlocked earlier in the same batch, there is no need for a
+                // passphrase
+                if (mBatchUnlockedKeys != null && mBatchUnlockedKeys.get(subKeyId) != null) {
+                    secretEncryptionKey = mBatchUnlockedKeys.get(subKeyId);
+                    secretKeyUnlocked = true;
+                } else if (secretEncryptionKey.getSecretKeyType() == SecretKeyType.DIVERT_TO_CARD) {
                     passphrase = null;
                 } else if (cryptoInput.hasPassphrase()) {
                     passphrase = cryptoInput.getPassphrase();
@@ -556,15 +627,20 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             currentProgress += 2;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
 
-            try {
-                log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                if (!secretEncryptionKey.unlock(passphrase)) {
-                    log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+            if (!secretKeyUnlocked) {
+                try {
+                    log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
+                    if (!UnlockedKeyCache.unlock(mContext, secretEncryptionKey, passphrase)) {
+                        log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                        return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                    }
+                } catch (PgpGeneralException e) {
+                    log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
                     return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
                 }
-            } catch (PgpGeneralException e) {
-                log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+                if (mBatchUnlockedKeys != null) {
+                    mBatchUnlockedKeys.put(secretEncryptionKey.getKeyId(), secretEncryptionKey);
+                }
             }
 
             currentProgress += 2;
@@ -620,6 +696,13 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             log.add(LogType.MSG_DC_OLD_SYMMETRIC_ENCRYPTION_ALGO, indent + 1);
         }
 
+        // in metadata only mode, follow the packet headers to learn the literal data length
+        PacketLengthTrackingInputStream lengthTracker = null;
+        if (input.isDecryptMetadataOnly()) {
+            lengthTracker = new PacketLengthTrackingInputStream(clear);
+            clear = lengthTracker;
+        }
+
         JcaPGPObjectFactory plainFact = new JcaPGPObjectFactory(clear);
         Object dataChunk = plainFact.nextObject();
         OpenPgpSignatureResultBuilder signatureResultBuilder = new OpenPgpSignatureResultBuilder();
@@ -637,7 +720,13 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             PGPCompressedData compressedData = (PGPCompressedData) dataChunk;
 
-            JcaPGPObjectFactory fact = new JcaPGPObjectFactory(compressedData.getDataStream());
+            InputStream decompressed = compressedData.getDataStream();
+            if (lengthTracker != null) {
+                lengthTracker = new PacketLengthTrackingInputStream(decompressed);
+                decompressed = lengthTracker;
+            }
+
+            JcaPGPObjectFactory fact = new JcaPGPObjectFactory(decompressed);
             dataChunk = fact.nextObject();
             plainFact = fact;
         }
@@ -657,9 +746,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             for (int i = 0; i < sigList.size(); ++i) {
                 try {
                     long sigKeyId = sigList.get(i).getKeyID();
-                    signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                    );
+                    signingRing = mProviderHelper.getCanonicalizedPublicKeyRingBySubkey(sigKeyId);
                     signingKey = signingRing.getPublicKey(sigKeyId);
                     signatureIndex = i;
                 } catch (ProviderHelper.NotFoundException e) {
@@ -695,6 +782,10 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         }
 
         OpenPgpMetadata metadata;
+        long outputSize = 0;
+        long cipherTime = 0;
+        long hashTime = 0;
+        long writeTime = 0;
 
         if (dataChunk instanceof PGPLiteralData) {
             log.add(LogType.MSG_DC_CLEAR_DATA, indent + 1);
@@ -732,8 +823,16 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             // return here if we want to decrypt the metadata only
             if (input.isDecryptMetadataOnly()) {
 
-                // this operation skips the entire stream to find the data length!
-                Long originalSize = literalData.findDataLength();
+                Long originalSize;
+                if (lengthTracker.getLastPacketTag() == PacketTags.LITERAL_DATA
+                        && lengthTracker.getLastBodyLength() >= 0) {
+                    // definite length: body minus format, filename length, filename and date
+                    originalSize = lengthTracker.getLastBodyLength()
+                            - 6 - literalData.getRawFileName().length;
+                } else {
+                    // this operation skips the entire stream to find the data length!
+                    originalSize = literalData.findDataLength();
+                }
 
                 if (originalSize != null) {
                     log.add(LogType.MSG_DC_CLEAR_META_SIZE, indent + 1,
@@ -769,32 +868,47 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
             InputStream dataIn = literalData.getInputStream();
 
+            // progress is measured on the consumed input, which is all we know the size of
             long alreadyWritten = 0;
-            long wholeSize = 0; // TODO inputData.getSize() - inputData.getStreamPosition();
+            long dataStartPosition = inputData.getStreamPosition();
+            long wholeSize = inputData.getSize() - dataStartPosition;
             int length;
             byte[] buffer = new byte[1 << 16];
-            while ((length = dataIn.read(buffer)) > 0) {
+            while (true) {
+                long readStart = System.nanoTime();
+                long readTimeBefore = inputData.getStreamReadTime();
+                length = dataIn.read(buffer);
+                long readEnd = System.nanoTime();
+                // whatever was not spent reading the input went into decryption and decompression
+                cipherTime += (readEnd - readStart) - (inputData.getStreamReadTime() - readTimeBefore);
+                if (length <= 0) {
+                    break;
+                }
+
                 // Log.d(Constants.TAG, "read bytes: " + length);
                 if (out != null) {
                     out.write(buffer, 0, length);
+                    writeTime += System.nanoTime() - readEnd;
                 }
 
                 // update signature buffer if signature is also present
                 if (signature != null) {
+                    long hashStart = System.nanoTime();
                     signature.update(buffer, 0, length);
+                    hashTime += System.nanoTime() - hashStart;
                 }
 
                 alreadyWritten += length;
                 if (wholeSize > 0) {
-                    long progress = 100 * alreadyWritten / wholeSize;
+                    long progress = 100 * (inputData.getStreamPosition() - dataStartPosition) / wholeSize;
                     // stop at 100% for wrong file sizes...
                     if (progress > 100) {
                         progress = 100;
                     }
                     progressScaler.setProgress((int) progress, 100);
                 }
-                // TODO: slow annealing to fake a progress?
             }
+            outputSize = alreadyWritten;
 
             metadata = new OpenPgpMetadata(
                     originalFilename,
@@ -867,6 +981,9 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         result.setDecryptMetadata(metadata);
         result.setSignatureResult(signatureResultBuilder.build());
         result.setCharset(charset);
+        result.setThroughput(inputData.getStreamPosition() - startPosition, outputSize,
+                System.nanoTime() - startTime, cipherTime, hashTime,
+                inputData.getStreamReadTime() - startReadTime + writeTime);
         return result;
 
     }
@@ -888,31 +1005,47 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         // cleartext signatures are never encrypted ;)
         signatureResultBuilder.setSignatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
         updateProgress(R.string.progress_reading_data, 0, 100);
 
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
+        // The signature packet only follows after the cleartext, so the signed data has to be
+        // kept until we know which key to verify with. We keep it in canonical form only, and
+        // write the cleartext to the output as we go.
+        LineBuffer lineOut = new LineBuffer(256);
+        LineBuffer signedData = new LineBuffer(1 << 12);
         byte[] lineSep = getLineSeparator();
+        long clearTextLength = 0;
 
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
+        OutputStream out = outputStream != null
+                ? new BufferedOutputStream(outputStream, 1 << 16) : null;
+
+        int lookAhead = readInputLine(lineOut, aIn);
+        boolean firstLine = true;
+        while (true) {
+            byte[] line = lineOut.getBuffer();
+            int length = getLengthWithoutSeparator(line, lineOut.size());
+            if (out != null) {
+                out.write(line, 0, length);
+                out.write(lineSep);
+            }
+            clearTextLength += length + lineSep.length;
+
+            // lines are separated by CRLF and stripped of trailing whitespace for signing,
+            // see http://tools.ietf.org/html/rfc4880#section-7.1
+            if (!firstLine) {
+                signedData.write('\r');
+                signedData.write('\n');
+            }
+            signedData.write(line, 0, getLengthWithoutWhiteSpace(line, length));
+            firstLine = false;
 
-        while (lookAhead != -1 && aIn.isClearText()) {
+            if (lookAhead == -1 || !aIn.isClearText()) {
+                break;
+            }
             lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
         }
 
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
+        if (out != null) {
+            out.close();
         }
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
@@ -927,47 +1060,26 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         PGPSignature signature = processPGPSignatureList(sigList, signatureResultBuilder);
 
         if (signature != null) {
-            try {
-                updateProgress(R.string.progress_verifying_signature, 90, 100);
-                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
-
-                InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-                lookAhead = readInputLine(lineOut, sigIn);
-
-                processLine(signature, lineOut.toByteArray());
-
-                if (lookAhead != -1) {
-                    do {
-                        lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                        signature.update((byte) '\r');
-                        signature.update((byte) '\n');
-
-                        processLine(signature, lineOut.toByteArray());
-                    } while (lookAhead != -1);
-                }
-
-                // Verify signature and check binding signatures
-                boolean validSignature = signature.verify();
-                if (validSignature) {
-                    log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
-                } else {
-                    log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
-                }
+            updateProgress(R.string.progress_verifying_signature, 90, 100);
+            log.add(LogType.MSG_DC_CLEAR_SIGNATURE_CHECK, indent);
 
-                // Don't allow verification of old hash algorithms!
-                if (!PgpConstants.sPreferredHashAlgorithms.contains(signature.getHashAlgorithm())) {
-                    validSignature = false;
-                    log.add(LogType.MSG_DC_ERROR_UNSUPPORTED_HASH_ALGO, indent + 1);
-                }
+            signature.update(signedData.getBuffer(), 0, signedData.size());
 
-                signatureResultBuilder.setValidSignature(validSignature);
+            // Verify signature and check binding signatures
+            boolean validSignature = signature.verify();
+            if (validSignature) {
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_OK, indent + 1);
+            } else {
+                log.add(LogType.MSG_DC_CLEAR_SIGNATURE_BAD, indent + 1);
+            }
 
-            } catch (SignatureException e) {
-                Log.d(Constants.TAG, "SignatureException", e);
-                return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
+            // Don't allow verification of old hash algorithms!
+            if (!PgpConstants.sPreferredHashAlgorithms.contains(signature.getHashAlgorithm())) {
+                validSignature = false;
+                log.add(LogType.MSG_DC_ERROR_UNSUPPORTED_HASH_ALGO, indent + 1);
             }
+
+            signatureResultBuilder.setValidSignature(validSignature);
         }
 
         updateProgress(R.string.progress_done, 100, 100);
@@ -978,7 +1090,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                 "",
                 "text/plain",
                 -1,
-                clearText.length);
+                clearTextLength);
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setDecryptMetadata(metadata);
@@ -1091,9 +1203,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = mProviderHelper.getCanonicalizedPublicKeyRingBySubkey(sigKeyId);
                 signingKey = signingRing.getPublicKey(sigKeyId);
                 signatureIndex = i;
             } catch (ProviderHelper.NotFoundException e) {
@@ -1126,13 +1236,16 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
     }
 
     /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
+     * A ByteArrayOutputStream which can be read without copying its contents.
      */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
+    private static class LineBuffer extends ByteArrayOutputStream {
+        LineBuffer(int size) {
+            super(size);
+        }
+
+        /** Returns the internal buffer, only the first size() bytes of which are valid. */
+        byte[] getBuffer() {
+            return buf;
         }
     }
 
@@ -1187,8 +1300,8 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutSeparator(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isLineEnding(line[end])) {
             end--;
@@ -1201,8 +1314,8 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         return b == '\r' || b == '\n';
     }
 
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutWhiteSpace(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isWhiteSpace(line[end])) {
             end--;
@@ -54,17 +54,18 @@ import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.SignatureException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -86,6 +87,9 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
     private static byte[] NEW_LINE;
 
+    private static final boolean PLATFORM_CHARSET_UTF8 =
+            "UTF-8".equals(Charset.defaultCharset().name());
+
     static {
         try {
             NEW_LINE = "\r\n".getBytes("UTF-8");
@@ -94,6 +98,19 @@ public class PgpSignEncryptOperation extends BaseOperation {
         }
     }
 
+    private KeyCache mKeyCache;
+
+    /**
+     * Keys resolved while signing/encrypting one input, to be reused for further inputs with
+     * the same parameters. Once filled by a successful operation, a KeyCache can safely be
+     * shared by operations running concurrently.
+     */
+    public static class KeyCache {
+        private CanonicalizedSecretKey mSigningKey;
+        private final HashMap<Long, CanonicalizedPublicKeyRing> mEncryptionKeyRings = new HashMap<>();
+        private final HashSet<Long> mUnknownEncryptionKeyIds = new HashSet<>();
+    }
+
     public PgpSignEncryptOperation(Context context, ProviderHelper providerHelper, Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
     }
@@ -102,6 +119,41 @@ public class PgpSignEncryptOperation extends BaseOperation {
         super(context, providerHelper, progressable);
     }
 
+    /**
+     * Use the given cache for the signing key and encryption keyrings. The signing key is
+     * stored in the cache only after it was successfully unlocked.
+     */
+    public void setKeyCache(KeyCache keyCache) {
+        mKeyCache = keyCache;
+    }
+
+    private CanonicalizedPublicKeyRing getEncryptionKeyRing(long masterKeyId)
+            throws ProviderHelper.NotFoundException {
+        if (mKeyCache == null) {
+            return mProviderHelper.getCanonicalizedPublicKeyRing(
+                    KeyRings.buildUnifiedKeyRingUri(masterKeyId));
+        }
+
+        synchronized (mKeyCache) {
+            CanonicalizedPublicKeyRing keyRing = mKeyCache.mEncryptionKeyRings.get(masterKeyId);
+            if (keyRing != null) {
+                return keyRing;
+            }
+            if (mKeyCache.mUnknownEncryptionKeyIds.contains(masterKeyId)) {
+                throw new ProviderHelper.NotFoundException();
+            }
+            try {
+                keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
+                        KeyRings.buildUnifiedKeyRingUri(masterKeyId));
+            } catch (ProviderHelper.NotFoundException e) {
+                mKeyCache.mUnknownEncryptionKeyIds.add(masterKeyId);
+                throw e;
+            }
+            mKeyCache.mEncryptionKeyRings.put(masterKeyId, keyRing);
+            return keyRing;
+        }
+    }
+
     @NonNull
     @Override
     // TODO this is horrible, refactor ASAP!!
@@ -132,10 +184,13 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 + "\nenableAsciiArmorOutput:" + input.isEnableAsciiArmorOutput()
                 + "\nisHiddenRecipients:" + input.isHiddenRecipients());
 
-        // add additional key id to encryption ids (mostly to do self-encryption)
+        // add additional key id to encryption ids (mostly to do self-encryption). this is done on
+        // a copy, so the input can be used for more than one operation
+        long[] encryptionMasterKeyIds = input.getEncryptionMasterKeyIds();
         if (enableEncryption && input.getAdditionalEncryptId() != Constants.key.none) {
-            input.setEncryptionMasterKeyIds(Arrays.copyOf(input.getEncryptionMasterKeyIds(), input.getEncryptionMasterKeyIds().length + 1));
-            input.getEncryptionMasterKeyIds()[input.getEncryptionMasterKeyIds().length - 1] = input.getAdditionalEncryptId();
+            encryptionMasterKeyIds = encryptionMasterKeyIds == null ? new long[1]
+                    : Arrays.copyOf(encryptionMasterKeyIds, encryptionMasterKeyIds.length + 1);
+            encryptionMasterKeyIds[encryptionMasterKeyIds.length - 1] = input.getAdditionalEncryptId();
         }
 
         ArmoredOutputStream armorOut = null;
@@ -156,83 +211,92 @@ public class PgpSignEncryptOperation extends BaseOperation {
 
         /* Get keys for signature generation for later usage */
         CanonicalizedSecretKey signingKey = null;
+        int signatureHashAlgorithm = input.getSignatureHashAlgorithm();
         if (enableSignature) {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
-            try {
-                // fetch the indicated master key id (the one whose name we sign in)
-                CanonicalizedSecretKeyRing signingKeyRing =
-                        mProviderHelper.getCanonicalizedSecretKeyRing(input.getSignatureMasterKeyId());
-
-                // fetch the specific subkey to sign with, or just use the master key if none specified
-                signingKey = signingKeyRing.getSecretKey(input.getSignatureSubKeyId());
+            if (mKeyCache != null && mKeyCache.mSigningKey != null) {
+                // already unlocked for a previous input
+                signingKey = mKeyCache.mSigningKey;
+            } else {
+                try {
+                    // fetch the indicated master key id (the one whose name we sign in)
+                    CanonicalizedSecretKeyRing signingKeyRing =
+                            mProviderHelper.getCanonicalizedSecretKeyRing(input.getSignatureMasterKeyId());
 
-                // Make sure we are allowed to sign here!
-                if (!signingKey.canSign()) {
-                    log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
-                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                }
+                    // fetch the specific subkey to sign with, or just use the master key if none specified
+                    signingKey = signingKeyRing.getSecretKey(input.getSignatureSubKeyId());
 
-                switch (signingKey.getSecretKeyType()) {
-                    case DIVERT_TO_CARD:
-                    case PASSPHRASE_EMPTY: {
-                        if (!signingKey.unlock(new Passphrase())) {
-                            throw new AssertionError(
-                                    "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
-                                            + " This is a programming error!");
-                        }
-                        break;
+                    // Make sure we are allowed to sign here!
+                    if (!signingKey.canSign()) {
+                        log.add(LogType.MSG_PSE_ERROR_KEY_SIGN, indent);
+                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
 
-                    case PIN:
-                    case PATTERN:
-                    case PASSPHRASE: {
-                        Passphrase localPassphrase = cryptoInput.getPassphrase();
-                        if (localPassphrase == null) {
-                            try {
-                                localPassphrase = getCachedPassphrase(signingKeyRing.getMasterKeyId(), signingKey.getKeyId());
-                            } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                    switch (signingKey.getSecretKeyType()) {
+                        case DIVERT_TO_CARD:
+                        case PASSPHRASE_EMPTY: {
+                            if (!signingKey.unlock(new Passphrase())) {
+                                throw new AssertionError(
+                                        "PASSPHRASE_EMPTY/DIVERT_TO_CARD keyphrase not unlocked with empty passphrase."
+                                                + " This is a programming error!");
                             }
+                            break;
                         }
-                        if (localPassphrase == null) {
-                            log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
-                            return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
-                                    signingKeyRing.getMasterKeyId(), signingKey.getKeyId(),
-                                    cryptoInput.getSignatureTime()), cryptoInput);
+
+                        case PIN:
+                        case PATTERN:
+                        case PASSPHRASE: {
+                            Passphrase localPassphrase = cryptoInput.getPassphrase();
+                            if (localPassphrase == null) {
+                                try {
+                                    localPassphrase = getCachedPassphrase(signingKeyRing.getMasterKeyId(), signingKey.getKeyId());
+                                } catch (PassphraseCacheInterface.NoSecretKeyException ignored) {
+                                }
+                            }
+                            if (localPassphrase == null) {
+                                log.add(LogType.MSG_PSE_PENDING_PASSPHRASE, indent + 1);
+                                return new PgpSignEncryptResult(log, RequiredInputParcel.createRequiredSignPassphrase(
+                                        signingKeyRing.getMasterKeyId(), signingKey.getKeyId(),
+                                        cryptoInput.getSignatureTime()), cryptoInput);
+                            }
+                            if (!UnlockedKeyCache.unlock(mContext, signingKey, localPassphrase)) {
+                                log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
+                                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                            }
+                            break;
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
-                            log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
+
+                        case GNU_DUMMY: {
+                            log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
-                        break;
-                    }
+                        default: {
+                            throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
+                        }
 
-                    case GNU_DUMMY: {
-                        log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                        return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-                    }
-                    default: {
-                        throw new AssertionError("Unhandled SecretKeyType! (should not happen)");
                     }
 
+                } catch (ProviderHelper.NotFoundException e) {
+                    log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                } catch (PgpGeneralException e) {
+                    log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
+                    return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                 }
 
-            } catch (ProviderHelper.NotFoundException e) {
-                log.add(LogType.MSG_PSE_ERROR_SIGN_KEY, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
-            } catch (PgpGeneralException e) {
-                log.add(LogType.MSG_PSE_ERROR_UNLOCK, indent);
-                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+                if (mKeyCache != null) {
+                    mKeyCache.mSigningKey = signingKey;
+                }
             }
 
             // Use preferred hash algo
-            int requestedAlgorithm = input.getSignatureHashAlgorithm();
             ArrayList<Integer> supported = signingKey.getSupportedHashAlgorithms();
-            if (requestedAlgorithm == PgpConstants.OpenKeychainHashAlgorithmTags.USE_PREFERRED) {
+            if (signatureHashAlgorithm == PgpConstants.OpenKeychainHashAlgorithmTags.USE_PREFERRED) {
                 // get most preferred
-                input.setSignatureHashAlgorithm(supported.get(0));
-            } else if (!supported.contains(requestedAlgorithm)) {
+                signatureHashAlgorithm = supported.get(0);
+            } else if (!supported.contains(signatureHashAlgorithm)) {
                 log.add(LogType.MSG_PSE_ERROR_HASH_ALGO, indent);
                 return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
             }
@@ -269,10 +333,9 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
                 // Asymmetric encryption
-                for (long id : input.getEncryptionMasterKeyIds()) {
+                for (long id : encryptionMasterKeyIds) {
                     try {
-                        CanonicalizedPublicKeyRing keyRing = mProviderHelper.getCanonicalizedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
+                        CanonicalizedPublicKeyRing keyRing = getEncryptionKeyRing(id);
                         Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
                         for (Long subKeyId : encryptSubKeyIds) {
                             CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
@@ -306,7 +369,7 @@ public class PgpSignEncryptOperation extends BaseOperation {
             try {
                 boolean cleartext = input.isCleartextSignature() && input.isEnableAsciiArmorOutput() && !enableEncryption;
                 signatureGenerator = signingKey.getDataSignatureGenerator(
-                        input.getSignatureHashAlgorithm(), cleartext,
+                        signatureHashAlgorithm, cleartext,
                         cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
             } catch (PgpGeneralException e) {
                 log.add(LogType.MSG_PSE_ERROR_NFC, indent);
@@ -390,31 +453,28 @@ public class PgpSignEncryptOperation extends BaseOperation {
                 log.add(LogType.MSG_PSE_SIGNING_CLEARTEXT, indent);
 
                 // write -----BEGIN PGP SIGNED MESSAGE-----
-                armorOut.beginClearText(input.getSignatureHashAlgorithm());
+                armorOut.beginClearText(signatureHashAlgorithm);
 
                 InputStream in = inputData.getInputStream();
-                final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                final CleartextLineReader reader = new CleartextLineReader(in);
 
                 // update signature buffer with first line
-                processLine(reader.readLine(), armorOut, signatureGenerator);
+                if (reader.readLine()) {
+                    processLine(reader.mLine, reader.mLineLength, armorOut, signatureGenerator);
+                }
 
                 // TODO: progress: fake annealing?
-                while (true) {
-                    String line = reader.readLine();
-
-                    // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                    if (line == null) {
-                        armorOut.write(NEW_LINE);
-                        break;
-                    }
-
+                while (reader.readLine()) {
                     armorOut.write(NEW_LINE);
 
                     // update signature buffer with input line
                     signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
+                    processLine(reader.mLine, reader.mLineLength, armorOut, signatureGenerator);
                 }
 
+                // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
+                armorOut.write(NEW_LINE);
+
                 armorOut.endClearText();
 
                 pOut = new BCPGOutputStream(armorOut);
@@ -571,6 +631,186 @@ public class PgpSignEncryptOperation extends BaseOperation {
         return result;
     }
 
+    /**
+     * Reads lines from an InputStream into a reusable byte buffer, splitting on the same line
+     * terminators as BufferedReader.readLine does ("\n", "\r" or "\r\n").
+     */
+    private static class CleartextLineReader {
+        private final InputStream mIn;
+        private final byte[] mReadBuffer = new byte[1 << 16];
+        private int mReadPos;
+        private int mReadLength;
+        private boolean mSkipLf;
+
+        byte[] mLine = new byte[256];
+        int mLineLength;
+
+        CleartextLineReader(InputStream in) {
+            mIn = in;
+        }
+
+        /**
+         * Reads the next line, without its terminator, into mLine and mLineLength.
+         *
+         * @return false if the end of the stream was reached before any data was read
+         */
+        boolean readLine() throws IOException {
+            mLineLength = 0;
+            boolean readAny = false;
+            while (true) {
+                if (mReadPos >= mReadLength) {
+                    mReadLength = mIn.read(mReadBuffer);
+                    mReadPos = 0;
+                    if (mReadLength == -1) {
+                        mReadLength = 0;
+                        return readAny;
+                    }
+                    continue;
+                }
+
+                // skip the '\n' of a "\r\n" terminator
+                if (mSkipLf) {
+                    mSkipLf = false;
+                    if (mReadBuffer[mReadPos] == '\n') {
+                        mReadPos++;
+                        continue;
+                    }
+                }
+                readAny = true;
+
+                int end = mReadPos;
+                while (end < mReadLength && mReadBuffer[end] != '\n' && mReadBuffer[end] != '\r') {
+                    end++;
+                }
+                append(mReadPos, end - mReadPos);
+
+                if (end < mReadLength) {
+                    mSkipLf = mReadBuffer[end] == '\r';
+                    mReadPos = end + 1;
+                    return true;
+                }
+                mReadPos = end;
+            }
+        }
+
+        private void append(int offset, int length) {
+            if (mLineLength + length > mLine.length) {
+                mLine = Arrays.copyOf(mLine, Math.max(mLine.length * 2, mLineLength + length));
+            }
+            System.arraycopy(mReadBuffer, offset, mLine, mLineLength, length);
+            mLineLength += length;
+        }
+    }
+
+    /**
+     * Remove whitespaces on line endings
+     *
+     * Lines are written as they are if they are valid UTF-8, which is what decoding them with the
+     * platform charset and encoding them again as UTF-8 would have resulted in. Anything else
+     * takes the detour through a String, so the output is the same in both cases.
+     */
+    private static void processLine(final byte[] pLine, final int pLength,
+                                    final ArmoredOutputStream pArmoredOutput,
+                                    final PGPSignatureGenerator pSignatureGenerator)
+            throws IOException, SignatureException {
+
+        if (!PLATFORM_CHARSET_UTF8 || !isValidUtf8(pLine, pLength)) {
+            processLine(new String(pLine, 0, pLength), pArmoredOutput, pSignatureGenerator);
+            return;
+        }
+
+        int len = pLength;
+        while (len > 0) {
+            int b = pLine[len - 1] & 0xff;
+            if (b < 0x80) {
+                if (!Character.isWhitespace((char) b)) {
+                    break;
+                }
+                len--;
+                continue;
+            }
+
+            // find the first byte of this multibyte sequence
+            int start = len - 1;
+            while ((pLine[start] & 0xc0) == 0x80) {
+                start--;
+            }
+
+            char c;
+            if (len - start == 2) {
+                c = (char) (((pLine[start] & 0x1f) << 6) | (pLine[start + 1] & 0x3f));
+            } else if (len - start == 3) {
+                c = (char) (((pLine[start] & 0x0f) << 12) | ((pLine[start + 1] & 0x3f) << 6)
+                        | (pLine[start + 2] & 0x3f));
+            } else {
+                // supplementary code point, its low surrogate is never whitespace
+                break;
+            }
+            if (!Character.isWhitespace(c)) {
+                break;
+            }
+            len = start;
+        }
+
+        if (pArmoredOutput != null) {
+            pArmoredOutput.write(pLine, 0, len);
+        }
+        pSignatureGenerator.update(pLine, 0, len);
+    }
+
+    /**
+     * Checks for well-formed UTF-8 in the same way the platform decoder does, i.e. rejecting
+     * overlong encodings, surrogates and code points above U+10FFFF.
+     */
+    private static boolean isValidUtf8(final byte[] data, final int length) {
+        int i = 0;
+        while (i < length) {
+            int b = data[i] & 0xff;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+
+            int continuation;
+            int min = 0x80;
+            int max = 0xbf;
+            if (b >= 0xc2 && b <= 0xdf) {
+                continuation = 1;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                continuation = 2;
+                if (b == 0xe0) {
+                    min = 0xa0;
+                } else if (b == 0xed) {
+                    max = 0x9f;
+                }
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                continuation = 3;
+                if (b == 0xf0) {
+                    min = 0x90;
+                } else if (b == 0xf4) {
+                    max = 0x8f;
+                }
+            } else {
+                return false;
+            }
+
+            if (i + continuation >= length) {
+                return false;
+            }
+            int second = data[i + 1] & 0xff;
+            if (second < min || second > max) {
+                return false;
+            }
+            for (int j = 2; j <= continuation; j++) {
+                if ((data[i + j] & 0xc0) != 0x80) {
+                    return false;
+                }
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+
     /**
      * Remove whitespaces on line endings
      */
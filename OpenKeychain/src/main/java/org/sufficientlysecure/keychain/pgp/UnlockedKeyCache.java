@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/**
+ * An in-process cache of unlocked private keys, keyed by subkey id.
+ *
+ * Unlocking a secret key requires a full S2K derivation, which is by far the most expensive
+ * part of decrypting or signing a short message. If enabled in the preferences, keys which
+ * were unlocked once are kept here for the same time a passphrase is kept in the
+ * PassphraseCacheService, so subsequent operations can skip the derivation.
+ *
+ * A cached key is only handed out for the same passphrase it was unlocked with. Since
+ * PgpDecryptVerify and PgpSignEncryptOperation still obtain the passphrase first, a key whose
+ * passphrase was cleared from or timed out of the PassphraseCacheService is never used again.
+ * The PassphraseCacheService additionally broadcasts its clear and timeout events, which
+ * removes the affected keys from this cache in every process that holds any.
+ *
+ * Note that PGPPrivateKey objects hold their key material in immutable BigIntegers, so
+ * "wiping" here means dropping all references to them as early as possible.
+ */
+public class UnlockedKeyCache {
+
+    public static final String BROADCAST_ACTION_UNLOCKED_KEY_CACHE_CLEAR = Constants.INTENT_PREFIX
+            + "UNLOCKED_KEY_CACHE_CLEAR";
+    public static final String EXTRA_KEY_ID = "key_id";
+
+    private static final LongSparseArray<CachedPrivateKey> sCache = new LongSparseArray<>();
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private static Handler sHandler;
+    private static BroadcastReceiver sClearReceiver;
+
+    private static final Runnable sExpireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    private static class CachedPrivateKey {
+        final long mMasterKeyId;
+        final byte[] mSalt;
+        final byte[] mPassphraseHash;
+        PGPPrivateKey mPrivateKey;
+        long mExpiry;
+
+        CachedPrivateKey(long masterKeyId, PGPPrivateKey privateKey, Passphrase passphrase) {
+            mMasterKeyId = masterKeyId;
+            mPrivateKey = privateKey;
+            mSalt = new byte[16];
+            sRandom.nextBytes(mSalt);
+            mPassphraseHash = hashPassphrase(mSalt, passphrase);
+        }
+
+        boolean matches(Passphrase passphrase) {
+            return MessageDigest.isEqual(mPassphraseHash, hashPassphrase(mSalt, passphrase));
+        }
+
+        void wipe() {
+            mPrivateKey = null;
+        }
+    }
+
+    private UnlockedKeyCache() {
+    }
+
+    /**
+     * Unlocks a secret key, taking its private key from the cache if it was unlocked with the
+     * same passphrase before. If caching is disabled, this is the same as calling
+     * CanonicalizedSecretKey.unlock directly.
+     *
+     * @return true on right passphrase
+     */
+    public static boolean unlock(Context context, CanonicalizedSecretKey secretKey,
+                                 Passphrase passphrase) throws PgpGeneralException {
+        Preferences prefs = Preferences.getPreferences(context);
+        if (!prefs.getPassphraseCacheUnlocked() || passphrase == null) {
+            return secretKey.unlock(passphrase);
+        }
+
+        long subKeyId = secretKey.getKeyId();
+        long ttl = prefs.getPassphraseCacheTtl() * 1000;
+
+        synchronized (sCache) {
+            CachedPrivateKey cached = sCache.get(subKeyId);
+            if (cached != null && cached.mExpiry > SystemClock.elapsedRealtime()
+                    && cached.matches(passphrase)) {
+                Log.d(Constants.TAG, "UnlockedKeyCache: using unlocked key for " + subKeyId);
+                // reset the life cycle, same as the passphrase cache does on every get
+                cached.mExpiry = SystemClock.elapsedRealtime() + ttl;
+                secretKey.unlock(cached.mPrivateKey);
+                return true;
+            }
+        }
+
+        if (!secretKey.unlock(passphrase)) {
+            return false;
+        }
+
+        // keys on cards have no private key to cache
+        PGPPrivateKey privateKey = secretKey.getPrivateKey();
+        if (privateKey == null) {
+            return true;
+        }
+
+        synchronized (sCache) {
+            CachedPrivateKey cached =
+                    new CachedPrivateKey(secretKey.getRing().getMasterKeyId(), privateKey, passphrase);
+            cached.mExpiry = SystemClock.elapsedRealtime() + ttl;
+            CachedPrivateKey old = sCache.get(subKeyId);
+            if (old != null) {
+                old.wipe();
+            }
+            sCache.put(subKeyId, cached);
+
+            registerClearReceiver(context);
+            scheduleExpiry(ttl);
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes all keys with the given master key or subkey id from the cache of this process.
+     */
+    public static void clear(long keyId) {
+        synchronized (sCache) {
+            for (int i = sCache.size() - 1; i >= 0; i--) {
+                CachedPrivateKey cached = sCache.valueAt(i);
+                if (sCache.keyAt(i) == keyId || cached.mMasterKeyId == keyId) {
+                    cached.wipe();
+                    sCache.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all keys from the cache of this process.
+     */
+    public static void clear() {
+        synchronized (sCache) {
+            for (int i = 0; i < sCache.size(); i++) {
+                sCache.valueAt(i).wipe();
+            }
+            sCache.clear();
+        }
+    }
+
+    /**
+     * Asks all processes of this app to clear their caches, for either all keys or only those
+     * with the given master key or subkey id.
+     */
+    public static void broadcastClear(Context context, Long keyId) {
+        Intent intent = new Intent(BROADCAST_ACTION_UNLOCKED_KEY_CACHE_CLEAR);
+        intent.setPackage(context.getPackageName());
+        if (keyId != null) {
+            intent.putExtra(EXTRA_KEY_ID, keyId);
+        }
+        context.sendBroadcast(intent);
+    }
+
+    private static void expire() {
+        synchronized (sCache) {
+            long now = SystemClock.elapsedRealtime();
+            long nextExpiry = Long.MAX_VALUE;
+            for (int i = sCache.size() - 1; i >= 0; i--) {
+                CachedPrivateKey cached = sCache.valueAt(i);
+                if (cached.mExpiry <= now) {
+                    Log.d(Constants.TAG, "UnlockedKeyCache: timeout of " + sCache.keyAt(i));
+                    cached.wipe();
+                    sCache.removeAt(i);
+                } else {
+                    nextExpiry = Math.min(nextExpiry, cached.mExpiry);
+                }
+            }
+            if (nextExpiry != Long.MAX_VALUE) {
+                scheduleExpiry(nextExpiry - now);
+            }
+        }
+    }
+
+    private static void scheduleExpiry(long delay) {
+        if (sHandler == null) {
+            sHandler = new Handler(Looper.getMainLooper());
+        }
+        sHandler.removeCallbacks(sExpireRunnable);
+        sHandler.postDelayed(sExpireRunnable, delay);
+    }
+
+    private static void registerClearReceiver(Context context) {
+        if (sClearReceiver != null) {
+            return;
+        }
+        sClearReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.hasExtra(EXTRA_KEY_ID)) {
+                    clear(intent.getLongExtra(EXTRA_KEY_ID, 0L));
+                } else {
+                    clear();
+                }
+            }
+        };
+        context.getApplicationContext().registerReceiver(sClearReceiver,
+                new IntentFilter(BROADCAST_ACTION_UNLOCKED_KEY_CACHE_CLEAR));
+    }
+
+    private static byte[] hashPassphrase(byte[] salt, Passphrase passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            for (char c : passphrase.getCharArray()) {
+                digest.update((byte) (c >> 8));
+                digest.update((byte) c);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not available!");
+        }
+    }
+
+}
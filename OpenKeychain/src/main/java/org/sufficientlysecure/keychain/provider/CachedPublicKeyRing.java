@@ -21,6 +21,8 @@ package org.sufficientlysecure.keychain.provider;
 import android.database.Cursor;
 import android.net.Uri;
 
+import java.util.HashMap;
+
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
@@ -48,19 +50,65 @@ import org.sufficientlysecure.keychain.util.Log;
  */
 public class CachedPublicKeyRing extends KeyRing {
 
+    /** Columns which are loaded by snapshot(), these cover all getters of this class. */
+    static final String[] SNAPSHOT_PROJECTION = new String[] {
+            KeyRings.MASTER_KEY_ID, KeyRings.FINGERPRINT, KeyRings.USER_ID, KeyRings.IS_REVOKED,
+            KeyRings.HAS_CERTIFY, KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN, KeyRings.VERIFIED,
+            KeyRings.HAS_ANY_SECRET
+    };
+    static final int[] SNAPSHOT_TYPES = new int[] {
+            ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_BLOB,
+            ProviderHelper.FIELD_TYPE_STRING, ProviderHelper.FIELD_TYPE_INTEGER,
+            ProviderHelper.FIELD_TYPE_NULL, ProviderHelper.FIELD_TYPE_INTEGER,
+            ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_INTEGER,
+            ProviderHelper.FIELD_TYPE_INTEGER
+    };
+
     final ProviderHelper mProviderHelper;
     final Uri mUri;
+    private HashMap<String, Object> mSnapshot;
 
     public CachedPublicKeyRing(ProviderHelper providerHelper, Uri uri) {
         mProviderHelper = providerHelper;
         mUri = uri;
     }
 
+    CachedPublicKeyRing(ProviderHelper providerHelper, Uri uri, HashMap<String, Object> snapshot) {
+        mProviderHelper = providerHelper;
+        mUri = uri;
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Loads all data provided by the getters of this class with a single query. Subsequent
+     * calls to these getters don't query the database, but return the data as of this call.
+     *
+     * @return this object, for chaining
+     */
+    public CachedPublicKeyRing snapshot() throws PgpKeyNotFoundException {
+        try {
+            mSnapshot = mProviderHelper.getGenericData(mUri, SNAPSHOT_PROJECTION, SNAPSHOT_TYPES);
+            return this;
+        } catch (ProviderHelper.NotFoundException e) {
+            throw new PgpKeyNotFoundException(e);
+        }
+    }
+
+    private Object getData(String column, int type) throws ProviderHelper.NotFoundException {
+        if (mSnapshot == null) {
+            return mProviderHelper.getGenericData(mUri, column, type);
+        }
+        // a column which is null in the database is null here as well, just like above
+        if (!mSnapshot.containsKey(column)) {
+            throw new ProviderHelper.NotFoundException();
+        }
+        return mSnapshot.get(column);
+    }
+
     @Override
     public long getMasterKeyId() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
+            Object data = getData(KeychainContract.KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
             return (Long) data;
         } catch (ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -85,8 +133,7 @@ public class CachedPublicKeyRing extends KeyRing {
 
     public byte[] getFingerprint() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.FINGERPRINT, ProviderHelper.FIELD_TYPE_BLOB);
+            Object data = getData(KeychainContract.KeyRings.FINGERPRINT, ProviderHelper.FIELD_TYPE_BLOB);
             return (byte[]) data;
         } catch (ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -96,9 +143,7 @@ public class CachedPublicKeyRing extends KeyRing {
     @Override
     public String getPrimaryUserId() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.USER_ID,
-                    ProviderHelper.FIELD_TYPE_STRING);
+            Object data = getData(KeychainContract.KeyRings.USER_ID, ProviderHelper.FIELD_TYPE_STRING);
             return (String) data;
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -112,9 +157,7 @@ public class CachedPublicKeyRing extends KeyRing {
     @Override
     public boolean isRevoked() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.IS_REVOKED,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
+            Object data = getData(KeychainContract.KeyRings.IS_REVOKED, ProviderHelper.FIELD_TYPE_INTEGER);
             return (Long) data > 0;
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -124,9 +167,7 @@ public class CachedPublicKeyRing extends KeyRing {
     @Override
     public boolean canCertify() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.HAS_CERTIFY,
-                    ProviderHelper.FIELD_TYPE_NULL);
+            Object data = getData(KeychainContract.KeyRings.HAS_CERTIFY, ProviderHelper.FIELD_TYPE_NULL);
             return !((Boolean) data);
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -136,9 +177,7 @@ public class CachedPublicKeyRing extends KeyRing {
     @Override
     public long getEncryptId() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeyRings.HAS_ENCRYPT,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
+            Object data = getData(KeyRings.HAS_ENCRYPT, ProviderHelper.FIELD_TYPE_INTEGER);
             return (Long) data;
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -158,9 +197,7 @@ public class CachedPublicKeyRing extends KeyRing {
      */
     public long getSecretSignId() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeyRings.HAS_SIGN,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
+            Object data = getData(KeyRings.HAS_SIGN, ProviderHelper.FIELD_TYPE_INTEGER);
             return (Long) data;
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -170,10 +207,8 @@ public class CachedPublicKeyRing extends KeyRing {
     @Override
     public int getVerified() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.VERIFIED,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Integer) data;
+            Object data = getData(KeychainContract.KeyRings.VERIFIED, ProviderHelper.FIELD_TYPE_INTEGER);
+            return ((Long) data).intValue();
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
         }
@@ -181,9 +216,7 @@ public class CachedPublicKeyRing extends KeyRing {
 
     public boolean hasAnySecret() throws PgpKeyNotFoundException {
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.HAS_ANY_SECRET,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
+            Object data = getData(KeychainContract.KeyRings.HAS_ANY_SECRET, ProviderHelper.FIELD_TYPE_INTEGER);
             return (Long) data > 0;
         } catch(ProviderHelper.NotFoundException e) {
             throw new PgpKeyNotFoundException(e);
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+/**
+ * A process-wide LRU cache of parsed key rings, keyed by master key id.
+ *
+ * Parsing a key ring from its blob means parsing all of its packets, and the same few keys are
+ * used over and over again for decryption, verification and certification. The size of the
+ * cache is bounded by the encoded size of the cached rings, at a fraction of the available heap.
+ *
+ * Any change to the key rings in the database drops the whole cache. Changes are noticed
+ * directly by the KeychainProvider, and through a ContentObserver in all other processes. A
+ * generation counter makes sure a ring which was read before such a change is not put into
+ * the cache afterwards.
+ *
+ * Secret key rings are not cached unless explicitly enabled with setCacheSecretKeyRings.
+ */
+public class KeyRingCache {
+
+    private static final int MIN_CACHE_SIZE = 256 * 1024;
+
+    private static final LruCache<Long, CacheEntry> sPublicKeyRings = new KeyRingLruCache();
+    private static final LruCache<Long, CacheEntry> sSecretKeyRings = new KeyRingLruCache();
+
+    private static int sGeneration = 0;
+    private static volatile boolean sCacheSecretKeyRings = false;
+    private static ContentObserver sObserver;
+
+    private static class CacheEntry {
+        final CanonicalizedKeyRing mKeyRing;
+        final int mSize;
+
+        CacheEntry(CanonicalizedKeyRing keyRing, int size) {
+            mKeyRing = keyRing;
+            mSize = size;
+        }
+    }
+
+    private static class KeyRingLruCache extends LruCache<Long, CacheEntry> {
+        KeyRingLruCache() {
+            super((int) Math.max(MIN_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 64));
+        }
+
+        @Override
+        protected int sizeOf(Long masterKeyId, CacheEntry entry) {
+            return entry.mSize;
+        }
+    }
+
+    private KeyRingCache() {
+    }
+
+    /**
+     * Returns the current generation, which must be obtained before reading a key ring from the
+     * database that is to be put into the cache.
+     */
+    static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    static CanonicalizedKeyRing get(long masterKeyId, boolean secret) {
+        if (secret && !sCacheSecretKeyRings) {
+            return null;
+        }
+        CacheEntry entry = (secret ? sSecretKeyRings : sPublicKeyRings).get(masterKeyId);
+        return entry != null ? entry.mKeyRing : null;
+    }
+
+    /**
+     * Puts a key ring into the cache, unless the cache was invalidated since the given
+     * generation was obtained.
+     *
+     * @param size the encoded size of the key ring
+     */
+    static void put(Context context, long masterKeyId, boolean secret,
+                    CanonicalizedKeyRing keyRing, int size, int generation) {
+        if (secret && !sCacheSecretKeyRings) {
+            return;
+        }
+        synchronized (KeyRingCache.class) {
+            if (generation != sGeneration) {
+                return;
+            }
+            registerObserver(context);
+            (secret ? sSecretKeyRings : sPublicKeyRings).put(masterKeyId, new CacheEntry(keyRing, size));
+        }
+    }
+
+    /**
+     * Drops all cached key rings.
+     */
+    public static void invalidate() {
+        synchronized (KeyRingCache.class) {
+            sGeneration += 1;
+            sPublicKeyRings.evictAll();
+            sSecretKeyRings.evictAll();
+        }
+    }
+
+    /**
+     * Enables or disables caching of secret key rings. Disabling drops all cached secret rings.
+     */
+    public static void setCacheSecretKeyRings(boolean enabled) {
+        sCacheSecretKeyRings = enabled;
+        if (!enabled) {
+            sSecretKeyRings.evictAll();
+        }
+    }
+
+    public static int getHitCount() {
+        return sPublicKeyRings.hitCount() + sSecretKeyRings.hitCount();
+    }
+
+    public static int getMissCount() {
+        return sPublicKeyRings.missCount() + sSecretKeyRings.missCount();
+    }
+
+    public static int getEvictionCount() {
+        return sPublicKeyRings.evictionCount() + sSecretKeyRings.evictionCount();
+    }
+
+    /** Returns the summed up encoded size of all cached key rings. */
+    public static int getSize() {
+        return sPublicKeyRings.size() + sSecretKeyRings.size();
+    }
+
+    private static void registerObserver(Context context) {
+        if (sObserver != null) {
+            return;
+        }
+        // without a handler, changes are delivered on a binder thread right away
+        sObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        context.getApplicationContext().getContentResolver()
+                .registerContentObserver(KeyRings.CONTENT_URI, true, sObserver);
+    }
+
+}
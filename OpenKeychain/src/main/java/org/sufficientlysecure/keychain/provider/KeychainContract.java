@@ -55,12 +55,43 @@ public class KeychainContract {
         String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
         String TYPE = "type"; // not a database id
         String USER_ID = "user_id"; // not a database id
+        String EMAIL = "email"; // lower-cased email part of the user id, for lookups
         String ATTRIBUTE_DATA = "attribute_data"; // not a database id
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
     }
 
+    interface KeySummariesColumns {
+        String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
+        // usable subkey which stays valid the longest, for each capability, and its expiry
+        String ENCRYPT_KEY_ID = "encrypt_key_id";
+        String ENCRYPT_EXPIRY = "encrypt_expiry";
+        String SIGN_KEY_ID = "sign_key_id";
+        String SIGN_EXPIRY = "sign_expiry";
+        String CERTIFY_KEY_ID = "certify_key_id";
+        String CERTIFY_EXPIRY = "certify_expiry";
+        String AUTHENTICATE_KEY_ID = "authenticate_key_id";
+        String AUTHENTICATE_EXPIRY = "authenticate_expiry";
+    }
+
+    interface UserIdCountsColumns {
+        String USER_ID = "user_id";
+        String MASTER_KEY_COUNT = "master_key_count"; // number of key rings with this primary user id
+    }
+
+    interface KeysSearchColumns {
+        // the docid of the full text search table is the master key id
+        String USER_IDS = "user_ids"; // all user ids of the key ring
+        String KEY_IDS = "key_ids"; // fingerprints, long and short key ids of all subkeys, in hex
+    }
+
+    interface KeyListColumns {
+        String MASTER_KEY_ID = "master_key_id";
+        String HAS_ANY_SECRET = "has_any_secret";
+        String SORT_USER_ID = "sort_user_id"; // upper case primary user id
+    }
+
     interface CertsColumns {
         String MASTER_KEY_ID = "master_key_id";
         String RANK = "rank";
@@ -102,12 +133,22 @@ public class KeychainContract {
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_BY_QUERY = "query";
+    public static final String PATH_BY_CERTIFIER = "certifier";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_CERTIFIERS = "certifiers";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_SEARCH = "search";
+
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_OFFSET = "offset";
+    public static final String PARAM_SECTIONS = "sections";
+    public static final String PARAM_LIST = "list";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
@@ -124,6 +165,10 @@ public class KeychainContract {
         public static final String HAS_CERTIFY = "has_certify";
         public static final String HAS_AUTHENTICATE = "has_authenticate";
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
+        // upper case first character of the user id, see buildSectionsUri
+        public static final String SECTION = "section";
+        // upper case primary user id, see buildListUri
+        public static final String SORT_USER_ID = KeyListColumns.SORT_USER_ID;
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
 
@@ -161,6 +206,12 @@ public class KeychainContract {
                     .appendPath(PATH_UNIFIED).build();
         }
 
+        /** Inserting into this uri recomputes the capability summary of a key ring. */
+        public static Uri buildKeySummaryUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SUMMARY).build();
+        }
+
         public static Uri buildUnifiedKeyRingsFindByEmailUri(String email) {
             return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
                     .appendPath(PATH_BY_EMAIL).appendPath(email).build();
@@ -171,6 +222,52 @@ public class KeychainContract {
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /**
+         * Builds the uri for key rings whose user ids or hex key ids contain words starting with
+         * each of the words of the search query. A query without any words is not a filter, the
+         * uri for all key rings is returned for that.
+         */
+        public static Uri buildUnifiedKeyRingsFindByQueryUri(String query) {
+            if (query == null || query.trim().length() == 0) {
+                return buildUnifiedKeyRingsUri();
+            }
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_QUERY).appendPath(query).build();
+        }
+
+        /**
+         * Builds a uri for a single page of the key rings of a unified key ring uri. Pages are
+         * only stable with a sort order which is unique for each key ring.
+         */
+        public static Uri buildPageUri(Uri uri, int offset, int limit) {
+            return uri.buildUpon()
+                    .appendQueryParameter(PARAM_OFFSET, Integer.toString(offset))
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        /**
+         * Builds a uri for the sections of a unified key ring uri, which has one row per
+         * distinct combination of HAS_ANY_SECRET and SECTION, with the number of key rings in
+         * it as _COUNT.
+         */
+        public static Uri buildSectionsUri(Uri uri) {
+            return uri.buildUpon().appendQueryParameter(PARAM_SECTIONS, "true").build();
+        }
+
+        /**
+         * Builds a uri for the list order of a unified key ring uri, which has one row of
+         * MASTER_KEY_ID, HAS_ANY_SECRET and SORT_USER_ID per key ring. Ordered by those
+         * columns, in this order and with HAS_ANY_SECRET descending, it is read from an index.
+         */
+        public static Uri buildListUri(Uri uri) {
+            return uri.buildUpon().appendQueryParameter(PARAM_LIST, "true").build();
+        }
+
+        public static Uri buildSearchIndexUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SEARCH).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -232,6 +329,15 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_KEYS).build();
         }
 
+        /**
+         * Keys with the given key id, looked up in the keys table only. Use this instead of
+         * KeyRings.buildUnifiedKeyRingsFindBySubkeyUri if only columns of the key are needed.
+         */
+        public static Uri buildKeysFindBySubkeyUri(long subkey) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_SUBKEY)
+                    .appendPath(Long.toString(subkey)).appendPath(PATH_KEYS).build();
+        }
+
     }
 
     public static class UserPackets implements UserPacketsColumns, BaseColumns {
@@ -353,6 +459,18 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_CERTS).build();
         }
 
+        /** Inserting a KEY_ID_CERTIFIER into this uri records that it certified the key ring. */
+        public static Uri buildCertifiersUri(long masterKeyId) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_CERTIFIERS).build();
+        }
+
+        /** Builds the uri for the MASTER_KEY_ID of all key rings certified by the given key. */
+        public static Uri buildFindByCertifierUri(long certifier) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND).appendPath(PATH_BY_CERTIFIER)
+                    .appendPath(Long.toString(certifier)).build();
+        }
+
     }
 
     private KeychainContract() {
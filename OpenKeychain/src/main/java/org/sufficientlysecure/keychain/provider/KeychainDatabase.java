@@ -18,11 +18,13 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -32,8 +34,12 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccounts
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAllowedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyListColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummariesColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeysSearchColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdCountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.util.Log;
@@ -53,7 +59,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 11;
+    private static final int DATABASE_VERSION = 18;
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -63,6 +69,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String USER_PACKETS = "user_packets";
         String CERTS = "certs";
+        String CERTIFIERS = "certifiers";
+        String USER_ID_COUNTS = "user_id_counts";
+        String KEY_SUMMARIES = "key_summaries";
+        String KEYS_SEARCH = "keys_search";
+        String KEY_LIST = "key_list";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -113,6 +124,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.MASTER_KEY_ID + " INTEGER, "
                 + UserPacketsColumns.TYPE + " INT, "
                 + UserPacketsColumns.USER_ID + " TEXT, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
                 + UserPacketsColumns.ATTRIBUTE_DATA + " BLOB, "
 
                 + UserPacketsColumns.IS_PRIMARY + " INTEGER, "
@@ -124,6 +136,210 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    private static final String CREATE_KEYS_KEY_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_key_id ON " + Tables.KEYS
+                + "(" + KeysColumns.KEY_ID + ")";
+
+    /**
+     * The usable subkey for each capability of a key ring, so the unified key ring query doesn't
+     * need to join the keys table against itself for each of them. Only expiry is checked at
+     * query time, which is why the subkey which stays valid the longest is picked: if that one
+     * is expired, so are all others.
+     */
+    private static final String CREATE_KEY_SUMMARIES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_SUMMARIES + "("
+                + KeySummariesColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeySummariesColumns.ENCRYPT_KEY_ID + " INTEGER, "
+                + KeySummariesColumns.ENCRYPT_EXPIRY + " INTEGER, "
+                + KeySummariesColumns.SIGN_KEY_ID + " INTEGER, "
+                + KeySummariesColumns.SIGN_EXPIRY + " INTEGER, "
+                + KeySummariesColumns.CERTIFY_KEY_ID + " INTEGER, "
+                + KeySummariesColumns.CERTIFY_EXPIRY + " INTEGER, "
+                + KeySummariesColumns.AUTHENTICATE_KEY_ID + " INTEGER, "
+                + KeySummariesColumns.AUTHENTICATE_EXPIRY + " INTEGER, "
+
+                + "FOREIGN KEY(" + KeySummariesColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    /**
+     * (Re)computes the summaries of all key rings, append a WHERE clause on ring.master_key_id
+     * to restrict this to some of them.
+     */
+    static final String UPDATE_KEY_SUMMARIES =
+            "INSERT OR REPLACE INTO " + Tables.KEY_SUMMARIES + " ("
+                + KeySummariesColumns.MASTER_KEY_ID + ", "
+                + KeySummariesColumns.ENCRYPT_KEY_ID + ", " + KeySummariesColumns.ENCRYPT_EXPIRY + ", "
+                + KeySummariesColumns.SIGN_KEY_ID + ", " + KeySummariesColumns.SIGN_EXPIRY + ", "
+                + KeySummariesColumns.CERTIFY_KEY_ID + ", " + KeySummariesColumns.CERTIFY_EXPIRY + ", "
+                + KeySummariesColumns.AUTHENTICATE_KEY_ID + ", " + KeySummariesColumns.AUTHENTICATE_EXPIRY
+            + ") SELECT ring." + KeyRingsColumns.MASTER_KEY_ID + ", "
+                + selectBestSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_ENCRYPT, false) + ", "
+                + selectBestSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_ENCRYPT, false) + ", "
+                + selectBestSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_SIGN, true) + ", "
+                + selectBestSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_SIGN, true) + ", "
+                + selectBestSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_CERTIFY, true) + ", "
+                + selectBestSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_CERTIFY, true) + ", "
+                + selectBestSubkey(KeysColumns.KEY_ID, KeysColumns.CAN_AUTHENTICATE, true) + ", "
+                + selectBestSubkey(KeysColumns.EXPIRY, KeysColumns.CAN_AUTHENTICATE, true)
+            + " FROM " + Tables.KEY_RINGS_PUBLIC + " AS ring";
+
+    private static String selectBestSubkey(String column, String capability, boolean needsSecret) {
+        return "(SELECT " + column + " FROM " + Tables.KEYS
+                + " WHERE " + KeysColumns.MASTER_KEY_ID + " = ring." + KeyRingsColumns.MASTER_KEY_ID
+                + " AND " + KeysColumns.IS_REVOKED + " = 0"
+                + " AND " + capability + " = 1"
+                + (needsSecret ? " AND " + KeysColumns.HAS_SECRET + " > 1" : "")
+                // no expiry first, then latest expiry, then latest creation
+                + " ORDER BY " + KeysColumns.EXPIRY + " IS NOT NULL, " + KeysColumns.EXPIRY + " DESC, "
+                    + KeysColumns.CREATION + " DESC"
+                + " LIMIT 1)";
+    }
+
+    /**
+     * Full text index over the user ids and hex key ids of each key ring, for prefix searches
+     * in key lists. Rows are added when a key ring is saved, and removed by a trigger when it
+     * is deleted, since virtual tables don't take part in foreign key cascades.
+     */
+    private static final String CREATE_KEYS_SEARCH =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.KEYS_SEARCH + " USING fts4("
+                + KeysSearchColumns.USER_IDS + ", "
+                + KeysSearchColumns.KEY_IDS
+            + ")";
+
+    private static final String CREATE_KEYS_SEARCH_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS keys_search_delete"
+                + " AFTER DELETE ON " + Tables.KEY_RINGS_PUBLIC
+            + " BEGIN"
+                + " DELETE FROM " + Tables.KEYS_SEARCH
+                    + " WHERE docid = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
+    /**
+     * Indexes all key rings, append a WHERE clause on ring.master_key_id to restrict this to
+     * some of them. Existing rows must be deleted first.
+     */
+    static final String INSERT_KEYS_SEARCH =
+            "INSERT INTO " + Tables.KEYS_SEARCH + " ("
+                + "docid, " + KeysSearchColumns.USER_IDS + ", " + KeysSearchColumns.KEY_IDS
+            + ") SELECT ring." + KeyRingsColumns.MASTER_KEY_ID + ", "
+                + "(SELECT GROUP_CONCAT(" + UserPacketsColumns.USER_ID + ", ' ')"
+                    + " FROM " + Tables.USER_PACKETS
+                    + " WHERE " + UserPacketsColumns.MASTER_KEY_ID + " = ring." + KeyRingsColumns.MASTER_KEY_ID
+                + "), "
+                // the key ids are the low order bytes of the fingerprint
+                + "(SELECT GROUP_CONCAT(HEX(" + KeysColumns.FINGERPRINT + ")"
+                        + " || ' ' || SUBSTR(HEX(" + KeysColumns.FINGERPRINT + "), -16)"
+                        + " || ' ' || SUBSTR(HEX(" + KeysColumns.FINGERPRINT + "), -8), ' ')"
+                    + " FROM " + Tables.KEYS
+                    + " WHERE " + KeysColumns.MASTER_KEY_ID + " = ring." + KeyRingsColumns.MASTER_KEY_ID
+                + ")"
+            + " FROM " + Tables.KEY_RINGS_PUBLIC + " AS ring";
+
+    private static final String CREATE_USER_PACKETS_EMAIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS user_packets_email ON " + Tables.USER_PACKETS
+                + "(" + UserPacketsColumns.EMAIL + ")";
+
+    /**
+     * Number of key rings per primary user id, which is used to flag duplicate user ids in key
+     * lists. It is kept up to date by triggers on the user_packets table, which also catch
+     * user packets deleted by a cascade.
+     */
+    private static final String CREATE_USER_ID_COUNTS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.USER_ID_COUNTS + "("
+                + UserIdCountsColumns.USER_ID + " TEXT PRIMARY KEY, "
+                + UserIdCountsColumns.MASTER_KEY_COUNT + " INTEGER NOT NULL"
+            + ")";
+
+    private static final String CREATE_USER_ID_COUNTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_id_counts_insert"
+                + " AFTER INSERT ON " + Tables.USER_PACKETS
+                + " WHEN new." + UserPacketsColumns.RANK + " = 0"
+            + " BEGIN"
+                + " INSERT OR IGNORE INTO " + Tables.USER_ID_COUNTS + " VALUES ("
+                    + "new." + UserPacketsColumns.USER_ID + ", 0);"
+                + " UPDATE " + Tables.USER_ID_COUNTS
+                    + " SET " + UserIdCountsColumns.MASTER_KEY_COUNT
+                        + " = " + UserIdCountsColumns.MASTER_KEY_COUNT + " + 1"
+                    + " WHERE " + UserIdCountsColumns.USER_ID + " = new." + UserPacketsColumns.USER_ID + ";"
+            + " END";
+
+    private static final String CREATE_USER_ID_COUNTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_id_counts_delete"
+                + " AFTER DELETE ON " + Tables.USER_PACKETS
+                + " WHEN old." + UserPacketsColumns.RANK + " = 0"
+            + " BEGIN"
+                + " UPDATE " + Tables.USER_ID_COUNTS
+                    + " SET " + UserIdCountsColumns.MASTER_KEY_COUNT
+                        + " = " + UserIdCountsColumns.MASTER_KEY_COUNT + " - 1"
+                    + " WHERE " + UserIdCountsColumns.USER_ID + " = old." + UserPacketsColumns.USER_ID + ";"
+                + " DELETE FROM " + Tables.USER_ID_COUNTS
+                    + " WHERE " + UserIdCountsColumns.USER_ID + " = old." + UserPacketsColumns.USER_ID
+                    + " AND " + UserIdCountsColumns.MASTER_KEY_COUNT + " <= 0;"
+            + " END";
+
+    /**
+     * Sort keys of all key rings for the key list, with an index in list order, so pages of
+     * the list can be looked up without sorting the joined key rings. It is kept up to date by
+     * triggers, a row is (re)inserted with the primary user id and removed by the cascade.
+     */
+    private static final String CREATE_KEY_LIST =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_LIST + "("
+                + KeyListColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeyListColumns.HAS_ANY_SECRET + " INTEGER NOT NULL, "
+                + KeyListColumns.SORT_USER_ID + " TEXT, "
+
+                + "FOREIGN KEY(" + KeyListColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_KEY_LIST_ORDER_INDEX =
+            "CREATE INDEX IF NOT EXISTS key_list_order ON " + Tables.KEY_LIST + "("
+                + KeyListColumns.HAS_ANY_SECRET + " DESC, "
+                + KeyListColumns.SORT_USER_ID + ", "
+                + KeyListColumns.MASTER_KEY_ID
+            + ")";
+
+    /** Fills in the rows for all key rings, existing rows are replaced. */
+    private static final String INSERT_KEY_LIST =
+            "INSERT OR REPLACE INTO " + Tables.KEY_LIST
+            + " SELECT " + UserPacketsColumns.MASTER_KEY_ID + ", "
+                + "EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
+                    + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingsColumns.MASTER_KEY_ID
+                        + " = " + Tables.USER_PACKETS + "." + UserPacketsColumns.MASTER_KEY_ID + "), "
+                + "UPPER(" + UserPacketsColumns.USER_ID + ")"
+            + " FROM " + Tables.USER_PACKETS
+            + " WHERE " + UserPacketsColumns.RANK + " = 0";
+
+    private static final String CREATE_KEY_LIST_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS key_list_insert"
+                + " AFTER INSERT ON " + Tables.USER_PACKETS
+                + " WHEN new." + UserPacketsColumns.RANK + " = 0"
+            + " BEGIN"
+                + " INSERT OR REPLACE INTO " + Tables.KEY_LIST + " VALUES ("
+                    + "new." + UserPacketsColumns.MASTER_KEY_ID + ", "
+                    + "EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
+                        + " WHERE " + KeyRingsColumns.MASTER_KEY_ID
+                            + " = new." + UserPacketsColumns.MASTER_KEY_ID + "), "
+                    + "UPPER(new." + UserPacketsColumns.USER_ID + "));"
+            + " END";
+
+    private static final String CREATE_KEY_LIST_SECRET_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS key_list_secret_insert"
+                + " AFTER INSERT ON " + Tables.KEY_RINGS_SECRET
+            + " BEGIN"
+                + " UPDATE " + Tables.KEY_LIST + " SET " + KeyListColumns.HAS_ANY_SECRET + " = 1"
+                    + " WHERE " + KeyListColumns.MASTER_KEY_ID + " = new." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
+    private static final String CREATE_KEY_LIST_SECRET_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS key_list_secret_delete"
+                + " AFTER DELETE ON " + Tables.KEY_RINGS_SECRET
+            + " BEGIN"
+                + " UPDATE " + Tables.KEY_LIST + " SET " + KeyListColumns.HAS_ANY_SECRET + " = 0"
+                    + " WHERE " + KeyListColumns.MASTER_KEY_ID + " = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -144,6 +360,25 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.USER_PACKETS + "(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ") ON DELETE CASCADE"
             + ")";
 
+    /**
+     * The ids of all keys which certified any user packet of a key ring, no matter if the
+     * certification could be verified. Unlike the certs table, this tells which key rings need
+     * to be checked again once a secret key is added.
+     */
+    private static final String CREATE_CERTIFIERS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.CERTIFIERS + "("
+                + CertsColumns.MASTER_KEY_ID + " INTEGER, "
+                + CertsColumns.KEY_ID_CERTIFIER + " INTEGER, "
+                + "PRIMARY KEY(" + CertsColumns.MASTER_KEY_ID + ", "
+                    + CertsColumns.KEY_ID_CERTIFIER + "), "
+                + "FOREIGN KEY(" + CertsColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_CERTIFIERS_INDEX =
+            "CREATE INDEX IF NOT EXISTS certifiers_key_id_certifier ON " + Tables.CERTIFIERS
+                + "(" + CertsColumns.KEY_ID_CERTIFIER + ")";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -183,6 +418,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
 
+        // readers see the last commit while a write is in progress, instead of waiting for it
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+
         // make sure this is only done once, on the first instance!
         boolean iAmIt = false;
         synchronized (KeychainDatabase.class) {
@@ -204,11 +444,23 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_PUBLIC);
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
+        db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+        createUserIdCounts(db);
+        db.execSQL(CREATE_KEY_SUMMARIES);
+        createKeysSearch(db);
+        createKeyList(db);
         db.execSQL(CREATE_CERTS);
+        db.execSQL(CREATE_CERTIFIERS);
+        db.execSQL(CREATE_CERTIFIERS_INDEX);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
+
+        // a fresh database has no trusted or cached keys
+        ProviderHelper.invalidateTrustedMasterKeys();
+        KeyRingCache.invalidate();
     }
 
     @Override
@@ -217,6 +469,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                db.enableWriteAheadLogging();
+            }
         }
     }
 
@@ -278,11 +533,55 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 // fix problems in database, see #1402 for details
                 // https://github.com/open-keychain/open-keychain/issues/1402
                 db.execSQL("DELETE FROM api_accounts WHERE key_id BETWEEN 0 AND 3");
-                if (oldVersion == 10) {
-                    // no consolidate if we are updating from 10, we're just here for the api_accounts fix
-                    return;
+                // fall through
+            case 12:
+                // indexed email column for lookups by email
+                try {
+                    db.execSQL("ALTER TABLE user_packets ADD COLUMN email TEXT");
+                } catch (Exception e) {
+                    // never mind, the column probably already existed
                 }
+                db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+                populateEmails(db);
+                // fall through
+            case 13:
+                // index for lookups by subkey id
+                db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+                // fall through
+            case 14:
+                // user id counts for duplicate detection
+                createUserIdCounts(db);
+                db.execSQL("INSERT OR REPLACE INTO user_id_counts"
+                        + " SELECT user_id, COUNT(*) FROM user_packets WHERE rank = 0 GROUP BY user_id");
+                // fall through
+            case 15:
+                // capability summaries, replacing the self joins of the keys table
+                db.execSQL(CREATE_KEY_SUMMARIES);
+                db.execSQL(UPDATE_KEY_SUMMARIES);
+                // fall through
+            case 16:
+                // full text index for key searches
+                createKeysSearch(db);
+                db.execSQL("DELETE FROM " + Tables.KEYS_SEARCH);
+                db.execSQL(INSERT_KEYS_SEARCH);
+                // fall through
+            case 17:
+                // index of certifying keys, filled for existing key rings by the consolidate
+                // below, which is needed once more for that
+                db.execSQL(CREATE_CERTIFIERS);
+                db.execSQL(CREATE_CERTIFIERS_INDEX);
+                // fall through
+            case 18:
+                // indexed sort keys for the paged key list
+                createKeyList(db);
+                db.execSQL(INSERT_KEY_LIST);
+
+        }
 
+        if (oldVersion >= 17) {
+            // no consolidate if we are updating from 17 or later, the certifiers index is
+            // already filled and we're just here for new tables and indexes
+            return;
         }
 
         // always do consolidate after upgrade
@@ -292,6 +591,52 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    private static void createUserIdCounts(SQLiteDatabase db) {
+        db.execSQL(CREATE_USER_ID_COUNTS);
+        db.execSQL(CREATE_USER_ID_COUNTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_USER_ID_COUNTS_DELETE_TRIGGER);
+    }
+
+    private static void createKeysSearch(SQLiteDatabase db) {
+        db.execSQL(CREATE_KEYS_SEARCH);
+        db.execSQL(CREATE_KEYS_SEARCH_DELETE_TRIGGER);
+    }
+
+    private static void createKeyList(SQLiteDatabase db) {
+        db.execSQL(CREATE_KEY_LIST);
+        db.execSQL(CREATE_KEY_LIST_ORDER_INDEX);
+        db.execSQL(CREATE_KEY_LIST_INSERT_TRIGGER);
+        db.execSQL(CREATE_KEY_LIST_SECRET_INSERT_TRIGGER);
+        db.execSQL(CREATE_KEY_LIST_SECRET_DELETE_TRIGGER);
+    }
+
+    /** Fills the email column from the user ids of all user packets. */
+    private static void populateEmails(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[] {
+                UserPacketsColumns.MASTER_KEY_ID, UserPacketsColumns.RANK, UserPacketsColumns.USER_ID
+        }, UserPacketsColumns.USER_ID + " IS NOT NULL", null, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            ContentValues values = new ContentValues(1);
+            String where = UserPacketsColumns.MASTER_KEY_ID + " = ? AND "
+                    + UserPacketsColumns.RANK + " = ?";
+            while (cursor.moveToNext()) {
+                String email = ProviderHelper.getNormalizedEmail(cursor.getString(2));
+                if (email == null) {
+                    continue;
+                }
+                values.put(UserPacketsColumns.EMAIL, email);
+                db.update(Tables.USER_PACKETS, values, where, new String[] {
+                        cursor.getString(0), cursor.getString(1)
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     /** This method tries to import data from a provided database.
      *
      * The sole assumptions made on this db are that there is a key_rings table
@@ -443,6 +788,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         getWritableDatabase().execSQL("delete from " + Tables.API_ACCOUNTS);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        ProviderHelper.invalidateTrustedMasterKeys();
+        KeyRingCache.invalidate();
     }
 
 }
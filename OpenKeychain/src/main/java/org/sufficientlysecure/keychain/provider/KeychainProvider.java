@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -35,18 +38,25 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyListColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeySummariesColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdCountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class KeychainProvider extends ContentProvider {
 
@@ -62,6 +72,9 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_SECRET = 204;
     private static final int KEY_RING_CERTS = 205;
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
+    private static final int KEY_RING_SUMMARY = 207;
+    private static final int KEY_RING_SEARCH = 208;
+    private static final int KEY_RING_CERTIFIERS = 209;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
@@ -71,6 +84,11 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEYS_FIND_BY_SUBKEY = 402;
+    private static final int KEY_RINGS_FIND_BY_QUERY = 403;
+    private static final int KEY_RINGS_FIND_BY_CERTIFIER = 404;
+    // sections and list order of KEY_RINGS_UNIFIED and KEY_RINGS_FIND_BY_QUERY, see query()
+    private static final int KEY_LIST = 405;
 
     protected UriMatcher mUriMatcher;
 
@@ -111,6 +129,9 @@ public class KeychainProvider extends ContentProvider {
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/subkey/_/keys
+         * key_rings/find/query/_
+         * key_rings/find/certifier/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -119,6 +140,16 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*/"
+                + KeychainContract.PATH_KEYS,
+                KEYS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_QUERY + "/*",
+                KEY_RINGS_FIND_BY_QUERY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_CERTIFIER + "/*",
+                KEY_RINGS_FIND_BY_CERTIFIER);
 
         /**
          * list key_ring specifics
@@ -131,6 +162,9 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/summary
+         * key_rings/_/search
+         * key_rings/_/certifiers
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -154,6 +188,15 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SUMMARY,
+                KEY_RING_SUMMARY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SEARCH,
+                KEY_RING_SEARCH);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_CERTIFIERS,
+                KEY_RING_CERTIFIERS);
 
         /**
          * API apps
@@ -182,8 +225,105 @@ public class KeychainProvider extends ContentProvider {
         return matcher;
     }
 
+    /** Named parameter for the current time in seconds, see query() */
+    private static final String PARAM_NOW = ":now";
+
+    private static String buildSummaryColumn(String keyIdColumn, String expiryColumn, String alias) {
+        return "(CASE WHEN " + Tables.KEY_SUMMARIES + "." + expiryColumn + " IS NULL"
+                + " OR " + Tables.KEY_SUMMARIES + "." + expiryColumn + " >= " + PARAM_NOW
+                + " THEN " + Tables.KEY_SUMMARIES + "." + keyIdColumn + " END) AS " + alias;
+    }
+
+    /**
+     * Builds a full text match expression which requires a word starting with each word of the
+     * search query, or returns null if the query doesn't contain any words. Words are split at
+     * the same characters as in the index, so only letters and digits are ever part of the
+     * expression.
+     */
+    static String buildSearchMatch(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            // hex key ids are indexed without prefix
+            if (word.startsWith("0x") && word.length() > 2) {
+                word = word.substring(2);
+            }
+            if (word.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Builds a condition on a master key id column which holds for the key rings found by a
+     * search query, see buildSearchMatch. A query without any words finds nothing, unlike the
+     * substring search this replaced, where e.g. "@" matched almost every user id.
+     */
+    static String buildSearchCondition(String masterKeyIdColumn, String query) {
+        String match = buildSearchMatch(query);
+        if (match == null) {
+            return "0";
+        }
+        return masterKeyIdColumn + " IN ("
+                + " SELECT docid FROM " + Tables.KEYS_SEARCH
+                    + " WHERE " + Tables.KEYS_SEARCH + " MATCH " + DatabaseUtils.sqlEscapeString(match)
+                + ")";
+    }
+
+    /**
+     * Returns the LIMIT clause for the paging parameters of a uri, or null if there are none.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(KeychainContract.PARAM_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        String offset = uri.getQueryParameter(KeychainContract.PARAM_OFFSET);
+        try {
+            return (offset != null ? Integer.parseInt(offset) + ", " : "") + Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed paging parameters in " + uri);
+        }
+    }
+
     private KeychainDatabase mKeychainDatabase;
 
+    /**
+     * Change notifications which are held back until the batch currently applied on this
+     * thread is committed, or null if there is no such batch.
+     */
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<>();
+
+    private final WriteQueue mWriteQueue = new WriteQueue() {
+        @Override
+        protected SQLiteDatabase getWritableDatabase() {
+            return getDb().getWritableDatabase();
+        }
+
+        @Override
+        protected void onTransactionStart() {
+            mPendingNotifications.set(new HashSet<Uri>());
+        }
+
+        @Override
+        protected void onTransactionEnd(boolean committed) {
+            Set<Uri> notifications = mPendingNotifications.get();
+            mPendingNotifications.remove();
+            if (!committed || notifications.isEmpty()) {
+                return;
+            }
+            // parsed key rings in this process are dropped right away, others get notified
+            KeyRingCache.invalidate();
+            for (Uri uri : notifications) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    };
+
     /**
      * {@inheritDoc}
      */
@@ -193,7 +333,7 @@ public class KeychainProvider extends ContentProvider {
         return true;
     }
 
-    public KeychainDatabase getDb() {
+    public synchronized KeychainDatabase getDb() {
         if(mKeychainDatabase == null)
             mKeychainDatabase = new KeychainDatabase(getContext());
         return mKeychainDatabase;
@@ -210,6 +350,7 @@ public class KeychainProvider extends ContentProvider {
                 return KeyRings.CONTENT_ITEM_TYPE;
 
             case KEY_RING_KEYS:
+            case KEYS_FIND_BY_SUBKEY:
                 return Keys.CONTENT_TYPE;
 
             case KEY_RING_USER_IDS:
@@ -252,12 +393,49 @@ public class KeychainProvider extends ContentProvider {
 
         // all query() parameters, for good measure
         String groupBy = null, having = null;
+        String limit = getLimit(uri);
+
+        // the sections and order of the key list only need the indexed sort keys
+        boolean isKeyList = (match == KEY_RINGS_UNIFIED || match == KEY_RINGS_FIND_BY_QUERY)
+                && (uri.getBooleanQueryParameter(KeychainContract.PARAM_SECTIONS, false)
+                        || uri.getBooleanQueryParameter(KeychainContract.PARAM_LIST, false));
+
+        switch (isKeyList ? KEY_LIST : match) {
+            case KEY_LIST: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEY_LIST + "." + KeyListColumns.MASTER_KEY_ID);
+                projectionMap.put(KeyRings.HAS_ANY_SECRET, Tables.KEY_LIST + "." + KeyListColumns.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.SORT_USER_ID, Tables.KEY_LIST + "." + KeyListColumns.SORT_USER_ID);
+                projectionMap.put(KeyRings.SECTION, "SUBSTR(" + Tables.KEY_LIST + "."
+                        + KeyListColumns.SORT_USER_ID + ", 1, 1) AS " + KeyRings.SECTION);
+                projectionMap.put(KeyRings._COUNT, "COUNT(*) AS " + KeyRings._COUNT);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.KEY_LIST);
+                if (match == KEY_RINGS_FIND_BY_QUERY) {
+                    qb.appendWhere(buildSearchCondition(
+                            Tables.KEY_LIST + "." + KeyListColumns.MASTER_KEY_ID, uri.getLastPathSegment()));
+                }
+
+                if (uri.getBooleanQueryParameter(KeychainContract.PARAM_SECTIONS, false)) {
+                    // count key rings per section instead
+                    groupBy = KeyRings.HAS_ANY_SECRET + ", " + KeyRings.SECTION;
+                } else if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.SORT_USER_ID + " ASC, "
+                            + Tables.KEY_LIST + "." + KeyListColumns.MASTER_KEY_ID + " ASC";
+                }
+
+                // uri to watch is all /key_rings/
+                uri = KeyRings.CONTENT_URI;
+
+                break;
+            }
 
-        switch (match) {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_FIND_BY_QUERY: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -274,14 +452,10 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
                 projectionMap.put(KeyRings.USER_ID, Tables.USER_PACKETS + "." + UserPackets.USER_ID);
+                // number of other key rings with the same primary user id
                 projectionMap.put(KeyRings.HAS_DUPLICATE_USER_ID,
-                        "(SELECT COUNT (*) FROM " + Tables.USER_PACKETS + " AS dups"
-                                + " WHERE dups." + UserPackets.MASTER_KEY_ID
-                                    + " != " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND dups." + UserPackets.RANK + " = 0"
-                                + " AND dups." + UserPackets.USER_ID
-                                    + " = "+ Tables.USER_PACKETS + "." + UserPackets.USER_ID
-                                + ") AS " + KeyRings.HAS_DUPLICATE_USER_ID);
+                        "(IFNULL(" + Tables.USER_ID_COUNTS + "." + UserIdCountsColumns.MASTER_KEY_COUNT
+                                + ", 1) - 1) AS " + KeyRings.HAS_DUPLICATE_USER_ID);
                 projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
@@ -295,15 +469,19 @@ public class KeychainProvider extends ContentProvider {
                         + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                             + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                         + ")) AS " + KeyRings.HAS_ANY_SECRET);
-                projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
-                projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
-                projectionMap.put(KeyRings.HAS_CERTIFY,
-                        "kC." + Keys.KEY_ID + " AS " + KeyRings.HAS_CERTIFY);
+                // the current time is bound as parameter, so the statement text doesn't change
+                projectionMap.put(KeyRings.HAS_ENCRYPT, buildSummaryColumn(
+                        KeySummariesColumns.ENCRYPT_KEY_ID, KeySummariesColumns.ENCRYPT_EXPIRY, KeyRings.HAS_ENCRYPT));
+                projectionMap.put(KeyRings.HAS_SIGN, buildSummaryColumn(
+                        KeySummariesColumns.SIGN_KEY_ID, KeySummariesColumns.SIGN_EXPIRY, KeyRings.HAS_SIGN));
+                projectionMap.put(KeyRings.HAS_CERTIFY, buildSummaryColumn(
+                        KeySummariesColumns.CERTIFY_KEY_ID, KeySummariesColumns.CERTIFY_EXPIRY, KeyRings.HAS_CERTIFY));
+                projectionMap.put(KeyRings.HAS_AUTHENTICATE, buildSummaryColumn(
+                        KeySummariesColumns.AUTHENTICATE_KEY_ID, KeySummariesColumns.AUTHENTICATE_EXPIRY,
+                        KeyRings.HAS_AUTHENTICATE));
                 projectionMap.put(KeyRings.IS_EXPIRED,
                         "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                                + " < " + new Date().getTime() / 1000 + ") AS " + KeyRings.IS_EXPIRED);
+                                + " < " + PARAM_NOW + ") AS " + KeyRings.IS_EXPIRED);
                 qb.setProjectionMap(projectionMap);
 
                 if (projection == null) {
@@ -321,14 +499,22 @@ public class KeychainProvider extends ContentProvider {
                                     + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
                             // we KNOW that the rank zero user packet is a user id!
                             + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
-                            + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
                         + ")"
                         // fairly expensive joins following, only do when requested
+                        + (plist.contains(KeyRings.HAS_DUPLICATE_USER_ID) ?
+                            " LEFT JOIN " + Tables.USER_ID_COUNTS + " ON ("
+                                    + Tables.USER_PACKETS + "." + UserPackets.USER_ID
+                                + " = "
+                                    + Tables.USER_ID_COUNTS + "." + UserIdCountsColumns.USER_ID
+                                + ")" : "")
+                        + (plist.contains(KeyRings.VERIFIED) ?
+                            " LEFT JOIN " + Tables.CERTS + " ON ("
+                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                + " = "
+                                    + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
+                                + " AND " + Tables.CERTS + "." + Certs.VERIFIED
+                                    + " = " + Certs.VERIFIED_SECRET
+                                + ")" : "")
                         + (plist.contains(KeyRings.PUBKEY_DATA) ?
                             " INNER JOIN " + Tables.KEY_RINGS_PUBLIC + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
@@ -341,50 +527,35 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND kS." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_AUTHENTICATE) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kA ON ("
-                                    +"kA." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND kA." + Keys.IS_REVOKED + " = 0"
-                                    + " AND kA." + Keys.CAN_AUTHENTICATE + " = 1"
-                                    + " AND kA." + Keys.HAS_SECRET + " > 1"
-                                    + " AND ( kA." + Keys.EXPIRY + " IS NULL OR kA." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                                    + ")" : "")
-                        + (plist.contains(KeyRings.HAS_CERTIFY) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kC ON ("
-                                +"kC." + Keys.MASTER_KEY_ID
-                                + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kC." + Keys.IS_REVOKED + " = 0"
-                                + " AND kC." + Keys.CAN_CERTIFY + " = 1"
-                                + " AND kC." + Keys.HAS_SECRET + " > 1"
-                                + " AND ( kC." + Keys.EXPIRY + " IS NULL OR kC." + Keys.EXPIRY
-                                + " >= " + new Date().getTime() / 1000 + " )"
+                        + (plist.contains(KeyRings.HAS_ENCRYPT) || plist.contains(KeyRings.HAS_SIGN)
+                                || plist.contains(KeyRings.HAS_CERTIFY)
+                                || plist.contains(KeyRings.HAS_AUTHENTICATE) ?
+                            " LEFT JOIN " + Tables.KEY_SUMMARIES + " ON ("
+                                    + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                + " = "
+                                    + Tables.KEY_SUMMARIES + "." + KeySummariesColumns.MASTER_KEY_ID
                                 + ")" : "")
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
                 // in case there are multiple verifying certificates
                 groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
 
+                // all time dependent columns use the same named parameter. it is the first one
+                // in the statement, so the current time is bound before the selection arguments
+                if (plist.contains(KeyRings.IS_EXPIRED) || plist.contains(KeyRings.HAS_ENCRYPT)
+                        || plist.contains(KeyRings.HAS_SIGN) || plist.contains(KeyRings.HAS_CERTIFY)
+                        || plist.contains(KeyRings.HAS_AUTHENTICATE)) {
+                    String now = Long.toString(new Date().getTime() / 1000);
+                    if (selectionArgs == null) {
+                        selectionArgs = new String[] { now };
+                    } else {
+                        String[] args = new String[selectionArgs.length + 1];
+                        args[0] = now;
+                        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+                        selectionArgs = args;
+                    }
+                }
+
                 switch(match) {
                     case KEY_RING_UNIFIED: {
                         qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = ");
@@ -394,11 +565,11 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // look up master key ids through the key id index first
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID
+                                    + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
@@ -409,26 +580,39 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_EMAIL: {
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
                         boolean gotCondition = false;
-                        String emailWhere = "";
+                        String emailIn = "";
                         // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
+                        for (String chunk : chunks) {
+                            if (chunk.length() == 0) {
                                 continue;
                             }
-                            if (i != 0) {
-                                emailWhere += " OR ";
+                            if (gotCondition) {
+                                emailIn += ", ";
                             }
-                            emailWhere += "tmp." + UserPackets.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                            // the email column holds the normalized '<email>' at the end of the user id
+                            emailIn += DatabaseUtils.sqlEscapeString(ProviderHelper.normalizeEmail(chunk));
                             gotCondition = true;
                         }
-                        if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                        if(gotCondition && plist.contains(KeyRings.EMAIL)) {
+                            // one row for each matched email of each key ring, so a whole list
+                            // of emails can be resolved with a single query
+                            qb.setTables(qb.getTables()
+                                + " INNER JOIN " + Tables.USER_PACKETS + " AS matched ON ("
+                                        + "matched." + UserPackets.MASTER_KEY_ID
+                                    + " = "
+                                        + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                    + " AND matched." + UserPackets.EMAIL + " IN (" + emailIn + ")"
+                                + ")");
+                            projectionMap.put(KeyRings.EMAIL,
+                                    "matched." + UserPackets.EMAIL + " AS " + KeyRings.EMAIL);
+                            groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                    + ", matched." + UserPackets.EMAIL;
+                        } else if(gotCondition) {
+                            // look up master key ids through the email index first
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserPackets.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_PACKETS + " AS tmp"
+                                    + " WHERE tmp." + UserPackets.EMAIL + " IN (" + emailIn + ")"
                                 + ")");
                         } else {
                             // TODO better way to do this?
@@ -437,6 +621,11 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_BY_QUERY: {
+                        qb.appendWhere(" AND " + buildSearchCondition(
+                                Tables.KEYS + "." + Keys.MASTER_KEY_ID, uri.getLastPathSegment()));
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
@@ -449,7 +638,8 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
-            case KEY_RING_KEYS: {
+            case KEY_RING_KEYS:
+            case KEYS_FIND_BY_SUBKEY: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(Keys.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -470,8 +660,35 @@ public class KeychainProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEYS_FIND_BY_SUBKEY) {
+                    try {
+                        String subkey = Long.valueOf(uri.getPathSegments().get(3)).toString();
+                        qb.appendWhere(Keys.KEY_ID + " = " + subkey);
+                    } catch (NumberFormatException e) {
+                        Log.e(Constants.TAG, "Malformed find keys by subkey query!", e);
+                        qb.appendWhere("0");
+                    }
+                } else {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
+
+                break;
+            }
+
+            case KEY_RINGS_FIND_BY_CERTIFIER: {
+                HashMap<String, String> projectionMap = new HashMap<>();
+                projectionMap.put(Certs.MASTER_KEY_ID, Certs.MASTER_KEY_ID);
+                qb.setProjectionMap(projectionMap);
+
+                qb.setTables(Tables.CERTIFIERS);
+                try {
+                    String certifier = Long.valueOf(uri.getPathSegments().get(3)).toString();
+                    qb.appendWhere(Certs.KEY_ID_CERTIFIER + " = " + certifier);
+                } catch (NumberFormatException e) {
+                    Log.e(Constants.TAG, "Malformed find key rings by certifier query!", e);
+                    qb.appendWhere("0");
+                }
 
                 break;
             }
@@ -657,7 +874,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = getDb().getReadableDatabase();
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy, limit);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -667,7 +884,7 @@ public class KeychainProvider extends ContentProvider {
             Log.d(Constants.TAG,
                     "Query: "
                             + qb.buildQuery(projection, selection, selectionArgs, null, null,
-                            orderBy, null));
+                            orderBy, limit));
             Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(cursor));
         }
 
@@ -678,7 +895,19 @@ public class KeychainProvider extends ContentProvider {
      * {@inheritDoc}
      */
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
+    public Uri insert(final Uri uri, final ContentValues values) {
+        if (mPendingNotifications.get() != null) {
+            return insertInTransaction(uri, values);
+        }
+        return write(new WriteQueue.Write<Uri>() {
+            @Override
+            public Uri apply() {
+                return insertInTransaction(uri, values);
+            }
+        });
+    }
+
+    private Uri insertInTransaction(Uri uri, ContentValues values) {
         Log.d(Constants.TAG, "insert(uri=" + uri + ", values=" + values.toString() + ")");
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
@@ -719,6 +948,26 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
                 }
+                case KEY_RING_SUMMARY: {
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    db.execSQL(KeychainDatabase.UPDATE_KEY_SUMMARIES
+                            + " WHERE ring." + KeyRings.MASTER_KEY_ID + " = " + keyId);
+                    break;
+                }
+                case KEY_RING_SEARCH: {
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    db.delete(Tables.KEYS_SEARCH, "docid = " + keyId, null);
+                    db.execSQL(KeychainDatabase.INSERT_KEYS_SEARCH
+                            + " WHERE ring." + KeyRings.MASTER_KEY_ID + " = " + keyId);
+                    break;
+                }
+                case KEY_RING_CERTIFIERS: {
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    values.put(Certs.MASTER_KEY_ID, keyId);
+                    db.insertWithOnConflict(Tables.CERTIFIERS, null, values,
+                            SQLiteDatabase.CONFLICT_IGNORE);
+                    break;
+                }
                 case KEY_RING_CERTS: {
                     // we replace here, keeping only the latest signature
                     // TODO this would be better handled in savePublicKeyRing directly!
@@ -759,7 +1008,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -772,7 +1021,20 @@ public class KeychainProvider extends ContentProvider {
      * {@inheritDoc}
      */
     @Override
-    public int delete(Uri uri, String additionalSelection, String[] selectionArgs) {
+    public int delete(final Uri uri, final String additionalSelection,
+                      final String[] selectionArgs) {
+        if (mPendingNotifications.get() != null) {
+            return deleteInTransaction(uri, additionalSelection, selectionArgs);
+        }
+        return write(new WriteQueue.Write<Integer>() {
+            @Override
+            public Integer apply() {
+                return deleteInTransaction(uri, additionalSelection, selectionArgs);
+            }
+        });
+    }
+
+    private int deleteInTransaction(Uri uri, String additionalSelection, String[] selectionArgs) {
         Log.v(Constants.TAG, "delete(uri=" + uri + ")");
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
@@ -829,7 +1091,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -838,7 +1100,21 @@ public class KeychainProvider extends ContentProvider {
      * {@inheritDoc}
      */
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    public int update(final Uri uri, final ContentValues values, final String selection,
+                      final String[] selectionArgs) {
+        if (mPendingNotifications.get() != null) {
+            return updateInTransaction(uri, values, selection, selectionArgs);
+        }
+        return write(new WriteQueue.Write<Integer>() {
+            @Override
+            public Integer apply() {
+                return updateInTransaction(uri, values, selection, selectionArgs);
+            }
+        });
+    }
+
+    private int updateInTransaction(Uri uri, ContentValues values, String selection,
+                                    String[] selectionArgs) {
         Log.v(Constants.TAG, "update(uri=" + uri + ", values=" + values.toString() + ")");
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
@@ -877,7 +1153,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -886,6 +1162,50 @@ public class KeychainProvider extends ContentProvider {
         return count;
     }
 
+    /**
+     * Applies all operations of the batch in a single transaction. Change notifications of the
+     * single operations are coalesced, and sent out only once the transaction was committed.
+     * If any of the operations fails, the whole batch is rolled back.
+     *
+     * Like all other writes, the batch goes through the write queue, and may be committed
+     * together with batches from other threads.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // nested batches just become part of the outer transaction
+        if (mPendingNotifications.get() != null) {
+            return super.applyBatch(operations);
+        }
+
+        return mWriteQueue.write(new WriteQueue.Write<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] apply() throws OperationApplicationException {
+                return KeychainProvider.super.applyBatch(operations);
+            }
+        });
+    }
+
+    /**
+     * Applies a single write outside of a batch through the write queue.
+     */
+    private <T> T write(WriteQueue.Write<T> write) {
+        try {
+            return mWriteQueue.write(write);
+        } catch (OperationApplicationException e) {
+            // only thrown by batches
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Notify observers of a change in the db, once the current transaction is committed.
+     * All writes happen inside a transaction of the write queue.
+     */
+    private void notifyChange(Uri uri) {
+        mPendingNotifications.get().add(uri);
+    }
+
     /**
      * Build default selection statement for API apps. If no extra selection is specified only build
      * where clause with rowId
@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -26,12 +27,14 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.util.LongSparseArray;
 
 import org.spongycastle.bcpg.CompressionAlgorithmTags;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.ImportOperation;
 import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
@@ -39,6 +42,7 @@ import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
@@ -59,6 +63,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.remote.AccountSettings;
 import org.sufficientlysecure.keychain.remote.AppSettings;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -81,6 +86,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 /**
@@ -99,6 +105,10 @@ public class ProviderHelper {
     private OperationLog mLog;
     private int mIndent;
 
+    // operations of deferred public keyring saves, see beginDeferredSaves
+    private ArrayList<ContentProviderOperation> mDeferredOperations;
+    private HashSet<Long> mDeferredMasterKeyIds;
+
     public ProviderHelper(Context context) {
         this(context, new OperationLog(), 0);
     }
@@ -174,35 +184,12 @@ public class ProviderHelper {
         Cursor cursor = mContentResolver.query(uri, proj, selection, null, null);
 
         try {
-            HashMap<String, Object> result = new HashMap<>(proj.length);
             if (cursor != null && cursor.moveToFirst()) {
-                int pos = 0;
-                for (String p : proj) {
-                    switch (types[pos]) {
-                        case FIELD_TYPE_NULL:
-                            result.put(p, cursor.isNull(pos));
-                            break;
-                        case FIELD_TYPE_INTEGER:
-                            result.put(p, cursor.getLong(pos));
-                            break;
-                        case FIELD_TYPE_FLOAT:
-                            result.put(p, cursor.getFloat(pos));
-                            break;
-                        case FIELD_TYPE_STRING:
-                            result.put(p, cursor.getString(pos));
-                            break;
-                        case FIELD_TYPE_BLOB:
-                            result.put(p, cursor.getBlob(pos));
-                            break;
-                    }
-                    pos += 1;
-                }
+                return getRowData(cursor, proj, types);
             } else {
                 // If no data was found, throw an appropriate exception
                 throw new NotFoundException();
             }
-
-            return result;
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -210,12 +197,90 @@ public class ProviderHelper {
         }
     }
 
+    /** Reads the current row of a cursor, which must have been queried with proj as projection. */
+    static HashMap<String, Object> getRowData(Cursor cursor, String[] proj, int[] types) {
+        HashMap<String, Object> result = new HashMap<>(proj.length);
+        int pos = 0;
+        for (String p : proj) {
+            switch (types[pos]) {
+                case FIELD_TYPE_NULL:
+                    result.put(p, cursor.isNull(pos));
+                    break;
+                case FIELD_TYPE_INTEGER:
+                    result.put(p, cursor.getLong(pos));
+                    break;
+                case FIELD_TYPE_FLOAT:
+                    result.put(p, cursor.getFloat(pos));
+                    break;
+                case FIELD_TYPE_STRING:
+                    result.put(p, cursor.getString(pos));
+                    break;
+                case FIELD_TYPE_BLOB:
+                    result.put(p, cursor.getBlob(pos));
+                    break;
+            }
+            pos += 1;
+        }
+        return result;
+    }
+
     public HashMap<String, Object> getUnifiedData(long masterKeyId, String[] proj, int[] types)
             throws NotFoundException {
         return getGenericData(KeyRings.buildUnifiedKeyRingUri(masterKeyId), proj, types);
     }
 
+    /**
+     * Process-wide index of all master keys we have a secret key for. It is needed to verify
+     * certifications on every keyring save, so it is built only once and kept until a secret
+     * keyring is saved or deleted. Treat as read-only!
+     */
+    private static LongSparseArray<CanonicalizedPublicKey> sTrustedMasterKeys;
+    private static int sTrustedMasterKeysGeneration = 0;
+
+    /**
+     * Drops the index of trusted master keys, it is rebuilt on next use.
+     */
+    public static void invalidateTrustedMasterKeys() {
+        synchronized (ProviderHelper.class) {
+            sTrustedMasterKeys = null;
+            sTrustedMasterKeysGeneration += 1;
+        }
+    }
+
+    /**
+     * Drops the index of trusted master keys, but only if it contains the given master key. An
+     * index that is currently being loaded is never kept, since it may or may not contain it.
+     */
+    public static void invalidateTrustedMasterKeys(long masterKeyId) {
+        synchronized (ProviderHelper.class) {
+            sTrustedMasterKeysGeneration += 1;
+            if (sTrustedMasterKeys != null && sTrustedMasterKeys.indexOfKey(masterKeyId) >= 0) {
+                sTrustedMasterKeys = null;
+            }
+        }
+    }
+
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        int generation;
+        synchronized (ProviderHelper.class) {
+            if (sTrustedMasterKeys != null) {
+                return sTrustedMasterKeys;
+            }
+            generation = sTrustedMasterKeysGeneration;
+        }
+
+        // the index is loaded outside the lock. if it was invalidated in the meantime, we can
+        // still use the result, but we don't keep it around.
+        LongSparseArray<CanonicalizedPublicKey> result = loadTrustedMasterKeys();
+        synchronized (ProviderHelper.class) {
+            if (generation == sTrustedMasterKeysGeneration) {
+                sTrustedMasterKeys = result;
+            }
+        }
+        return result;
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> loadTrustedMasterKeys() {
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -247,9 +312,13 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Returns the master key id of the key ring containing the given subkey. This only looks at
+     * the indexed key id column of the keys table, without joining any key ring data.
+     */
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
-        return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
-                KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
+        return (Long) getGenericData(Keys.buildKeysFindBySubkeyUri(subKeyId),
+                Keys.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
     }
 
     public CachedPublicKeyRing getCachedPublicKeyRing(Uri queryUri) {
@@ -260,6 +329,106 @@ public class ProviderHelper {
         return new CachedPublicKeyRing(this, KeyRings.buildUnifiedKeyRingUri(id));
     }
 
+    /**
+     * Returns snapshots of the key rings with the given master key ids, see
+     * CachedPublicKeyRing.snapshot. All of them are loaded with a single query, key rings which
+     * are not in the database are missing from the result.
+     */
+    public LongSparseArray<CachedPublicKeyRing> getCachedPublicKeyRingSnapshots(long... masterKeyIds) {
+        LongSparseArray<CachedPublicKeyRing> result = new LongSparseArray<>(masterKeyIds.length);
+        if (masterKeyIds.length == 0) {
+            return result;
+        }
+
+        StringBuilder selection = new StringBuilder(
+                Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN (");
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            if (i > 0) {
+                selection.append(", ");
+            }
+            selection.append(Long.toString(masterKeyIds[i]));
+        }
+        selection.append(")");
+
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                CachedPublicKeyRing.SNAPSHOT_PROJECTION, selection.toString(), null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                HashMap<String, Object> data = getRowData(cursor,
+                        CachedPublicKeyRing.SNAPSHOT_PROJECTION, CachedPublicKeyRing.SNAPSHOT_TYPES);
+                long masterKeyId = (Long) data.get(KeyRings.MASTER_KEY_ID);
+                result.put(masterKeyId, new CachedPublicKeyRing(
+                        this, KeyRings.buildUnifiedKeyRingUri(masterKeyId), data));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    private static final String[] EMAIL_SEARCH_PROJECTION = new String[]{
+            KeyRings._ID,
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.EMAIL,
+            KeyRings.IS_EXPIRED,
+            KeyRings.IS_REVOKED,
+    };
+
+    // do not pre-select revoked or expired keys
+    private static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeyRings.IS_REVOKED
+            + " = 0 AND " + KeyRings.IS_EXPIRED + " = 0";
+
+    /**
+     * Looks up the master key ids of all key rings which are neither revoked nor expired and have
+     * a user id with one of the given emails. All emails are resolved with a single query.
+     *
+     * @return a map from each of the given emails to the master key ids found for it, ordered by
+     *      primary user id. Emails without any key are mapped to an empty list.
+     */
+    public HashMap<String, ArrayList<Long>> getMasterKeyIdsByEmails(String... emails) {
+        HashMap<String, ArrayList<Long>> result = new HashMap<>(emails.length);
+        HashMap<String, ArrayList<Long>> normalized = new HashMap<>(emails.length);
+        StringBuilder emailList = new StringBuilder();
+        for (String email : emails) {
+            String normalizedEmail = normalizeEmail(email);
+            ArrayList<Long> ids = normalized.get(normalizedEmail);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                normalized.put(normalizedEmail, ids);
+                if (!normalizedEmail.isEmpty()) {
+                    if (emailList.length() > 0) {
+                        emailList.append(",");
+                    }
+                    emailList.append(normalizedEmail);
+                }
+            }
+            // the same email in different spellings shares its list
+            result.put(email, ids);
+        }
+        if (emailList.length() == 0) {
+            return result;
+        }
+
+        Cursor cursor = mContentResolver.query(
+                KeyRings.buildUnifiedKeyRingsFindByEmailUri(emailList.toString()),
+                EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                ArrayList<Long> ids = normalized.get(cursor.getString(2));
+                if (ids != null) {
+                    ids.add(cursor.getLong(1));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
         return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
     }
@@ -276,7 +445,41 @@ public class ProviderHelper {
         return (CanonicalizedSecretKeyRing) getCanonicalizedKeyRing(queryUri, true);
     }
 
+    /**
+     * Returns the public key ring containing the given subkey. The master key id is resolved
+     * first, so the key ring itself is then retrieved by primary key.
+     */
+    public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRingBySubkey(long subKeyId)
+            throws NotFoundException {
+        return getCanonicalizedPublicKeyRing(getMasterKeyId(subKeyId));
+    }
+
+    /** Returns the secret key ring containing the given subkey, see above. */
+    public CanonicalizedSecretKeyRing getCanonicalizedSecretKeyRingBySubkey(long subKeyId)
+            throws NotFoundException {
+        return getCanonicalizedSecretKeyRing(getMasterKeyId(subKeyId));
+    }
+
     private KeyRing getCanonicalizedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+        // rings are cached by master key id, so only queries for a specific one can be cached
+        Long masterKeyId = null;
+        String firstSegment = queryUri.getPathSegments().get(1);
+        if (!firstSegment.equals(KeychainContract.PATH_FIND)) {
+            try {
+                masterKeyId = Long.parseLong(firstSegment);
+            } catch (NumberFormatException e) {
+                // not a specific key ring
+            }
+        }
+
+        int generation = KeyRingCache.getGeneration();
+        if (masterKeyId != null) {
+            CanonicalizedKeyRing cached = KeyRingCache.get(masterKeyId, secret);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{
                         // we pick from cache only information that is not easily available from keyrings
@@ -294,9 +497,13 @@ public class ProviderHelper {
                 if (secret & !hasAnySecret) {
                     throw new NotFoundException("Secret key not available!");
                 }
-                return secret
+                CanonicalizedKeyRing keyRing = secret
                         ? new CanonicalizedSecretKeyRing(blob, true, verified)
                         : new CanonicalizedPublicKeyRing(blob, verified);
+                if (masterKeyId != null) {
+                    KeyRingCache.put(mContext, masterKeyId, secret, keyRing, blob.length, generation);
+                }
+                return keyRing;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -341,6 +548,17 @@ public class ProviderHelper {
     @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
                                                Progressable progress, boolean selfCertsAreTrusted) {
+        return saveCanonicalizedPublicKeyRing(keyRing, progress, selfCertsAreTrusted, false);
+    }
+
+    /**
+     * Saves an UncachedKeyRing of the public variant into the db, see above.
+     * <p/>
+     * If defer is true, the database operations are only added to the deferred batch, see
+     * beginDeferredSaves. The UPDATED flag is not set in the result in this case.
+     */
+    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
+            Progressable progress, boolean selfCertsAreTrusted, boolean defer) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
@@ -357,6 +575,12 @@ public class ProviderHelper {
             // save all keys and userIds included in keyRing object in database
             operations = new ArrayList<>();
 
+            { // delete old version of this keyRing, which also deletes all keys and userIds on cascade
+                // this is part of the batch, so it is committed in the same transaction
+                Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
+                operations.add(ContentProviderOperation.newDelete(uri).build());
+            }
+
             log(LogType.MSG_IP_INSERT_KEYRING);
             { // insert keyring
                 ContentValues values = new ContentValues();
@@ -440,12 +664,17 @@ public class ProviderHelper {
             }
             mIndent -= 1;
 
+            // the capability summary is computed from the subkeys inserted above
+            operations.add(buildKeySummaryOperation(masterKeyId));
+
             // get a list of owned secret keys, for verification filtering
             LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
 
             // classify and order user ids. primary are moved to the front, revoked to the back,
             // otherwise the order in the keyfile is preserved.
             List<UserPacketItem> uids = new ArrayList<>();
+            // all keys which certified any user packet, trusted or not
+            HashSet<Long> certifiers = new HashSet<>();
 
             if (trustedKeys.size() == 0) {
                 log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
@@ -484,6 +713,8 @@ public class ProviderHelper {
 
                     }
 
+                    certifiers.add(certId);
+
                     // do we have a trusted key for this?
                     if (trustedKeys.indexOfKey(certId) < 0) {
                         unknownCerts += 1;
@@ -584,6 +815,8 @@ public class ProviderHelper {
 
                     }
 
+                    certifiers.add(certId);
+
                     // do we have a trusted key for this?
                     if (trustedKeys.indexOfKey(certId) < 0) {
                         unknownCerts += 1;
@@ -677,6 +910,15 @@ public class ProviderHelper {
                 }
             }
 
+            // the search index is built from the subkeys and user ids inserted above
+            operations.add(buildSearchIndexOperation(masterKeyId));
+
+            Uri certifiersUri = Certs.buildCertifiersUri(masterKeyId);
+            for (long certifier : certifiers) {
+                operations.add(ContentProviderOperation.newInsert(certifiersUri)
+                        .withValue(Certs.KEY_ID_CERTIFIER, certifier).build());
+            }
+
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Log.e(Constants.TAG, "IOException during import", e);
@@ -685,21 +927,32 @@ public class ProviderHelper {
             mIndent -= 1;
         }
 
+        if (defer) {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            mDeferredOperations.addAll(operations);
+            mDeferredMasterKeyIds.add(masterKeyId);
+            log(LogType.MSG_IP_SUCCESS);
+            progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
+            return result;
+        }
+
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            // if this is one of our own keys, the trusted key index is outdated now
+            invalidateTrustedMasterKeys(masterKeyId);
+
+            // the first operation of the batch deleted the old version of this keyring, if any
+            if (results.length > 0 && results[0].count != null && results[0].count > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
             return result;
@@ -761,6 +1014,9 @@ public class ProviderHelper {
             // IF this is successful, it's a secret key
             int result = SaveKeyringResult.SAVED_SECRET;
 
+            // all changes to the secret keyring are applied in a single batch
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
             // save secret keyring
             try {
                 ContentValues values = new ContentValues();
@@ -768,73 +1024,93 @@ public class ProviderHelper {
                 values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
                 // insert new version of this keyRing
                 Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
-                if (mContentResolver.insert(uri, values) == null) {
-                    log(LogType.MSG_IS_DB_EXCEPTION);
-                    return SaveKeyringResult.RESULT_ERROR;
-                }
+                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
             } catch (IOException e) {
                 Log.e(Constants.TAG, "Failed to encode key!", e);
                 log(LogType.MSG_IS_ERROR_IO_EXC);
                 return SaveKeyringResult.RESULT_ERROR;
             }
 
+            ArrayList<CanonicalizedSecretKey> subKeys = new ArrayList<>();
             {
                 Uri uri = Keys.buildKeysUri(masterKeyId);
 
                 // first, mark all keys as not available
-                ContentValues values = new ContentValues();
-                values.put(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum());
-                mContentResolver.update(uri, values, null, null);
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValue(Keys.HAS_SECRET, SecretKeyType.GNU_DUMMY.getNum()).build());
 
                 // then, mark exactly the keys we have available
-                log(LogType.MSG_IS_IMPORTING_SUBKEYS);
-                mIndent += 1;
                 for (CanonicalizedSecretKey sub : keyRing.secretKeyIterator()) {
-                    long id = sub.getKeyId();
-                    SecretKeyType mode = sub.getSecretKeyType();
-                    values.put(Keys.HAS_SECRET, mode.getNum());
-                    int upd = mContentResolver.update(uri, values, Keys.KEY_ID + " = ?",
-                            new String[]{Long.toString(id)});
-                    if (upd == 1) {
-                        switch (mode) {
-                            case PASSPHRASE:
-                                log(LogType.MSG_IS_SUBKEY_OK,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case PASSPHRASE_EMPTY:
-                                log(LogType.MSG_IS_SUBKEY_EMPTY,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case PIN:
-                                log(LogType.MSG_IS_SUBKEY_PIN,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case GNU_DUMMY:
-                                log(LogType.MSG_IS_SUBKEY_STRIPPED,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                            case DIVERT_TO_CARD:
-                                log(LogType.MSG_IS_SUBKEY_DIVERT,
-                                        KeyFormattingUtils.convertKeyIdToHex(id)
-                                );
-                                break;
-                        }
-                    } else {
-                        log(LogType.MSG_IS_SUBKEY_NONEXISTENT,
-                                KeyFormattingUtils.convertKeyIdToHex(id)
-                        );
-                    }
+                    subKeys.add(sub);
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(Keys.HAS_SECRET, sub.getSecretKeyType().getNum())
+                            .withSelection(Keys.KEY_ID + " = ?",
+                                    new String[]{Long.toString(sub.getKeyId())})
+                            .build());
                 }
-                mIndent -= 1;
 
                 // this implicitly leaves all keys which were not in the secret key ring
                 // with has_secret = 1
             }
 
+            // secret key availability changed, so update the capability summary as well
+            operations.add(buildKeySummaryOperation(masterKeyId));
+
+            ContentProviderResult[] results;
+            try {
+                results = mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(Constants.TAG, "Failed to save secret keyring!", e);
+                log(LogType.MSG_IS_DB_EXCEPTION);
+                return SaveKeyringResult.RESULT_ERROR;
+            } finally {
+                // we might have a new trusted key
+                invalidateTrustedMasterKeys();
+            }
+
+            log(LogType.MSG_IS_IMPORTING_SUBKEYS);
+            mIndent += 1;
+            // results of the subkey updates start after the insert and the initial update
+            for (int i = 0; i < subKeys.size(); i++) {
+                long id = subKeys.get(i).getKeyId();
+                SecretKeyType mode = subKeys.get(i).getSecretKeyType();
+                Integer upd = i + 2 < results.length ? results[i + 2].count : null;
+                if (upd != null && upd == 1) {
+                    switch (mode) {
+                        case PASSPHRASE:
+                            log(LogType.MSG_IS_SUBKEY_OK,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case PASSPHRASE_EMPTY:
+                            log(LogType.MSG_IS_SUBKEY_EMPTY,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case PIN:
+                            log(LogType.MSG_IS_SUBKEY_PIN,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case GNU_DUMMY:
+                            log(LogType.MSG_IS_SUBKEY_STRIPPED,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                        case DIVERT_TO_CARD:
+                            log(LogType.MSG_IS_SUBKEY_DIVERT,
+                                    KeyFormattingUtils.convertKeyIdToHex(id)
+                            );
+                            break;
+                    }
+                } else {
+                    log(LogType.MSG_IS_SUBKEY_NONEXISTENT,
+                            KeyFormattingUtils.convertKeyIdToHex(id)
+                    );
+                }
+            }
+            mIndent -= 1;
+
             log(LogType.MSG_IS_SUCCESS);
             return result;
 
@@ -855,6 +1131,23 @@ public class ProviderHelper {
      * keep public and secret keyrings in sync.
      */
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress) {
+        return savePublicKeyRing(publicRing, null, progress);
+    }
+
+    /**
+     * Save an already canonicalized public keyring into the database, see above.
+     * <p/>
+     * If there is no previous version of this keyring, it is saved without canonicalizing it
+     * again. This allows callers to do the expensive canonicalization ahead of time, e.g. in
+     * parallel.
+     */
+    public SaveKeyringResult savePublicKeyRing(CanonicalizedPublicKeyRing canonicalized,
+                                               Progressable progress) {
+        return savePublicKeyRing(canonicalized.getUncachedKeyRing(), canonicalized, progress);
+    }
+
+    private SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing,
+            CanonicalizedPublicKeyRing canonicalized, Progressable progress) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -866,7 +1159,14 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // we need to read the current version of this keyring below
+            if (mDeferredMasterKeyIds != null && mDeferredMasterKeyIds.contains(masterKeyId)
+                    && !commitDeferredSavesOrLog()) {
+                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            }
+
             CanonicalizedPublicKeyRing canPublicRing;
+            boolean isUpdate;
 
             // If there is an old keyring, merge it
             try {
@@ -893,14 +1193,19 @@ public class ProviderHelper {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
+                isUpdate = true;
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                // If this was done ahead of time, there is no need to do it again.
+                canPublicRing = canonicalized != null
+                        ? canonicalized
+                        : (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
+                isUpdate = false;
 
             }
 
@@ -927,7 +1232,13 @@ public class ProviderHelper {
                 canSecretRing = null;
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+            // saves which involve a secret keyring are never deferred
+            boolean defer = mDeferredOperations != null && canSecretRing == null;
+            int result = saveCanonicalizedPublicKeyRing(
+                    canPublicRing, progress, canSecretRing != null, defer);
+            if (defer && isUpdate) {
+                result |= SaveKeyringResult.UPDATED;
+            }
 
             // Save the saved keyring (if any)
             if (canSecretRing != null) {
@@ -961,6 +1272,11 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // secret keyrings change the trust of other keys, deferred saves must come first
+            if (!commitDeferredSavesOrLog()) {
+                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            }
+
             CanonicalizedSecretKeyRing canSecretRing;
 
             // If there is an old secret key, merge it.
@@ -1060,6 +1376,59 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Starts deferring the database operations of public keyring saves. Instead of applying
+     * them per keyring, they are collected and committed in a single transaction by
+     * commitDeferredSaves. Saves which involve a secret keyring are not deferred.
+     * <p/>
+     * Results of deferred saves are only valid once they have been committed successfully!
+     */
+    public void beginDeferredSaves() {
+        if (mDeferredOperations == null) {
+            mDeferredOperations = new ArrayList<>();
+            mDeferredMasterKeyIds = new HashSet<>();
+        }
+    }
+
+    public boolean hasDeferredSaves() {
+        return mDeferredOperations != null && !mDeferredOperations.isEmpty();
+    }
+
+    /**
+     * Commits all deferred saves in a single transaction, and stops deferring saves. If this
+     * fails, none of the deferred saves have been applied.
+     */
+    public void commitDeferredSaves() throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = mDeferredOperations;
+        mDeferredOperations = null;
+        mDeferredMasterKeyIds = null;
+        if (operations != null && !operations.isEmpty()) {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        }
+    }
+
+    /**
+     * Commits deferred saves, if there are any, but keeps deferring saves afterwards.
+     */
+    private boolean commitDeferredSavesOrLog() {
+        if (!hasDeferredSaves()) {
+            return true;
+        }
+        try {
+            commitDeferredSaves();
+            beginDeferredSaves();
+            return true;
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Log.e(Constants.TAG, "RemoteException during deferred save", e);
+            return false;
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Log.e(Constants.TAG, "OperationApplicationException during deferred save", e);
+            return false;
+        }
+    }
+
     @NonNull
     public ConsolidateResult consolidateDatabaseStep1(Progressable progress) {
 
@@ -1096,7 +1465,7 @@ public class ProviderHelper {
             // No keys existing might be a legitimate option, we write an empty file in that case
             cursor.moveToFirst();
             ParcelableFileCache<ParcelableKeyRing> cache =
-                    new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
+                    new KeyRingFileCache(mContext, "consolidate_secret.pcl");
             cache.writeCache(cursor.getCount(), new Iterator<ParcelableKeyRing>() {
                 ParcelableKeyRing ring;
 
@@ -1158,7 +1527,7 @@ public class ProviderHelper {
             // No keys existing might be a legitimate option, we write an empty file in that case
             cursor.moveToFirst();
             ParcelableFileCache<ParcelableKeyRing> cache =
-                    new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
+                    new KeyRingFileCache(mContext, "consolidate_public.pcl");
             cache.writeCache(cursor.getCount(), new Iterator<ParcelableKeyRing>() {
                 ParcelableKeyRing ring;
 
@@ -1238,15 +1607,35 @@ public class ProviderHelper {
                 return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
             }
 
-            // 2. wipe database (IT'S DANGEROUS)
-            log.add(LogType.MSG_CON_DB_CLEAR, indent);
-            mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            ParcelableFileCache<ParcelableKeyRing> cacheSecret =
+                    new KeyRingFileCache(mContext, "consolidate_secret.pcl");
+            ParcelableFileCache<ParcelableKeyRing> cachePublic =
+                    new KeyRingFileCache(mContext, "consolidate_public.pcl");
 
-            ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
+            // never wipe the database unless we can be sure to get all keys back
+            if (!cacheSecret.verify() || !cachePublic.verify()) {
+                log.add(LogType.MSG_CON_ERROR_CORRUPT_CACHE, indent);
+                return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+            }
+
+            // keyrings which are already in the database when recovering were saved after it
+            // was wiped, so the re-import resumes after them instead of starting over. public
+            // keyrings with a secret part are imported again anyways, the secret keyring holds
+            // only some of their certificates.
+            HashSet<Long> storedSecrets = new HashSet<>(), storedPublics = new HashSet<>();
+            if (recovery) {
+                storedSecrets = getStoredMasterKeyIds(KeyRingData.buildSecretKeyRingUri());
+                storedPublics = getStoredMasterKeyIds(KeyRingData.buildPublicKeyRingUri());
+                storedPublics.removeAll(storedSecrets);
+            } else {
+                // 2. wipe database (IT'S DANGEROUS)
+                log.add(LogType.MSG_CON_DB_CLEAR, indent);
+                mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+                invalidateTrustedMasterKeys();
+            }
 
             // Set flag that we have a cached consolidation here
             try {
-                cacheSecret = new ParcelableFileCache<>(mContext, "consolidate_secret.pcl");
                 IteratorWithSize<ParcelableKeyRing> itSecrets = cacheSecret.readCache(false);
                 int numSecrets = itSecrets.getSize();
 
@@ -1256,9 +1645,13 @@ public class ProviderHelper {
                 // 3. Re-Import secret keyrings from cache
                 if (numSecrets > 0) {
 
+                    SkipStoredIterator it = new SkipStoredIterator(itSecrets, storedSecrets);
                     ImportKeyResult result = new ImportOperation(mContext, this,
                             new ProgressFixedScaler(progress, 10, 25, 100, R.string.progress_con_reimport))
-                            .serialKeyRingImport(itSecrets, numSecrets, null, null);
+                            .parallelKeyRingImport(it, numSecrets);
+                    if (it.mSkipped > 0) {
+                        log.add(LogType.MSG_CON_RECOVER_SKIP, indent, it.mSkipped);
+                    }
                     log.add(result, indent);
                 } else {
                     log.add(LogType.MSG_CON_REIMPORT_SECRET_SKIP, indent);
@@ -1274,8 +1667,9 @@ public class ProviderHelper {
 
             try {
 
-                cachePublic = new ParcelableFileCache<>(mContext, "consolidate_public.pcl");
-                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache();
+                // the cache is only deleted below, once all keyrings have been committed. the
+                // import reads ahead of what it saved, so deleting after read would be too early
+                IteratorWithSize<ParcelableKeyRing> itPublics = cachePublic.readCache(false);
                 int numPublics = itPublics.getSize();
 
                 log.add(LogType.MSG_CON_REIMPORT_PUBLIC, indent, numPublics);
@@ -1284,9 +1678,16 @@ public class ProviderHelper {
                 // 4. Re-Import public keyrings from cache
                 if (numPublics > 0) {
 
+                    long start = SystemClock.elapsedRealtime();
+                    SkipStoredIterator it = new SkipStoredIterator(itPublics, storedPublics);
                     ImportKeyResult result = new ImportOperation(mContext, this,
                             new ProgressFixedScaler(progress, 25, 99, 100, R.string.progress_con_reimport))
-                            .serialKeyRingImport(itPublics, numPublics, null, null);
+                            .parallelKeyRingImport(it, numPublics);
+                    Log.d(Constants.TAG, "Re-imported " + numPublics + " public keyrings in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms");
+                    if (it.mSkipped > 0) {
+                        log.add(LogType.MSG_CON_RECOVER_SKIP, indent, it.mSkipped);
+                    }
                     log.add(result, indent);
                 } else {
                     log.add(LogType.MSG_CON_REIMPORT_PUBLIC_SKIP, indent);
@@ -1339,6 +1740,171 @@ public class ProviderHelper {
 
     }
 
+    private HashSet<Long> getStoredMasterKeyIds(Uri uri) {
+        HashSet<Long> result = new HashSet<>();
+        Cursor cursor = mContentResolver.query(uri,
+                new String[]{KeyRingData.MASTER_KEY_ID}, null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    result.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
+    /** Leaves out the keyrings of an iterator whose master key id is in the given set. */
+    private static class SkipStoredIterator implements Iterator<ParcelableKeyRing> {
+        final Iterator<ParcelableKeyRing> mIterator;
+        final HashSet<Long> mStored;
+        ParcelableKeyRing mNext;
+        int mSkipped = 0;
+
+        SkipStoredIterator(Iterator<ParcelableKeyRing> iterator, HashSet<Long> stored) {
+            mIterator = iterator;
+            mStored = stored;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null && mIterator.hasNext()) {
+                ParcelableKeyRing ring = mIterator.next();
+                if (!mStored.isEmpty() && isStored(ring)) {
+                    mSkipped += 1;
+                    continue;
+                }
+                mNext = ring;
+            }
+            return mNext != null;
+        }
+
+        private boolean isStored(ParcelableKeyRing ring) {
+            try {
+                return mStored.contains(UncachedKeyRing.decodeFromData(ring.mBytes).getMasterKeyId());
+            } catch (PgpGeneralException | IOException e) {
+                // leave it to the import to deal with this one
+                return false;
+            }
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            hasNext();
+            try {
+                return mNext;
+            } finally {
+                mNext = null;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Updates the certifications made by keys which just became trusted or untrusted, i.e. by
+     * secret keys which were imported or deleted. This replaces a full consolidation in these
+     * cases: only the key rings which carry a certification by one of those keys are saved once
+     * more, which verifies or drops it according to the current trusted keys. The full
+     * consolidation in consolidateDatabaseStep1 is left for explicit repair.
+     *
+     * @param changedMasterKeyIds master key ids of the imported or deleted secret keys
+     */
+    @NonNull
+    public ConsolidateResult consolidateDatabaseIncremental(
+            List<Long> changedMasterKeyIds, Progressable progress) {
+
+        OperationLog log = new OperationLog();
+        int indent = 0;
+
+        log.add(LogType.MSG_CON, indent);
+        indent += 1;
+
+        // the same key ring may be certified by several of the keys
+        HashSet<Long> masterKeyIds = new HashSet<>();
+        for (long certifier : changedMasterKeyIds) {
+            Cursor cursor = mContentResolver.query(Certs.buildFindByCertifierUri(certifier),
+                    new String[]{ Certs.MASTER_KEY_ID }, null, null, null);
+            if (cursor == null) {
+                log.add(LogType.MSG_CON_ERROR_DB, indent);
+                return new ConsolidateResult(ConsolidateResult.RESULT_ERROR, log);
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    masterKeyIds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        log.add(LogType.MSG_CON_RESAVE, indent, masterKeyIds.size());
+        indent += 1;
+
+        int done = 0;
+        for (long masterKeyId : masterKeyIds) {
+            progress.setProgress(R.string.progress_con_reimport, done, masterKeyIds.size());
+            clearLog();
+            SaveKeyringResult result = resaveKeyRing(masterKeyId);
+            if (result != null) {
+                log.add(result, indent);
+            }
+            done += 1;
+        }
+        indent -= 1;
+
+        progress.setProgress(100, 100);
+        log.add(LogType.MSG_CON_SUCCESS, indent);
+
+        return new ConsolidateResult(ConsolidateResult.RESULT_OK, log);
+    }
+
+    /**
+     * Saves a key ring from the database once more, along with its secret key ring if there is
+     * one. Returns null if there is no such key ring (anymore).
+     */
+    private SaveKeyringResult resaveKeyRing(long masterKeyId) {
+        CanonicalizedPublicKeyRing canPublicRing;
+        CanonicalizedSecretKeyRing canSecretRing;
+        try {
+            canPublicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            return null;
+        }
+        try {
+            canSecretRing = getCanonicalizedSecretKeyRing(masterKeyId);
+        } catch (NotFoundException e) {
+            canSecretRing = null;
+        }
+
+        log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        mIndent += 1;
+        try {
+            int result = saveCanonicalizedPublicKeyRing(
+                    canPublicRing, new ProgressScaler(), canSecretRing != null);
+            if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
+                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            }
+
+            // the secret key ring was deleted along with the public one
+            if (canSecretRing != null) {
+                int secretResult = saveCanonicalizedSecretKeyRing(canSecretRing);
+                if ((secretResult & SaveKeyringResult.RESULT_ERROR) != SaveKeyringResult.RESULT_ERROR) {
+                    result |= SaveKeyringResult.SAVED_SECRET;
+                }
+            }
+
+            return new SaveKeyringResult(result, mLog, canSecretRing);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
     /**
      * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
      */
@@ -1359,6 +1925,38 @@ public class ProviderHelper {
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
+    /**
+     * Returns the lower-cased email address at the end of a user id, in the form
+     * "Name &lt;email&gt;", or null if the user id doesn't end with one.
+     */
+    static String getNormalizedEmail(String userId) {
+        if (userId == null || !userId.endsWith(">")) {
+            return null;
+        }
+        int start = userId.lastIndexOf('<');
+        if (start < 0) {
+            return null;
+        }
+        return normalizeEmail(userId.substring(start + 1, userId.length() - 1));
+    }
+
+    /**
+     * Normalizes an email address for comparison with the email column of user packets.
+     */
+    static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private ContentProviderOperation buildKeySummaryOperation(long masterKeyId) {
+        return ContentProviderOperation.newInsert(KeyRings.buildKeySummaryUri(masterKeyId))
+                .withValue(KeyRings.MASTER_KEY_ID, masterKeyId).build();
+    }
+
+    private ContentProviderOperation buildSearchIndexOperation(long masterKeyId) {
+        return ContentProviderOperation.newInsert(KeyRings.buildSearchIndexUri(masterKeyId))
+                .withValue(KeyRings.MASTER_KEY_ID, masterKeyId).build();
+    }
+
     /**
      * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
      */
@@ -1368,6 +1966,7 @@ public class ProviderHelper {
         values.put(UserPackets.MASTER_KEY_ID, masterKeyId);
         values.put(UserPackets.TYPE, item.type);
         values.put(UserPackets.USER_ID, item.userId);
+        values.put(UserPackets.EMAIL, getNormalizedEmail(item.userId));
         values.put(UserPackets.ATTRIBUTE_DATA, item.attributeData);
         values.put(UserPackets.IS_PRIMARY, item.isPrimary);
         values.put(UserPackets.IS_REVOKED, item.selfRevocation != null);
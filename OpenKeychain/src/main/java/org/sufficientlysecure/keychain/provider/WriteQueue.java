@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Serializes all writes to the database, committing them in groups.
+ *
+ * There is only ever one thread writing. Writes which come in while it is busy are queued, and
+ * once it is done the next waiting thread takes over and applies all of them in a single
+ * transaction, so a burst of small writes costs only a few commits. If any write of a group
+ * fails, with an exception or an error, or the commit itself fails, the group is rolled back
+ * and its writes are applied again one by one, each in a transaction of its own, so a failed
+ * write never takes others down with it.
+ *
+ * Readers are not affected by any of this, in write-ahead-log mode they keep reading the last
+ * committed state while a transaction is in progress.
+ */
+abstract class WriteQueue {
+
+    interface Write<T> {
+        T apply() throws OperationApplicationException;
+    }
+
+    private static class Entry {
+        final Write<?> mWrite;
+        Object mResult;
+        Throwable mFailure;
+        boolean mCommitted;
+        boolean mDone;
+
+        Entry(Write<?> write) {
+            mWrite = write;
+        }
+    }
+
+    private final ArrayList<Entry> mPending = new ArrayList<>();
+    private boolean mWriting = false;
+
+    protected abstract SQLiteDatabase getWritableDatabase();
+
+    /** Called on the writing thread before each transaction is started. */
+    protected abstract void onTransactionStart();
+
+    /** Called on the writing thread after each transaction, whether it was committed or not. */
+    protected abstract void onTransactionEnd(boolean committed);
+
+    /**
+     * Applies the write as part of the next transaction, and blocks until it is committed.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T write(Write<T> write) throws OperationApplicationException {
+        Entry entry = new Entry(write);
+        List<Entry> group = null;
+
+        synchronized (this) {
+            mPending.add(entry);
+            boolean interrupted = false;
+            while (mWriting && !entry.mDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the write is queued already, so we must see it through
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (!entry.mDone) {
+                mWriting = true;
+                group = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+        }
+
+        if (group != null) {
+            try {
+                commit(group);
+            } finally {
+                synchronized (this) {
+                    for (Entry done : group) {
+                        done.mDone = true;
+                    }
+                    mWriting = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        if (entry.mFailure instanceof OperationApplicationException) {
+            throw (OperationApplicationException) entry.mFailure;
+        }
+        if (entry.mFailure instanceof RuntimeException) {
+            throw (RuntimeException) entry.mFailure;
+        }
+        if (entry.mFailure instanceof Error) {
+            throw (Error) entry.mFailure;
+        }
+        if (!entry.mCommitted) {
+            throw new IllegalStateException("Write was aborted by a failed commit!");
+        }
+        return (T) entry.mResult;
+    }
+
+    private void commit(List<Entry> group) {
+        if (group.size() > 1) {
+            try {
+                if (apply(group)) {
+                    return;
+                }
+            } catch (Throwable e) {
+                // the transaction itself failed, find out which writes can be committed alone
+            }
+        }
+        for (Entry entry : group) {
+            entry.mResult = null;
+            entry.mFailure = null;
+            try {
+                apply(Collections.singletonList(entry));
+            } catch (Throwable e) {
+                entry.mFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Applies all writes in a single transaction. If one of them fails, whatever it threw is
+     * kept, the transaction is rolled back and false is returned.
+     */
+    private boolean apply(List<Entry> entries) {
+        SQLiteDatabase db = getWritableDatabase();
+        boolean committed = false;
+
+        onTransactionStart();
+        try {
+            db.beginTransaction();
+            try {
+                for (Entry entry : entries) {
+                    try {
+                        entry.mResult = entry.mWrite.apply();
+                    } catch (Throwable e) {
+                        entry.mFailure = e;
+                        return false;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            committed = true;
+        } finally {
+            onTransactionEnd(committed);
+        }
+
+        for (Entry entry : entries) {
+            entry.mCommitted = true;
+        }
+        return true;
+    }
+
+}
@@ -20,10 +20,9 @@ package org.sufficientlysecure.keychain.remote;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
 import android.text.TextUtils;
 
 import org.openintents.openpgp.IOpenPgpService;
@@ -45,7 +44,6 @@ import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.remote.ui.RemoteServiceActivity;
 import org.sufficientlysecure.keychain.remote.ui.SelectAllowedKeysActivity;
@@ -65,20 +63,28 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 
 public class OpenPgpService extends RemoteService {
 
-    static final String[] EMAIL_SEARCH_PROJECTION = new String[]{
-            KeyRings._ID,
-            KeyRings.MASTER_KEY_ID,
-            KeyRings.IS_EXPIRED,
-            KeyRings.IS_REVOKED,
-    };
-
-    // do not pre-select revoked or expired keys
-    static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
-            + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
+    /**
+     * Decrypts several messages in one call. Inputs and outputs are given as arrays of
+     * ParcelFileDescriptors in EXTRA_BATCH_INPUTS and EXTRA_BATCH_OUTPUTS, the input and output
+     * descriptors of the call itself are ignored. RESULT_BATCH_RESULTS contains one result per
+     * message, each exactly like the result of ACTION_DECRYPT_VERIFY.
+     * <p/>
+     * If any message needs user interaction, the batch result itself has
+     * RESULT_CODE_USER_INTERACTION_REQUIRED and a single RESULT_INTENT, and so do the results of
+     * all messages which were not decrypted for this reason. The intent returned by that
+     * interaction holds no descriptors, the client must add fresh ones and send the whole batch
+     * again.
+     */
+    public static final String ACTION_DECRYPT_VERIFY_BATCH = Constants.INTENT_PREFIX
+            + "DECRYPT_VERIFY_BATCH";
+    public static final String EXTRA_BATCH_INPUTS = "batch_inputs";
+    public static final String EXTRA_BATCH_OUTPUTS = "batch_outputs";
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
 
     /**
      * Search database for key ids based on emails.
@@ -92,34 +98,26 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingEmails = new ArrayList<>();
         ArrayList<String> duplicateEmails = new ArrayList<>();
         if (!noUserIdsCheck) {
+            HashMap<String, ArrayList<Long>> emailKeyIds =
+                    new ProviderHelper(this).getMasterKeyIdsByEmails(encryptionUserIds);
             for (String email : encryptionUserIds) {
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingEmails.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> two keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateEmails.add(email);
-
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+                ArrayList<Long> ids = emailKeyIds.get(email);
+                // result should be one entry containing the key id
+                if (!ids.isEmpty()) {
+                    keyIds.add(ids.get(0));
+                } else {
+                    missingUserIdsCheck = true;
+                    missingEmails.add(email);
+                    Log.d(Constants.TAG, "user id missing");
+                }
+                // another entry for this email -> two keys with the same email inside user id
+                if (ids.size() > 1) {
+                    duplicateUserIdsCheck = true;
+                    duplicateEmails.add(email);
+
+                    // also pre-select
+                    keyIds.add(ids.get(1));
+                    Log.d(Constants.TAG, "more than one user id with the same email");
                 }
             }
         }
@@ -201,6 +199,11 @@ public class OpenPgpService extends RemoteService {
     }
 
     private PendingIntent getKeyserverPendingIntent(Intent data, long masterKeyId) {
+        return getKeyserverPendingIntent(data, masterKeyId, 0);
+    }
+
+    private PendingIntent getKeyserverPendingIntent(Intent data, long masterKeyId,
+                                                    int requestCode) {
         // If signature is unknown we return an _additional_ PendingIntent
         // to retrieve the missing key
         Intent intent = new Intent(getBaseContext(), ImportKeysActivity.class);
@@ -208,7 +211,7 @@ public class OpenPgpService extends RemoteService {
         intent.putExtra(ImportKeysActivity.EXTRA_KEY_ID, masterKeyId);
         intent.putExtra(ImportKeysActivity.EXTRA_PENDING_INTENT_DATA, data);
 
-        return PendingIntent.getActivity(getBaseContext(), 0,
+        return PendingIntent.getActivity(getBaseContext(), requestCode,
                 intent,
                 PendingIntent.FLAG_CANCEL_CURRENT);
     }
@@ -511,24 +514,7 @@ public class OpenPgpService extends RemoteService {
                 outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(output);
             }
 
-            String currentPkg = getCurrentCallingPackage();
-            HashSet<Long> allowedKeyIds = mProviderHelper.getAllowedKeyIdsForApp(
-                    KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
-
-            if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7) {
-                allowedKeyIds.addAll(mProviderHelper.getAllKeyIdsForApp(
-                        ApiAccounts.buildBaseUri(currentPkg)));
-            }
-
-            CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
-            if (cryptoInput == null) {
-                cryptoInput = new CryptoInputParcel();
-            }
-            // override passphrase in input parcel if given by API call
-            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                cryptoInput.mPassphrase =
-                        new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE));
-            }
+            CryptoInputParcel cryptoInput = getDecryptCryptoInput(data);
 
             byte[] detachedSignature = data.getByteArrayExtra(OpenPgpApi.EXTRA_DETACHED_SIGNATURE);
 
@@ -537,115 +523,260 @@ public class OpenPgpService extends RemoteService {
             long inputLength = inputStream.available();
             InputData inputData = new InputData(inputStream, inputLength);
 
-            // allow only private keys associated with accounts of this app
-            // no support for symmetric encryption
-            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel()
-                .setAllowSymmetricDecryption(false)
-                .setAllowedKeyIds(allowedKeyIds)
-                .setDecryptMetadataOnly(decryptMetadataOnly)
+            PgpDecryptVerifyInputParcel input = getDecryptInput(data, decryptMetadataOnly)
                 .setDetachedSignature(detachedSignature);
 
             DecryptVerifyResult pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
+            return getDecryptVerifyResultIntent(data, pgpResult);
 
-            if (pgpResult.isPending()) {
-                // prepare and return PendingIntent to be executed by client
-                RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = getRequiredInputPendingIntent(getBaseContext(), data,
-                        requiredInput, pgpResult.mCryptoInputParcel);
-
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                return result;
-
-            } else if (pgpResult.success()) {
-                Intent result = new Intent();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "decryptAndVerifyImpl", e);
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException when closing InputStream", e);
+                }
+            }
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException when closing OutputStream", e);
+                }
+            }
+        }
+    }
 
-                OpenPgpSignatureResult signatureResult = pgpResult.getSignatureResult();
-                // TODO: currently RESULT_TYPE_UNENCRYPTED_UNSIGNED is never returned
-                // instead an error is returned when no pgp data has been found
-                int resultType = OpenPgpApi.RESULT_TYPE_UNENCRYPTED_UNSIGNED;
-                if (signatureResult != null) {
-                    resultType |= OpenPgpApi.RESULT_TYPE_SIGNED;
-                    if (!signatureResult.isSignatureOnly()) {
-                        resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
-                    }
+    /**
+     * Decrypts a number of messages in one call, see ACTION_DECRYPT_VERIFY_BATCH. Keyrings,
+     * passphrases and unlocked keys are shared between all messages of the batch.
+     */
+    private Intent decryptAndVerifyBatchImpl(Intent data) {
+        Parcelable[] inputDescriptors = data.getParcelableArrayExtra(EXTRA_BATCH_INPUTS);
+        Parcelable[] outputDescriptors = data.getParcelableArrayExtra(EXTRA_BATCH_OUTPUTS);
 
-                    result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
+        if (inputDescriptors == null || outputDescriptors == null
+                || inputDescriptors.length != outputDescriptors.length) {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                    "batch decryption needs exactly one output for each input!"));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        }
 
-                    if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 5) {
-                        // SIGNATURE_KEY_REVOKED and SIGNATURE_KEY_EXPIRED have been added in version 5
-                        if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_REVOKED
-                                || signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_EXPIRED) {
-                            signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_ERROR);
-                        }
-                    }
+        ArrayList<InputData> inputs = new ArrayList<>(inputDescriptors.length);
+        ArrayList<OutputStream> outputs = new ArrayList<>(outputDescriptors.length);
+        try {
+            for (int i = 0; i < inputDescriptors.length; i++) {
+                InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(
+                        (ParcelFileDescriptor) inputDescriptors[i]);
+                inputs.add(new InputData(inputStream, inputStream.available()));
+                outputs.add(new ParcelFileDescriptor.AutoCloseOutputStream(
+                        (ParcelFileDescriptor) outputDescriptors[i]));
+            }
 
-                    if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_MISSING) {
-                        // If signature is unknown we return an _additional_ PendingIntent
-                        // to retrieve the missing key
-                        result.putExtra(OpenPgpApi.RESULT_INTENT, getKeyserverPendingIntent(data, signatureResult.getKeyId()));
-                    } else {
-                        // If signature key is known, return PendingIntent to show key
-                        result.putExtra(OpenPgpApi.RESULT_INTENT, getShowKeyPendingIntent(signatureResult.getKeyId()));
-                    }
-                } else {
-                    resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
-                }
-                result.putExtra(OpenPgpApi.RESULT_TYPE, resultType);
+            PgpDecryptVerify op = new PgpDecryptVerify(this, mProviderHelper, null);
+            ArrayList<DecryptVerifyResult> pgpResults = op.executeBatch(
+                    getDecryptInput(data, false), getDecryptCryptoInput(data), inputs, outputs);
 
-                if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) >= 4) {
-                    OpenPgpMetadata metadata = pgpResult.getDecryptMetadata();
-                    if (metadata != null) {
-                        result.putExtra(OpenPgpApi.RESULT_METADATA, metadata);
-                    }
-                }
+            // descriptors can't be put in a PendingIntent, and are used up by now anyways
+            Intent batchData = new Intent(data);
+            batchData.removeExtra(EXTRA_BATCH_INPUTS);
+            batchData.removeExtra(EXTRA_BATCH_OUTPUTS);
 
-                String charset = pgpResult.getCharset();
-                if (charset != null) {
-                    result.putExtra(OpenPgpApi.RESULT_CHARSET, charset);
+            Intent result = new Intent();
+            ArrayList<Intent> results = new ArrayList<>(pgpResults.size());
+            for (int i = 0; i < pgpResults.size(); i++) {
+                DecryptVerifyResult pgpResult = pgpResults.get(i);
+                boolean keysDisallowed = !pgpResult.isPending() && !pgpResult.success()
+                        && pgpResult.isKeysDisallowed();
+                if (!pgpResult.isPending() && !keysDisallowed) {
+                    // each message gets its own request code, so their intents stay distinct
+                    results.add(getDecryptVerifyResultIntent(batchData, pgpResult, i + 1));
+                    continue;
                 }
 
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
-                return result;
-            } else {
-                //
-                if (pgpResult.isKeysDisallowed()) {
-                    // allow user to select allowed keys
-                    Intent result = new Intent();
-                    result.putExtra(OpenPgpApi.RESULT_INTENT, getSelectAllowedKeysIntent(data));
-                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                    return result;
+                // one interaction for the whole batch, which is then sent again
+                if (!result.hasExtra(OpenPgpApi.RESULT_INTENT)) {
+                    result.putExtra(OpenPgpApi.RESULT_INTENT, keysDisallowed
+                            ? getSelectAllowedKeysIntent(batchData)
+                            : getRequiredInputPendingIntent(getBaseContext(), batchData,
+                                    pgpResult.getRequiredInputParcel(),
+                                    pgpResult.mCryptoInputParcel));
                 }
-
-                String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, errorMsg));
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
-                return result;
+                Intent pendingResult = new Intent();
+                pendingResult.putExtra(OpenPgpApi.RESULT_CODE,
+                        OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                results.add(pendingResult);
             }
 
+            result.putParcelableArrayListExtra(RESULT_BATCH_RESULTS, results);
+            result.putExtra(OpenPgpApi.RESULT_CODE, result.hasExtra(OpenPgpApi.RESULT_INTENT)
+                    ? OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED
+                    : OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+
         } catch (IOException e) {
-            Log.e(Constants.TAG, "decryptAndVerifyImpl", e);
+            Log.e(Constants.TAG, "decryptAndVerifyBatchImpl", e);
             Intent result = new Intent();
             result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
             result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
             return result;
         } finally {
-            if (inputStream != null) {
+            for (InputData inputData : inputs) {
                 try {
-                    inputStream.close();
+                    inputData.getInputStream().close();
                 } catch (IOException e) {
                     Log.e(Constants.TAG, "IOException when closing InputStream", e);
                 }
             }
-            if (outputStream != null) {
+            for (OutputStream outputStream : outputs) {
                 try {
                     outputStream.close();
                 } catch (IOException e) {
                     Log.e(Constants.TAG, "IOException when closing OutputStream", e);
                 }
             }
+            // close descriptors which were never wrapped in a stream
+            for (int i = inputs.size(); inputDescriptors != null && i < inputDescriptors.length; i++) {
+                closeQuietly((ParcelFileDescriptor) inputDescriptors[i]);
+            }
+            for (int i = outputs.size(); outputDescriptors != null && i < outputDescriptors.length; i++) {
+                closeQuietly((ParcelFileDescriptor) outputDescriptors[i]);
+            }
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor descriptor) {
+        if (descriptor == null) {
+            return;
+        }
+        try {
+            descriptor.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException when closing ParcelFileDescriptor", e);
+        }
+    }
+
+    private PgpDecryptVerifyInputParcel getDecryptInput(Intent data, boolean decryptMetadataOnly) {
+        String currentPkg = getCurrentCallingPackage();
+        HashSet<Long> allowedKeyIds = mProviderHelper.getAllowedKeyIdsForApp(
+                KeychainContract.ApiAllowedKeys.buildBaseUri(currentPkg));
+
+        if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 7) {
+            allowedKeyIds.addAll(mProviderHelper.getAllKeyIdsForApp(
+                    ApiAccounts.buildBaseUri(currentPkg)));
+        }
+
+        // allow only private keys associated with accounts of this app
+        // no support for symmetric encryption
+        return new PgpDecryptVerifyInputParcel()
+                .setAllowSymmetricDecryption(false)
+                .setAllowedKeyIds(allowedKeyIds)
+                .setDecryptMetadataOnly(decryptMetadataOnly);
+    }
+
+    private CryptoInputParcel getDecryptCryptoInput(Intent data) {
+        CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+        if (cryptoInput == null) {
+            cryptoInput = new CryptoInputParcel();
+        }
+        // override passphrase in input parcel if given by API call
+        if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+            cryptoInput.mPassphrase =
+                    new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE));
+        }
+        return cryptoInput;
+    }
+
+    private Intent getDecryptVerifyResultIntent(Intent data, DecryptVerifyResult pgpResult) {
+        return getDecryptVerifyResultIntent(data, pgpResult, 0);
+    }
+
+    private Intent getDecryptVerifyResultIntent(Intent data, DecryptVerifyResult pgpResult,
+                                                int requestCode) {
+        if (pgpResult.isPending()) {
+            // prepare and return PendingIntent to be executed by client
+            RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
+            PendingIntent pIntent = getRequiredInputPendingIntent(getBaseContext(), data,
+                    requiredInput, pgpResult.mCryptoInputParcel);
+
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+            return result;
+
+        } else if (pgpResult.success()) {
+            Intent result = new Intent();
+
+            OpenPgpSignatureResult signatureResult = pgpResult.getSignatureResult();
+            // TODO: currently RESULT_TYPE_UNENCRYPTED_UNSIGNED is never returned
+            // instead an error is returned when no pgp data has been found
+            int resultType = OpenPgpApi.RESULT_TYPE_UNENCRYPTED_UNSIGNED;
+            if (signatureResult != null) {
+                resultType |= OpenPgpApi.RESULT_TYPE_SIGNED;
+                if (!signatureResult.isSignatureOnly()) {
+                    resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
+                }
+
+                result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
+
+                if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) < 5) {
+                    // SIGNATURE_KEY_REVOKED and SIGNATURE_KEY_EXPIRED have been added in version 5
+                    if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_REVOKED
+                            || signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_EXPIRED) {
+                        signatureResult.setStatus(OpenPgpSignatureResult.SIGNATURE_ERROR);
+                    }
+                }
+
+                if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_KEY_MISSING) {
+                    // If signature is unknown we return an _additional_ PendingIntent
+                    // to retrieve the missing key
+                    result.putExtra(OpenPgpApi.RESULT_INTENT, getKeyserverPendingIntent(data, signatureResult.getKeyId(), requestCode));
+                } else {
+                    // If signature key is known, return PendingIntent to show key
+                    result.putExtra(OpenPgpApi.RESULT_INTENT, getShowKeyPendingIntent(signatureResult.getKeyId()));
+                }
+            } else {
+                resultType |= OpenPgpApi.RESULT_TYPE_ENCRYPTED;
+            }
+            result.putExtra(OpenPgpApi.RESULT_TYPE, resultType);
+
+            if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) >= 4) {
+                OpenPgpMetadata metadata = pgpResult.getDecryptMetadata();
+                if (metadata != null) {
+                    result.putExtra(OpenPgpApi.RESULT_METADATA, metadata);
+                }
+            }
+
+            String charset = pgpResult.getCharset();
+            if (charset != null) {
+                result.putExtra(OpenPgpApi.RESULT_CHARSET, charset);
+            }
+
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } else {
+            //
+            if (pgpResult.isKeysDisallowed()) {
+                // allow user to select allowed keys
+                Intent result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_INTENT, getSelectAllowedKeysIntent(data));
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+                return result;
+            }
+
+            String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR, new OpenPgpError(OpenPgpError.GENERIC_ERROR, errorMsg));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
         }
     }
 
@@ -827,6 +958,9 @@ public class OpenPgpService extends RemoteService {
                     case OpenPgpApi.ACTION_DECRYPT_METADATA: {
                         return decryptAndVerifyImpl(data, input, output, true);
                     }
+                    case ACTION_DECRYPT_VERIFY_BATCH: {
+                        return decryptAndVerifyBatchImpl(data);
+                    }
                     case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
                         return getSignKeyIdImpl(data);
                     }
@@ -49,6 +49,8 @@ import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageSta
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -64,10 +66,12 @@ public class KeychainService extends Service implements Progressable {
     public static final String EXTRA_OPERATION_INPUT = "op_input";
     public static final String EXTRA_CRYPTO_INPUT = "crypto_input";
 
+    // cancels the operations which report to the EXTRA_MESSENGER of the intent, or all of them
+    // if there is none
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
+    // cancel flags of the running operations, by the messenger they report to
+    private final HashMap<Messenger, ArrayList<AtomicBoolean>> mCancelFlags = new HashMap<>();
 
     ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
 
@@ -83,68 +87,49 @@ public class KeychainService extends Service implements Progressable {
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+            synchronized (mCancelFlags) {
+                if (messenger == null) {
+                    for (ArrayList<AtomicBoolean> cancelFlags : mCancelFlags.values()) {
+                        for (AtomicBoolean cancelFlag : cancelFlags) {
+                            cancelFlag.set(true);
+                        }
+                    }
+                } else if (mCancelFlags.containsKey(messenger)) {
+                    for (AtomicBoolean cancelFlag : mCancelFlags.get(messenger)) {
+                        cancelFlag.set(true);
+                    }
+                }
+            }
             return START_NOT_STICKY;
         }
 
+        // registered right away, so a cancel which comes in before the thread runs isn't lost
+        final Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
+        final AtomicBoolean actionCanceled = new AtomicBoolean(false);
+        synchronized (mCancelFlags) {
+            ArrayList<AtomicBoolean> cancelFlags = mCancelFlags.get(messenger);
+            if (cancelFlags == null) {
+                cancelFlags = new ArrayList<>();
+                mCancelFlags.put(messenger, cancelFlags);
+            }
+            cancelFlags.add(actionCanceled);
+        }
+
         Runnable actionRunnable = new Runnable() {
             @Override
             public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
-
-                Bundle extras = intent.getExtras();
-
-                // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.<Messenger>getParcelable(EXTRA_MESSENGER));
-
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
-                CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
-
-                // Operation
-                BaseOperation op;
-
-                // just for brevity
-                KeychainService outerThis = KeychainService.this;
-                if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis),
-                            outerThis, mActionCanceled);
-                } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
-                    op = new PgpDecryptVerify(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis,
-                            mActionCanceled);
-                } else if (inputParcel instanceof RevokeKeyringParcel) {
-                    op = new RevokeOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis,
-                            mActionCanceled);
-                } else if (inputParcel instanceof DeleteKeyringParcel) {
-                    op = new DeleteOperation(outerThis, new ProviderHelper(outerThis), outerThis);
-                } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis),
-                            outerThis, mActionCanceled);
-                } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis,
-                            mActionCanceled);
-                } else if (inputParcel instanceof ExportKeyringParcel) {
-                    op = new ExportOperation(outerThis, new ProviderHelper(outerThis), outerThis,
-                            mActionCanceled);
-                } else if (inputParcel instanceof ConsolidateInputParcel) {
-                    op = new ConsolidateOperation(outerThis, new ProviderHelper(outerThis),
-                            outerThis);
-                } else if (inputParcel instanceof KeybaseVerificationParcel) {
-                    op = new KeybaseVerificationOperation(outerThis, new ProviderHelper(outerThis),
-                            outerThis);
-                } else {
-                    throw new AssertionError("Unrecognized input parcel in KeychainService!");
+                try {
+                    runOperation(intent.getExtras(), messenger, actionCanceled);
+                } finally {
+                    synchronized (mCancelFlags) {
+                        ArrayList<AtomicBoolean> cancelFlags = mCancelFlags.get(messenger);
+                        cancelFlags.remove(actionCanceled);
+                        if (cancelFlags.isEmpty()) {
+                            mCancelFlags.remove(messenger);
+                        }
+                    }
                 }
-
-                @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
-                sendMessageToHandler(MessageStatus.OKAY, result);
-
             }
         };
 
@@ -154,6 +139,58 @@ public class KeychainService extends Service implements Progressable {
         return START_NOT_STICKY;
     }
 
+    private void runOperation(Bundle extras, Messenger messenger, AtomicBoolean actionCanceled) {
+        // Set messenger for communication (for this particular thread)
+        mMessenger.set(messenger);
+
+        // Input
+        Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
+        CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+
+        // Operation
+        BaseOperation op;
+
+        // just for brevity
+        KeychainService outerThis = KeychainService.this;
+        if (inputParcel instanceof SignEncryptParcel) {
+            op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis),
+                    outerThis, actionCanceled);
+        } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
+            op = new PgpDecryptVerify(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof SaveKeyringParcel) {
+            op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis,
+                    actionCanceled);
+        } else if (inputParcel instanceof RevokeKeyringParcel) {
+            op = new RevokeOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof CertifyActionsParcel) {
+            op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis,
+                    actionCanceled);
+        } else if (inputParcel instanceof DeleteKeyringParcel) {
+            op = new DeleteOperation(outerThis, new ProviderHelper(outerThis), outerThis);
+        } else if (inputParcel instanceof PromoteKeyringParcel) {
+            op = new PromoteKeyOperation(outerThis, new ProviderHelper(outerThis),
+                    outerThis, actionCanceled);
+        } else if (inputParcel instanceof ImportKeyringParcel) {
+            op = new ImportOperation(outerThis, new ProviderHelper(outerThis), outerThis,
+                    actionCanceled);
+        } else if (inputParcel instanceof ExportKeyringParcel) {
+            op = new ExportOperation(outerThis, new ProviderHelper(outerThis), outerThis,
+                    actionCanceled);
+        } else if (inputParcel instanceof ConsolidateInputParcel) {
+            op = new ConsolidateOperation(outerThis, new ProviderHelper(outerThis),
+                    outerThis);
+        } else if (inputParcel instanceof KeybaseVerificationParcel) {
+            op = new KeybaseVerificationOperation(outerThis, new ProviderHelper(outerThis),
+                    outerThis);
+        } else {
+            throw new AssertionError("Unrecognized input parcel in KeychainService!");
+        }
+
+        @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
+        OperationResult result = op.execute(inputParcel, cryptoInput);
+        sendMessageToHandler(MessageStatus.OKAY, result);
+    }
+
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
 
         Message msg = Message.obtain();
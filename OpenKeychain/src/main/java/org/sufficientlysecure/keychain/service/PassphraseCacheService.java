@@ -48,6 +48,7 @@ import android.support.v4.util.LongSparseArray;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
@@ -432,6 +433,7 @@ public class PassphraseCacheService extends Service {
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
                     mPassphraseCache.delete(referenceKeyId);
+                    UnlockedKeyCache.broadcastClear(this, referenceKeyId);
 
                 } else {
 
@@ -440,6 +442,7 @@ public class PassphraseCacheService extends Service {
                         am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
                     }
                     mPassphraseCache.clear();
+                    UnlockedKeyCache.broadcastClear(this, null);
 
                 }
                 break;
@@ -469,6 +472,8 @@ public class PassphraseCacheService extends Service {
             // remove passphrase object
             mPassphraseCache.remove(keyId);
         }
+        // unlocked keys time out together with their passphrase
+        UnlockedKeyCache.broadcastClear(this, keyId);
 
         Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
 
@@ -39,11 +39,14 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.provider.DocumentsContract;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -70,6 +73,7 @@ import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
 import org.sufficientlysecure.keychain.ui.DecryptListFragment.DecryptFilesAdapter.ViewModel;
 import org.sufficientlysecure.keychain.ui.adapter.SpacesItemDecoration;
+import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.util.FormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -89,7 +93,15 @@ public class DecryptListFragment
     public static final String ARG_RESULTS = "results";
 
     private static final int REQUEST_CODE_OUTPUT = 0x00007007;
+    private static final int REQUEST_CODE_OUTPUT_DIRECTORY = 0x00007008;
     public static final String ARG_CURRENT_URI = "current_uri";
+    public static final String ARG_OUTPUT_DIRECTORY = "output_directory";
+    public static final String ARG_PARALLEL_URIS = "parallel_uris";
+    public static final String ARG_PARALLEL_ALLOWED = "parallel_allowed";
+
+    // ids of the helpers decrypting in parallel to the one of this fragment, which uses id 1.
+    // CryptoOperationHelper matches request codes by bitmask, so these must not share bits.
+    private static final int[] PARALLEL_HELPER_IDS = { 2, 4 };
 
     private ArrayList<Uri> mInputUris;
     private HashMap<Uri, Uri> mOutputUris;
@@ -98,6 +110,13 @@ public class DecryptListFragment
 
     private Uri mCurrentInputUri;
 
+    // if set, files are decrypted directly into this directory instead of temporary storage
+    private Uri mOutputDirectoryUri;
+
+    private ArrayList<ParallelDecryptCallback> mParallelCallbacks;
+    // parallel operations only start after a first success, so passphrase dialogs don't pile up
+    private boolean mParallelAllowed;
+
     private DecryptFilesAdapter mAdapter;
 
     /**
@@ -117,6 +136,35 @@ public class DecryptListFragment
         super(null);
     }
 
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mParallelCallbacks = new ArrayList<>(PARALLEL_HELPER_IDS.length);
+        for (int id : PARALLEL_HELPER_IDS) {
+            mParallelCallbacks.add(new ParallelDecryptCallback(id));
+        }
+
+        setHasOptionsMenu(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        super.onCreateOptionsMenu(menu, inflater);
+        inflater.inflate(R.menu.decrypt_list_menu, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.decrypt_save_all: {
+                FileHelper.openDocumentTree(this, REQUEST_CODE_OUTPUT_DIRECTORY);
+                return true;
+            }
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     /**
      * Inflate the layout for this fragment
      */
@@ -160,6 +208,17 @@ public class DecryptListFragment
         outState.putParcelable(ARG_OUTPUT_URIS, new ParcelableHashMap<>(mOutputUris));
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putParcelable(ARG_CURRENT_URI, mCurrentInputUri);
+        outState.putParcelable(ARG_OUTPUT_DIRECTORY, mOutputDirectoryUri);
+
+        // the results of these are lost, they are decrypted again into the same output
+        ArrayList<Uri> parallelUris = new ArrayList<>();
+        for (ParallelDecryptCallback callback : mParallelCallbacks) {
+            if (callback.mInputUri != null) {
+                parallelUris.add(callback.mInputUri);
+            }
+        }
+        outState.putParcelableArrayList(ARG_PARALLEL_URIS, parallelUris);
+        outState.putBoolean(ARG_PARALLEL_ALLOWED, mParallelAllowed);
 
     }
 
@@ -174,16 +233,19 @@ public class DecryptListFragment
         ParcelableHashMap<Uri,Uri> outputUris = args.getParcelable(ARG_OUTPUT_URIS);
         ParcelableHashMap<Uri,DecryptVerifyResult> results = args.getParcelable(ARG_RESULTS);
         Uri currentInputUri = args.getParcelable(ARG_CURRENT_URI);
+        ArrayList<Uri> parallelUris = args.getParcelableArrayList(ARG_PARALLEL_URIS);
+        mOutputDirectoryUri = args.getParcelable(ARG_OUTPUT_DIRECTORY);
+        mParallelAllowed = args.getBoolean(ARG_PARALLEL_ALLOWED);
 
-        displayInputUris(inputUris, currentInputUri, cancelledUris,
+        displayInputUris(inputUris, currentInputUri, parallelUris, cancelledUris,
                 outputUris != null ? outputUris.getMap() : null,
                 results != null ? results.getMap() : null
         );
     }
 
     private void displayInputUris(ArrayList<Uri> inputUris, Uri currentInputUri,
-            ArrayList<Uri> cancelledUris, HashMap<Uri,Uri> outputUris,
-            HashMap<Uri,DecryptVerifyResult> results) {
+            ArrayList<Uri> parallelUris, ArrayList<Uri> cancelledUris,
+            HashMap<Uri,Uri> outputUris, HashMap<Uri,DecryptVerifyResult> results) {
 
         mInputUris = inputUris;
         mCurrentInputUri = currentInputUri;
@@ -212,14 +274,26 @@ public class DecryptListFragment
             if (results != null && results.containsKey(uri)) {
                 processResult(uri, results.get(uri));
             } else {
-                mOutputUris.put(uri, TemporaryStorageProvider.createFile(getActivity()));
+                // an output which was created already is reused, see prepareOutputUri
                 mPendingInputUris.add(uri);
             }
         }
 
+        if (parallelUris != null) {
+            // these were interrupted, so they go first
+            ArrayList<Uri> interruptedUris = new ArrayList<>();
+            for (Uri uri : parallelUris) {
+                if (mPendingInputUris.remove(uri)) {
+                    interruptedUris.add(uri);
+                }
+            }
+            mPendingInputUris.addAll(0, interruptedUris);
+        }
+
         if (mCurrentInputUri == null) {
-            cryptoOperation();
+            decryptNext();
         }
+        startParallelOperations();
     }
 
     private void askForOutputFilename(Uri inputUri, String originalFilename, String mimeType) {
@@ -248,7 +322,19 @@ public class DecryptListFragment
                 return;
             }
 
+            case REQUEST_CODE_OUTPUT_DIRECTORY: {
+                if (resultCode == Activity.RESULT_OK && data != null) {
+                    saveAllToDirectory(data.getData());
+                }
+                return;
+            }
+
             default: {
+                for (ParallelDecryptCallback callback : mParallelCallbacks) {
+                    if (callback.mHelper.handleActivityResult(requestCode, resultCode, data)) {
+                        return;
+                    }
+                }
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
@@ -280,9 +366,10 @@ public class DecryptListFragment
         final Uri uri = mCurrentInputUri;
         mCurrentInputUri = null;
 
+        discardOutput(uri);
         mAdapter.addResult(uri, result, null, null, null);
 
-        cryptoOperation();
+        decryptNext();
     }
 
     @Override
@@ -292,7 +379,10 @@ public class DecryptListFragment
 
         processResult(uri, result);
 
-        cryptoOperation();
+        decryptNext();
+
+        mParallelAllowed = true;
+        startParallelOperations();
     }
 
     @Override
@@ -310,13 +400,15 @@ public class DecryptListFragment
             }
         });
 
-        cryptoOperation();
+        decryptNext();
 
     }
 
     private void processResult(final Uri uri, final DecryptVerifyResult result) {
 
         new AsyncTask<Void, Void, Drawable>() {
+            Uri mRenamedOutputUri;
+
             @Override
             protected Drawable doInBackground(Void... params) {
 
@@ -331,7 +423,13 @@ public class DecryptListFragment
                     return null;
                 }
 
-                TemporaryStorageProvider.setMimeType(context, outputUri, type);
+                if (isTemporaryUri(outputUri)) {
+                    TemporaryStorageProvider.setMimeType(context, outputUri, type);
+                } else {
+                    outputUri = renameToOriginalFilename(context, outputUri,
+                            result.getDecryptMetadata().getFilename());
+                    mRenamedOutputUri = outputUri;
+                }
 
                 if (ClipDescription.compareMimeTypes(type, "image/*")) {
                     int px = FormattingUtils.dpToPx(context, 48);
@@ -355,6 +453,9 @@ public class DecryptListFragment
 
             @Override
             protected void onPostExecute(Drawable icon) {
+                if (mRenamedOutputUri != null) {
+                    mOutputUris.put(uri, mRenamedOutputUri);
+                }
                 processResult(uri, result, icon);
             }
         }.execute();
@@ -400,7 +501,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (mCurrentInputUri != null || isParallelOperationRunning()) {
             return;
         }
 
@@ -409,7 +510,7 @@ public class DecryptListFragment
         mPendingInputUris.add(uri);
         mAdapter.setCancelled(uri, null);
 
-        cryptoOperation();
+        decryptNext();
 
     }
 
@@ -484,26 +585,332 @@ public class DecryptListFragment
 
     }
 
-    @Override
-    public PgpDecryptVerifyInputParcel createOperationInput() {
+    /** Starts the operation of this fragment on the next pending file, if there is one. */
+    private void decryptNext() {
 
         if (mCurrentInputUri == null) {
             if (mPendingInputUris.isEmpty()) {
                 // nothing left to do
-                return null;
+                return;
             }
 
             mCurrentInputUri = mPendingInputUris.remove(0);
         }
 
-        Uri currentOutputUri = mOutputUris.get(mCurrentInputUri);
-        Log.d(Constants.TAG, "mInputUri=" + mCurrentInputUri + ", mOutputUri=" + currentOutputUri);
+        final Uri inputUri = mCurrentInputUri;
+        prepareOutputUri(inputUri, new Runnable() {
+            @Override
+            public void run() {
+                if (inputUri.equals(mCurrentInputUri)) {
+                    cryptoOperation();
+                }
+            }
+        });
+
+    }
 
-        return new PgpDecryptVerifyInputParcel(mCurrentInputUri, currentOutputUri)
+    @Override
+    public PgpDecryptVerifyInputParcel createOperationInput() {
+
+        if (mCurrentInputUri == null) {
+            return null;
+        }
+
+        return createDecryptInput(mCurrentInputUri);
+
+    }
+
+    /** Returns the input parcel for a file, its output must be prepared, see prepareOutputUri. */
+    private PgpDecryptVerifyInputParcel createDecryptInput(Uri inputUri) {
+
+        Uri outputUri = mOutputUris.get(inputUri);
+        if (outputUri == null) {
+            Log.e(Constants.TAG, "no output prepared for " + inputUri);
+            return null;
+        }
+        Log.d(Constants.TAG, "mInputUri=" + inputUri + ", mOutputUri=" + outputUri);
+
+        return new PgpDecryptVerifyInputParcel(inputUri, outputUri)
                 .setAllowSymmetricDecryption(true);
 
     }
 
+    /**
+     * Makes sure there is an output for the given input, and runs the given callback on the main
+     * thread once there is. Creating a new output involves the document provider, so it is done
+     * in the background, see createOutputUri.
+     */
+    private void prepareOutputUri(final Uri inputUri, final Runnable onPrepared) {
+        final Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+        if (mOutputUris.containsKey(inputUri)) {
+            onPrepared.run();
+            return;
+        }
+
+        final Uri outputDirectoryUri = mOutputDirectoryUri;
+        new AsyncTask<Void,Void,Uri>() {
+            @Override
+            protected Uri doInBackground(Void... params) {
+                return createOutputUri(activity, inputUri, outputDirectoryUri);
+            }
+
+            @Override
+            protected void onPostExecute(Uri outputUri) {
+                mOutputUris.put(inputUri, outputUri);
+                if (getActivity() != null) {
+                    onPrepared.run();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Returns the uri to decrypt the given input to. This is a new document in the output
+     * directory if one was chosen, so the data is written to its destination only once, and a
+     * file in temporary storage otherwise.
+     */
+    private static Uri createOutputUri(Context context, Uri inputUri, Uri outputDirectoryUri) {
+        if (outputDirectoryUri != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // the name is replaced by the original filename once it is known, see processResult
+            String name = FileHelper.getFilename(context, inputUri)
+                    .replaceAll("\\.(gpg|pgp|asc)$", "");
+            Uri outputUri = FileHelper.createDocumentInTree(
+                    context, outputDirectoryUri, "application/octet-stream", name);
+            if (outputUri != null) {
+                return outputUri;
+            }
+        }
+        return TemporaryStorageProvider.createFile(context);
+    }
+
+    /** Deletes a document that was created in the output directory for a failed operation. */
+    private void discardOutput(Uri inputUri) {
+        Uri outputUri = mOutputUris.get(inputUri);
+        Activity activity = getActivity();
+        if (outputUri == null || activity == null || isTemporaryUri(outputUri)
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        mOutputUris.remove(inputUri);
+        try {
+            DocumentsContract.deleteDocument(activity.getContentResolver(), outputUri);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "could not delete output of failed operation", e);
+        }
+    }
+
+    private static boolean isTemporaryUri(Uri uri) {
+        return TemporaryStorageProvider.CONTENT_AUTHORITY.equals(uri.getAuthority());
+    }
+
+    /** Renames a document decrypted directly to its destination, returns its new uri. */
+    private static Uri renameToOriginalFilename(Context context, Uri outputUri, String filename) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || TextUtils.isEmpty(filename)) {
+            return outputUri;
+        }
+        try {
+            Uri renamedUri = DocumentsContract.renameDocument(
+                    context.getContentResolver(), outputUri, new File(filename).getName());
+            return renamedUri != null ? renamedUri : outputUri;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "could not rename decrypted file", e);
+            return outputUri;
+        }
+    }
+
+    /**
+     * From now on, decrypts all remaining files directly into the given directory. Files that
+     * were already decrypted to temporary storage are copied there.
+     */
+    private void saveAllToDirectory(final Uri treeUri) {
+        mOutputDirectoryUri = treeUri;
+
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        // resolve everything here, the task below must not touch the adapter or activity
+        final ArrayList<FileToSave> files = new ArrayList<>();
+        for (Uri inputUri : mInputUris) {
+            Uri outputUri = mOutputUris.get(inputUri);
+            DecryptVerifyResult result = mAdapter.getItemResult(inputUri);
+            if (outputUri == null || !isTemporaryUri(outputUri) || result == null
+                    || !result.success() || result.getDecryptMetadata() == null) {
+                continue;
+            }
+            OpenPgpMetadata metadata = result.getDecryptMetadata();
+            String name = TextUtils.isEmpty(metadata.getFilename())
+                    ? FileHelper.getFilename(activity, inputUri)
+                    : new File(metadata.getFilename()).getName();
+            files.add(new FileToSave(outputUri, name, metadata.getMimeType()));
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        final Context context = activity.getApplicationContext();
+        new AsyncTask<Void,Void,Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                boolean success = true;
+                for (FileToSave file : files) {
+                    Uri saveUri = FileHelper.createDocumentInTree(
+                            context, treeUri, file.mMimeType, file.mName);
+                    try {
+                        if (saveUri == null) {
+                            throw new IOException("could not create document");
+                        }
+                        FileHelper.copyUriData(context, file.mDecryptedUri, saveUri);
+                    } catch (IOException e) {
+                        Log.e(Constants.TAG, "error saving file", e);
+                        success = false;
+                    }
+                }
+                return success;
+            }
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                Activity activity = getActivity();
+                if (activity == null) {
+                    return;
+                }
+                if (success) {
+                    Notify.create(activity, R.string.file_saved, Style.OK).show();
+                } else {
+                    Notify.create(activity, R.string.error_saving_file, Style.ERROR).show();
+                }
+            }
+        }.execute();
+    }
+
+    private static class FileToSave {
+        final Uri mDecryptedUri;
+        final String mName;
+        final String mMimeType;
+
+        FileToSave(Uri decryptedUri, String name, String mimeType) {
+            mDecryptedUri = decryptedUri;
+            mName = name;
+            mMimeType = mimeType;
+        }
+    }
+
+    private void startParallelOperations() {
+        if (!mParallelAllowed || getActivity() == null) {
+            return;
+        }
+        for (ParallelDecryptCallback callback : mParallelCallbacks) {
+            if (mPendingInputUris.isEmpty()) {
+                return;
+            }
+            callback.start();
+        }
+    }
+
+    private boolean isParallelOperationRunning() {
+        for (ParallelDecryptCallback callback : mParallelCallbacks) {
+            if (callback.mInputUri != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decrypts pending files alongside the operation of this fragment. Each instance runs one
+     * operation at a time through its own CryptoOperationHelper.
+     */
+    private class ParallelDecryptCallback implements
+            CryptoOperationHelper.Callback<PgpDecryptVerifyInputParcel, DecryptVerifyResult> {
+
+        final CryptoOperationHelper<PgpDecryptVerifyInputParcel, DecryptVerifyResult> mHelper;
+        Uri mInputUri;
+
+        ParallelDecryptCallback(int id) {
+            mHelper = new CryptoOperationHelper<>(id, DecryptListFragment.this, this, null);
+        }
+
+        void start() {
+            if (mInputUri != null || mPendingInputUris.isEmpty()) {
+                return;
+            }
+            final Uri inputUri = mPendingInputUris.remove(0);
+            mInputUri = inputUri;
+            prepareOutputUri(inputUri, new Runnable() {
+                @Override
+                public void run() {
+                    if (inputUri.equals(mInputUri)) {
+                        mHelper.cryptoOperation();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public PgpDecryptVerifyInputParcel createOperationInput() {
+            if (mInputUri == null) {
+                return null;
+            }
+            return createDecryptInput(mInputUri);
+        }
+
+        @Override
+        public void onCryptoOperationSuccess(DecryptVerifyResult result) {
+            Uri uri = mInputUri;
+            mInputUri = null;
+            if (getActivity() == null) {
+                return;
+            }
+
+            processResult(uri, result);
+            startParallelOperations();
+        }
+
+        @Override
+        public void onCryptoOperationError(DecryptVerifyResult result) {
+            Uri uri = mInputUri;
+            mInputUri = null;
+            if (getActivity() == null) {
+                return;
+            }
+
+            discardOutput(uri);
+            mAdapter.addResult(uri, result, null, null, null);
+            startParallelOperations();
+        }
+
+        @Override
+        public void onCryptoOperationCancelled() {
+            final Uri uri = mInputUri;
+            mInputUri = null;
+            if (getActivity() == null) {
+                return;
+            }
+
+            mCancelledInputUris.add(uri);
+            mAdapter.setCancelled(uri, new OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    retryUri(uri);
+                }
+            });
+            startParallelOperations();
+        }
+
+        @Override
+        public boolean onCryptoSetProgress(String msg, int progress, int max) {
+            if (mInputUri != null) {
+                mAdapter.setProgress(mInputUri, progress, max, msg);
+            }
+            return true;
+        }
+    }
+
     @Override
     public boolean onMenuItemClick(MenuItem menuItem) {
         if (mAdapter.mMenuClickedModel == null || !mAdapter.mMenuClickedModel.hasResult()) {
@@ -511,7 +918,7 @@ public class DecryptListFragment
         }
 
         // don't process menu items until all items are done!
-        if (!mPendingInputUris.isEmpty()) {
+        if (!mPendingInputUris.isEmpty() || isParallelOperationRunning()) {
             return true;
         }
 
@@ -200,7 +200,7 @@ public class EditKeyFragment extends QueueingCryptoOperationFragment<SaveKeyring
         try {
             Uri secretUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
             CachedPublicKeyRing keyRing =
-                    new ProviderHelper(getActivity()).getCachedPublicKeyRing(secretUri);
+                    new ProviderHelper(getActivity()).getCachedPublicKeyRing(secretUri).snapshot();
             long masterKeyId = keyRing.getMasterKeyId();
 
             // check if this is a master secret key we can work with
@@ -31,6 +31,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.intents.OpenKeychainIntents;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
@@ -405,17 +406,18 @@ public class ImportKeysActivity extends BaseNfcActivity
         if (ls instanceof ImportKeysListFragment.BytesLoaderState) {
             Log.d(Constants.TAG, "importKeys started");
 
-            // get DATA from selected key entries
-            IteratorWithSize<ParcelableKeyRing> selectedEntries = mListFragment.getSelectedData();
-
             // instead of giving the entries by Intent extra, cache them into a
             // file to prevent Java Binder problems on heavy imports
             // read FileImportCache for more info.
             try {
+                // get DATA from selected key entries, read from the input once more
+                IteratorWithSize<ParcelableKeyRing> selectedEntries =
+                        mListFragment.getSelectedData();
+
                 // We parcel this iteratively into a file - anything we can
                 // display here, we should be able to import.
                 ParcelableFileCache<ParcelableKeyRing> cache =
-                        new ParcelableFileCache<>(this, "key_import.pcl");
+                        new KeyRingFileCache(this, "key_import.pcl");
                 cache.writeCache(selectedEntries);
 
                 mKeyList = null;
@@ -24,7 +24,7 @@ import android.os.Handler;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
-import android.support.v4.util.LongSparseArray;
+import android.util.SparseArray;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
@@ -52,7 +52,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 public class ImportKeysListFragment extends ListFragment implements
@@ -73,7 +72,7 @@ public class ImportKeysListFragment extends ListFragment implements
     private static final int LOADER_ID_BYTES = 0;
     private static final int LOADER_ID_CLOUD = 1;
 
-    private LongSparseArray<ParcelableKeyRing> mCachedKeyData;
+    private ImportKeysListLoader mKeyRingsLoader;
     private boolean mNonInteractive;
 
     private boolean mShowingOrbotDialog;
@@ -87,37 +86,30 @@ public class ImportKeysListFragment extends ListFragment implements
     }
 
     /**
-     * Returns an Iterator (with size) of the selected data items.
-     * This iterator is sort of a tradeoff, it's slightly more complex than an
-     * ArrayList would have been, but we save some memory by just returning
-     * relevant elements on demand.
+     * Returns an Iterator (with size) of the selected data items. The key rings are read from
+     * the input on demand, so only a single one of them needs to be in memory at a time.
+     *
+     * @throws IOException if the input can't be read again
      */
-    public IteratorWithSize<ParcelableKeyRing> getSelectedData() {
-        final ArrayList<ImportKeysListEntry> entries = getSelectedEntries();
-        final Iterator<ImportKeysListEntry> it = entries.iterator();
-        return new IteratorWithSize<ParcelableKeyRing>() {
-
-            @Override
-            public int getSize() {
-                return entries.size();
-            }
-
-            @Override
-            public boolean hasNext() {
-                return it.hasNext();
-            }
+    public IteratorWithSize<ParcelableKeyRing> getSelectedData() throws IOException {
+        if (mKeyRingsLoader == null || !(mLoaderState instanceof BytesLoaderState)) {
+            throw new IOException("key rings were not loaded!");
+        }
 
-            @Override
-            public ParcelableKeyRing next() {
-                // throws NoSuchElementException if it doesn't exist, but that's not our problem
-                return mCachedKeyData.get(it.next().hashCode());
+        SparseArray<ImportKeysListEntry> positions = new SparseArray<>();
+        for (ImportKeysListEntry entry : getSelectedEntries()) {
+            Integer position = mKeyRingsLoader.getRingPosition(entry);
+            if (position != null) {
+                positions.put(position, entry);
             }
+        }
 
-            @Override
-            public void remove() {
-                it.remove();
-            }
-        };
+        BytesLoaderState ls = (BytesLoaderState) mLoaderState;
+        InputData inputData = getInputData(ls.mKeyBytes, ls.mDataUri);
+        if (inputData == null) {
+            throw new IOException("input could not be opened again!");
+        }
+        return ImportKeysListLoader.readKeyRings(inputData, positions);
     }
 
     public ArrayList<ImportKeysListEntry> getSelectedEntries() {
@@ -340,8 +332,7 @@ public class ImportKeysListFragment extends ListFragment implements
             setListShownNoAnimation(true);
         }
 
-        // free old cached key data
-        mCachedKeyData = null;
+        mKeyRingsLoader = null;
 
         GetKeyResult getKeyResult = (GetKeyResult) data.getOperationResult();
         switch (loader.getId()) {
@@ -349,7 +340,7 @@ public class ImportKeysListFragment extends ListFragment implements
 
                 if (getKeyResult.success()) {
                     // No error
-                    mCachedKeyData = ((ImportKeysListLoader) loader).getParcelableRings();
+                    mKeyRingsLoader = (ImportKeysListLoader) loader;
                 } else {
                     getKeyResult.createNotify(getActivity()).show();
                 }
@@ -415,6 +406,7 @@ public class ImportKeysListFragment extends ListFragment implements
             case LOADER_ID_BYTES:
                 // Clear the data in the adapter.
                 mAdapter.clear();
+                mKeyRingsLoader = null;
                 break;
             case LOADER_ID_CLOUD:
                 // Clear the data in the adapter.
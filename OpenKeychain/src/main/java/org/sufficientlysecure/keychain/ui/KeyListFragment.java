@@ -66,6 +66,7 @@ import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ConsolidateInputParcel;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.ui.adapter.KeyAdapter;
+import org.sufficientlysecure.keychain.ui.adapter.PagedKeyRingsCursor;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -234,7 +235,11 @@ public class KeyListFragment extends LoaderFragment
             public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
                                                   boolean checked) {
                 if (checked) {
-                    mAdapter.setNewSelection(position, true);
+                    if (!mAdapter.setNewSelection(position)) {
+                        // the row isn't loaded yet, so there is nothing to select
+                        mStickyList.setItemChecked(position, false);
+                        return;
+                    }
                 } else {
                     mAdapter.removeSelection(position);
                 }
@@ -261,43 +266,38 @@ public class KeyListFragment extends LoaderFragment
         getLoaderManager().initLoader(0, null, this);
     }
 
-    static final String ORDER =
-            KeyRings.HAS_ANY_SECRET + " DESC, UPPER(" + KeyRings.USER_ID + ") ASC";
-
-
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
-        }
-
-        // Now create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri,
-                KeyListAdapter.PROJECTION, where, whereArgs, ORDER);
+        // search words are looked up in the full text index of user ids and key ids
+        Uri baseUri = KeyRings.buildUnifiedKeyRingsFindByQueryUri(mQuery);
+
+        // Only the sections are loaded here, rows are queried page by page while scrolling,
+        // see PagedKeyRingsCursor.
+        return new CursorLoader(getActivity(), KeyRings.buildSectionsUri(baseUri),
+                PagedKeyRingsCursor.SECTIONS_PROJECTION, null, null,
+                PagedKeyRingsCursor.SECTIONS_ORDER);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Swap the new cursor in. (The framework will take care of closing the
-        // old cursor once we return.)
+        // Swap the new cursor in. The framework takes care of closing the sections
+        // cursor, but the paged cursor with the rows is ours to close.
         mAdapter.setSearchQuery(mQuery);
-        mAdapter.swapCursor(data);
+        PagedKeyRingsCursor cursor = new PagedKeyRingsCursor(getActivity().getContentResolver(),
+                ((CursorLoader) loader).getUri(), KeyListAdapter.PROJECTION, data);
+        cursor.setOnPageLoadedListener(new PagedKeyRingsCursor.OnPageLoadedListener() {
+            @Override
+            public void onPageLoaded() {
+                // rebind the placeholder rows of the page
+                mAdapter.notifyDataSetChanged();
+            }
+        });
+        Cursor oldCursor = mAdapter.swapCursor(cursor);
+        if (oldCursor != null) {
+            oldCursor.close();
+        }
 
         mStickyList.setAdapter(mAdapter);
 
@@ -322,7 +322,10 @@ public class KeyListFragment extends LoaderFragment
         // This is called when the last Cursor provided to onLoadFinished()
         // above is about to be closed. We need to make sure we are no
         // longer using it.
-        mAdapter.swapCursor(null);
+        Cursor oldCursor = mAdapter.swapCursor(null);
+        if (oldCursor != null) {
+            oldCursor.close();
+        }
     }
 
     /**
@@ -330,9 +333,14 @@ public class KeyListFragment extends LoaderFragment
      */
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+        long masterKeyId = mAdapter.getMasterKeyId(position);
+        if (masterKeyId == 0) {
+            // the row isn't loaded yet
+            return;
+        }
         Intent viewIntent = new Intent(getActivity(), ViewKeyActivity.class);
         viewIntent.setData(
-                KeyRings.buildGenericKeyRingUri(mAdapter.getMasterKeyId(position)));
+                KeyRings.buildGenericKeyRingUri(masterKeyId));
         startActivityForResult(viewIntent, REQUEST_VIEW_KEY);
     }
 
@@ -673,7 +681,9 @@ public class KeyListFragment extends LoaderFragment
 
     public class KeyListAdapter extends KeyAdapter implements StickyListHeadersAdapter {
 
-        private HashMap<Integer, Boolean> mSelection = new HashMap<>();
+        // the selected key rings by position, which are read when they are selected. the paged
+        // cursor may not have their rows anymore by the time the selection is used
+        private HashMap<Integer, SelectedKeyRing> mSelection = new HashMap<>();
 
         public KeyListAdapter(Context context, Cursor c, int flags) {
             super(context, c, flags);
@@ -747,11 +757,11 @@ public class KeyListFragment extends LoaderFragment
                 return convertView;
             }
 
-            if (!mCursor.moveToPosition(position)) {
-                throw new IllegalStateException("couldn't move cursor to position " + position);
-            }
+            // headers are taken from the sections, which doesn't require loading the row
+            PagedKeyRingsCursor cursor = (PagedKeyRingsCursor) mCursor;
+            int section = cursor.getSectionForPosition(position);
 
-            if (mCursor.getInt(INDEX_HAS_ANY_SECRET) != 0) {
+            if (cursor.isSectionSecret(section)) {
                 { // set contact count
                     int num = mCursor.getCount();
                     String contactsTotal = mContext.getResources().getQuantityString(R.plurals.n_keys, num, num);
@@ -764,10 +774,10 @@ public class KeyListFragment extends LoaderFragment
             }
 
             // set header text as first char in user id
-            String userId = mCursor.getString(INDEX_USER_ID);
+            String sectionText = cursor.getSectionText(section);
             String headerText = convertView.getResources().getString(R.string.user_id_no_name);
-            if (userId != null && userId.length() > 0) {
-                headerText = "" + userId.charAt(0);
+            if (sectionText != null && sectionText.length() > 0) {
+                headerText = sectionText;
             }
             holder.mText.setText(headerText);
             holder.mCount.setVisibility(View.GONE);
@@ -785,18 +795,17 @@ public class KeyListFragment extends LoaderFragment
                 return -1;
             }
 
-            if (!mCursor.moveToPosition(position)) {
-                throw new IllegalStateException("couldn't move cursor to position " + position);
-            }
+            PagedKeyRingsCursor cursor = (PagedKeyRingsCursor) mCursor;
+            int section = cursor.getSectionForPosition(position);
 
             // early breakout: all secret keys are assigned id 0
-            if (mCursor.getInt(INDEX_HAS_ANY_SECRET) != 0) {
+            if (cursor.isSectionSecret(section)) {
                 return 1L;
             }
             // otherwise, return the first character of the name as ID
-            String userId = mCursor.getString(INDEX_USER_ID);
-            if (userId != null && userId.length() > 0) {
-                return Character.toUpperCase(userId.charAt(0));
+            String sectionText = cursor.getSectionText(section);
+            if (sectionText != null && sectionText.length() > 0) {
+                return Character.toUpperCase(sectionText.charAt(0));
             } else {
                 return Long.MAX_VALUE;
             }
@@ -805,14 +814,23 @@ public class KeyListFragment extends LoaderFragment
         /**
          * -------------------------- MULTI-SELECTION METHODS --------------
          */
-        public void setNewSelection(int position, boolean value) {
-            mSelection.put(position, value);
+        /**
+         * Selects the key ring at a position. Returns false if its row isn't loaded yet, it
+         * isn't selected then.
+         */
+        public boolean setNewSelection(int position) {
+            long masterKeyId = getMasterKeyId(position);
+            if (masterKeyId == 0) {
+                return false;
+            }
+            mSelection.put(position, new SelectedKeyRing(masterKeyId, isSecretAvailable(position)));
             notifyDataSetChanged();
+            return true;
         }
 
         public boolean isAnySecretSelected() {
-            for (int pos : mSelection.keySet()) {
-                if (isSecretAvailable(pos))
+            for (SelectedKeyRing selected : mSelection.values()) {
+                if (selected.mHasAnySecret)
                     return true;
             }
             return false;
@@ -822,8 +840,8 @@ public class KeyListFragment extends LoaderFragment
             long[] ids = new long[mSelection.size()];
             int i = 0;
             // get master key ids
-            for (int pos : mSelection.keySet()) {
-                ids[i++] = getMasterKeyId(pos);
+            for (SelectedKeyRing selected : mSelection.values()) {
+                ids[i++] = selected.mMasterKeyId;
             }
             return ids;
         }
@@ -838,6 +856,16 @@ public class KeyListFragment extends LoaderFragment
             notifyDataSetChanged();
         }
 
+        private class SelectedKeyRing {
+            final long mMasterKeyId;
+            final boolean mHasAnySecret;
+
+            SelectedKeyRing(long masterKeyId, boolean hasAnySecret) {
+                mMasterKeyId = masterKeyId;
+                mHasAnySecret = hasAnySecret;
+            }
+        }
+
     }
 
 }
@@ -29,6 +29,7 @@ import android.widget.NumberPicker;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
@@ -140,7 +141,7 @@ public class SafeSlingerActivity extends BaseActivity
                 // We parcel this iteratively into a file - anything we can
                 // display here, we should be able to import.
                 ParcelableFileCache<ParcelableKeyRing> cache =
-                        new ParcelableFileCache<>(this, "key_import.pcl");
+                        new KeyRingFileCache(this, "key_import.pcl");
                 cache.writeCache(it.size(), it.iterator());
 
                 mOperationHelper =
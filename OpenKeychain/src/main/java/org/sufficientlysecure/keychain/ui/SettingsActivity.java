@@ -40,6 +40,7 @@ import android.widget.LinearLayout;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.AppCompatPreferenceActivity;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
 import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.widget.IntegerListPreference;
 import org.sufficientlysecure.keychain.util.Log;
@@ -97,6 +98,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
 
+            initializePassphraseCacheUnlocked(
+                    (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_UNLOCKED));
+
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
@@ -208,6 +212,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             initializePassphraseCacheSubs(
                     (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_SUBS));
 
+            initializePassphraseCacheUnlocked(
+                    (CheckBoxPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_UNLOCKED));
+
             initializePassphraseCacheTtl(
                     (IntegerListPreference) findPreference(Constants.Pref.PASSPHRASE_CACHE_TTL));
 
@@ -447,6 +454,22 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
         });
     }
 
+    private static void initializePassphraseCacheUnlocked(
+            final CheckBoxPreference mPassphraseCacheUnlocked) {
+        mPassphraseCacheUnlocked.setChecked(sPreferences.getPassphraseCacheUnlocked());
+        mPassphraseCacheUnlocked.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                mPassphraseCacheUnlocked.setChecked((Boolean) newValue);
+                sPreferences.setPassphraseCacheUnlocked((Boolean) newValue);
+                if (!(Boolean) newValue) {
+                    // drop everything that was unlocked so far
+                    UnlockedKeyCache.broadcastClear(preference.getContext(), null);
+                }
+                return false;
+            }
+        });
+    }
+
     private static void initializePassphraseCacheTtl(final IntegerListPreference mPassphraseCacheTtl) {
         mPassphraseCacheTtl.setValue("" + sPreferences.getPassphraseCacheTtl());
         mPassphraseCacheTtl.setSummary(mPassphraseCacheTtl.getEntry());
@@ -18,8 +18,10 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.util.LongSparseArray;
+import android.util.SparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
@@ -28,22 +30,35 @@ import org.sufficientlysecure.keychain.operations.results.GetKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.NoSuchElementException;
 
+/**
+ * Lists the key rings in a file, or any other input.
+ *
+ * Only the list entries are kept, along with the position of each ring in the input. The rings
+ * themselves are read from the input once more when they are imported, see readKeyRings. While
+ * loading, the entries found so far are delivered every PARTIAL_RESULT_INTERVAL rings.
+ */
 public class ImportKeysListLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
 
+    private static final int PARTIAL_RESULT_INTERVAL = 100;
+
     final Context mContext;
     final InputData mInputData;
+    final Handler mHandler = new Handler();
 
     ArrayList<ImportKeysListEntry> mData = new ArrayList<>();
-    LongSparseArray<ParcelableKeyRing> mParcelableRings = new LongSparseArray<>();
+    final LongSparseArray<Integer> mRingPositions = new LongSparseArray<>();
     AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, InputData inputData) {
@@ -95,8 +110,13 @@ public class ImportKeysListLoader
         super.deliverResult(data);
     }
 
-    public LongSparseArray<ParcelableKeyRing> getParcelableRings() {
-        return mParcelableRings;
+    /**
+     * Returns the position of the entry's key ring in the input, or null if it is unknown.
+     */
+    public Integer getRingPosition(ImportKeysListEntry entry) {
+        synchronized (mRingPositions) {
+            return mRingPositions.get(entry.hashCode());
+        }
     }
 
     /**
@@ -114,13 +134,18 @@ public class ImportKeysListLoader
         // armor blocks
         BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
         try {
-            // parse all keyrings
+            // parse all keyrings, keeping only the entries
             IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(bufferedInput);
-            while (it.hasNext()) {
+            for (int position = 0; it.hasNext(); position++) {
                 UncachedKeyRing ring = it.next();
                 ImportKeysListEntry item = new ImportKeysListEntry(getContext(), ring);
+                synchronized (mRingPositions) {
+                    mRingPositions.put(item.hashCode(), position);
+                }
                 mData.add(item);
-                mParcelableRings.put(item.hashCode(), new ParcelableKeyRing(ring.getEncoded()));
+                if (mData.size() % PARTIAL_RESULT_INTERVAL == 0) {
+                    deliverPartialResult();
+                }
             }
         } catch (IOException e) {
             Log.e(Constants.TAG, "IOException on parsing key file! Return NoValidKeysException!", e);
@@ -132,4 +157,114 @@ public class ImportKeysListLoader
         }
     }
 
+    private void deliverPartialResult() {
+        GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partial =
+                new AsyncTaskResultWrapper<>(new ArrayList<>(mData), getKeyResult);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted()) {
+                    deliverResult(partial);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the key rings at the given positions from the input, which should be the same as the
+     * one the list was loaded from. A ring whose fingerprint doesn't match its entry is skipped,
+     * in case the input changed in the meantime. Secret key rings are returned last.
+     *
+     * @param positions the positions of the rings to read, mapped to their list entries
+     */
+    public static IteratorWithSize<ParcelableKeyRing> readKeyRings(
+            final InputData inputData, final SparseArray<ImportKeysListEntry> positions) {
+        final IteratorWithIOThrow<UncachedKeyRing> it = UncachedKeyRing.fromStream(
+                new BufferedInputStream(inputData.getInputStream()));
+
+        return new IteratorWithSize<ParcelableKeyRing>() {
+
+            int mPosition = 0;
+            boolean mDone = false;
+            ParcelableKeyRing mNext;
+            final ArrayList<ParcelableKeyRing> mSecretRings = new ArrayList<>();
+
+            @Override
+            public int getSize() {
+                return positions.size();
+            }
+
+            private void readNext() {
+                if (mNext != null) {
+                    return;
+                }
+                try {
+                    while (!mDone && mNext == null) {
+                        if (!it.hasNext()) {
+                            mDone = true;
+                            break;
+                        }
+                        UncachedKeyRing ring = it.next();
+                        int position = mPosition++;
+                        ImportKeysListEntry entry = positions.get(position);
+                        if (entry == null) {
+                            continue;
+                        }
+                        String fingerprint =
+                                KeyFormattingUtils.convertFingerprintToHex(ring.getFingerprint());
+                        if (!fingerprint.equals(entry.getFingerprintHex())) {
+                            Log.w(Constants.TAG, "Key ring at position " + position
+                                    + " changed since it was listed, skipping it!");
+                            continue;
+                        }
+                        ParcelableKeyRing keyRing = new ParcelableKeyRing(ring.getEncoded());
+                        if (entry.isSecretKey()) {
+                            mSecretRings.add(keyRing);
+                        } else {
+                            mNext = keyRing;
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "IOException on reading key file again!", e);
+                    mDone = true;
+                }
+                if (mDone) {
+                    try {
+                        inputData.getInputStream().close();
+                    } catch (IOException e) {
+                        // nvm
+                    }
+                }
+                if (mNext == null && !mSecretRings.isEmpty()) {
+                    mNext = mSecretRings.remove(0);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                readNext();
+                return mNext != null;
+            }
+
+            @Override
+            public ParcelableKeyRing next() {
+                readNext();
+                if (mNext == null) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return mNext;
+                } finally {
+                    mNext = null;
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
 }
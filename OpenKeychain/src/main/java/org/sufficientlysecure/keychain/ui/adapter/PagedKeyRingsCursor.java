@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * A cursor over a sorted list of key rings which queries the rows in pages, as they are needed.
+ *
+ * Only the sections of the list are loaded up front, i.e. the number of key rings with and
+ * without secret key per first character of their user id, see KeyRings.buildSectionsUri. The
+ * total count and the section of each position are known from these, without loading any of the
+ * rows themselves.
+ *
+ * Pages are loaded in the background. Until a page is there, its rows come out as null, and the
+ * OnPageLoadedListener is called once it arrived. The master key ids of a page are looked up in
+ * the indexed list order first, see KeyRings.buildListUri, after the sort key of the last row of
+ * the page before if that one is loaded, by offset otherwise. Only the rows with these ids are
+ * then queried. A few recently used pages are kept.
+ *
+ * The sections cursor belongs to the caller, typically a CursorLoader which also watches it for
+ * changes. Rows which disappeared before the next load come out as null.
+ */
+public class PagedKeyRingsCursor extends AbstractCursor {
+
+    static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 5;
+
+    public static final String[] SECTIONS_PROJECTION = new String[]{
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.SECTION,
+            KeyRings._COUNT,
+    };
+
+    public static final String SECTIONS_ORDER =
+            KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.SECTION + " ASC";
+
+    private static final String[] LIST_PROJECTION = new String[]{
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.HAS_ANY_SECRET,
+            KeyRings.SORT_USER_ID,
+    };
+    private static final int INDEX_LIST_MASTER_KEY_ID = 0;
+    private static final int INDEX_LIST_HAS_ANY_SECRET = 1;
+    private static final int INDEX_LIST_SORT_USER_ID = 2;
+
+    public interface OnPageLoadedListener {
+        void onPageLoaded();
+    }
+
+    /** Position of a key ring in the list order. */
+    private static class SortKey {
+        final boolean mHasAnySecret;
+        final String mSortUserId;
+        final long mMasterKeyId;
+
+        SortKey(boolean hasAnySecret, String sortUserId, long masterKeyId) {
+            mHasAnySecret = hasAnySecret;
+            mSortUserId = sortUserId;
+            mMasterKeyId = masterKeyId;
+        }
+    }
+
+    private static class Page {
+        final Cursor mRows;
+        // row of mRows for each position of the page, or -1 if there is none
+        final int[] mRowPositions;
+        // sort key of the last position, or null if the page isn't complete
+        final SortKey mLast;
+
+        Page(Cursor rows, int[] rowPositions, SortKey last) {
+            mRows = rows;
+            mRowPositions = rowPositions;
+            mLast = last;
+        }
+
+        void close() {
+            if (mRows != null) {
+                mRows.close();
+            }
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final int mMasterKeyIdIndex;
+
+    private final int mCount;
+    private final int mSecretCount;
+    private final int[] mSectionStarts;
+    private final boolean[] mSectionIsSecret;
+    private final String[] mSectionTexts;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private OnPageLoadedListener mOnPageLoadedListener;
+
+    // all of these are only used on the main thread
+    private final LruCache<Integer, Page> mPages = new LruCache<Integer, Page>(MAX_PAGES) {
+        @Override
+        protected void entryRemoved(boolean evicted, Integer page, Page oldValue, Page newValue) {
+            oldValue.close();
+        }
+    };
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+    // the page cursor positioned at the current row, or null if there is no such row (yet)
+    private Cursor mRow;
+
+    /**
+     * @param sectionsUri the sections uri of the key rings, see KeyRings.buildSectionsUri
+     * @param projection must contain MASTER_KEY_ID
+     * @param sections the result of a query for SECTIONS_PROJECTION on the sections uri,
+     *                 sorted by SECTIONS_ORDER
+     */
+    public PagedKeyRingsCursor(ContentResolver contentResolver, Uri sectionsUri,
+                               String[] projection, Cursor sections) {
+        mContentResolver = contentResolver;
+        mUri = sectionsUri.buildUpon().clearQuery().build();
+        mProjection = projection;
+
+        mMasterKeyIdIndex = Arrays.asList(projection).indexOf(KeyRings.MASTER_KEY_ID);
+        if (mMasterKeyIdIndex < 0) {
+            throw new IllegalArgumentException("Projection is missing the master key id!");
+        }
+
+        int sectionCount = sections.getCount();
+        mSectionStarts = new int[sectionCount];
+        mSectionIsSecret = new boolean[sectionCount];
+        mSectionTexts = new String[sectionCount];
+
+        int count = 0, secretCount = 0;
+        sections.moveToPosition(-1);
+        for (int i = 0; sections.moveToNext(); i++) {
+            mSectionStarts[i] = count;
+            mSectionIsSecret[i] = sections.getInt(0) != 0;
+            mSectionTexts[i] = sections.getString(1);
+            count += sections.getInt(2);
+            if (mSectionIsSecret[i]) {
+                secretCount = count;
+            }
+        }
+        mCount = count;
+        mSecretCount = secretCount;
+    }
+
+    public void setOnPageLoadedListener(OnPageLoadedListener listener) {
+        mOnPageLoadedListener = listener;
+    }
+
+    /** Returns the section of the row at the given position. */
+    public int getSectionForPosition(int position) {
+        int section = Arrays.binarySearch(mSectionStarts, position);
+        // if the position isn't the start of a section, it's in the one before
+        return section >= 0 ? section : -section - 2;
+    }
+
+    public boolean isSectionSecret(int section) {
+        return mSectionIsSecret[section];
+    }
+
+    /** Returns the upper case first character of all user ids in a section. */
+    public String getSectionText(int section) {
+        return mSectionTexts[section];
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mProjection;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int page = newPosition / PAGE_SIZE;
+        int offset = newPosition - page * PAGE_SIZE;
+
+        mRow = null;
+        Page current = mPages.get(page);
+        if (current == null) {
+            loadPage(page);
+        } else if (offset < current.mRowPositions.length) {
+            int row = current.mRowPositions[offset];
+            if (row >= 0 && current.mRows.moveToPosition(row)) {
+                mRow = current.mRows;
+            }
+        }
+
+        // load ahead, so scrolling on doesn't run into placeholders
+        if (offset >= PAGE_SIZE / 2 && (page + 1) * PAGE_SIZE < mCount) {
+            loadPage(page + 1);
+        }
+        return true;
+    }
+
+    private void loadPage(final int page) {
+        if (isClosed() || mLoadingPages.contains(page) || mPages.get(page) != null) {
+            return;
+        }
+        mLoadingPages.add(page);
+
+        Page previous = page > 0 ? mPages.get(page - 1) : null;
+        final SortKey after = previous != null ? previous.mLast : null;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Page result = queryPage(page, after);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isClosed()) {
+                            result.close();
+                            return;
+                        }
+                        mLoadingPages.remove(page);
+                        mPages.put(page, result);
+                        if (mOnPageLoadedListener != null) {
+                            mOnPageLoadedListener.onPageLoaded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Queries a page, this is called on the background thread. */
+    private Page queryPage(int page, SortKey after) {
+        int start = page * PAGE_SIZE;
+        int end = Math.min(start + PAGE_SIZE, mCount);
+
+        ArrayList<Long> masterKeyIds = new ArrayList<>();
+        SortKey last = null;
+        try {
+            // the key rings with and without secret key are ordered separately in the index
+            if (start < mSecretCount) {
+                last = queryMasterKeyIds(true, after, start,
+                        Math.min(end, mSecretCount) - start, masterKeyIds);
+            }
+            if (end > mSecretCount) {
+                int partStart = Math.max(start, mSecretCount);
+                SortKey partLast = queryMasterKeyIds(false, after, partStart - mSecretCount,
+                        end - partStart, masterKeyIds);
+                if (partLast != null) {
+                    last = partLast;
+                }
+            }
+
+            if (masterKeyIds.isEmpty()) {
+                return new Page(null, new int[0], null);
+            }
+
+            StringBuilder selection = new StringBuilder(
+                    Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN (");
+            for (int i = 0; i < masterKeyIds.size(); i++) {
+                selection.append(i == 0 ? "" : ", ").append(masterKeyIds.get(i));
+            }
+            selection.append(")");
+
+            Cursor rows = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                    mProjection, selection.toString(), null, null);
+            int[] rowPositions = new int[masterKeyIds.size()];
+            Arrays.fill(rowPositions, -1);
+            if (rows != null) {
+                HashMap<Long, Integer> rowByMasterKeyId = new HashMap<>();
+                while (rows.moveToNext()) {
+                    rowByMasterKeyId.put(rows.getLong(mMasterKeyIdIndex), rows.getPosition());
+                }
+                for (int i = 0; i < rowPositions.length; i++) {
+                    Integer row = rowByMasterKeyId.get(masterKeyIds.get(i));
+                    if (row != null) {
+                        rowPositions[i] = row;
+                    }
+                }
+            }
+
+            return new Page(rows, rowPositions, masterKeyIds.size() == PAGE_SIZE ? last : null);
+        } catch (RuntimeException e) {
+            // the rows of this page just stay empty
+            Log.e(Constants.TAG, "Error loading page " + page + " of key list!", e);
+            return new Page(null, new int[0], null);
+        }
+    }
+
+    /**
+     * Appends the master key ids of part of the list order to the given list, either after the
+     * given sort key, or from an offset within the key rings with or without secret key.
+     *
+     * @return the sort key of the last appended key ring, or null if there was none
+     */
+    private SortKey queryMasterKeyIds(boolean hasAnySecret, SortKey after, int offset,
+                                      int limit, List<Long> masterKeyIds) {
+        String selection = KeyRings.HAS_ANY_SECRET + " = " + (hasAnySecret ? 1 : 0);
+        String[] selectionArgs = null;
+        if (after != null && after.mHasAnySecret == hasAnySecret && after.mSortUserId != null) {
+            // continue from the index entry of the last row, so no rows need to be skipped
+            selection += " AND " + KeyRings.SORT_USER_ID + " >= ?"
+                    + " AND NOT (" + KeyRings.SORT_USER_ID + " = ?"
+                    + " AND " + KeyRings.MASTER_KEY_ID + " <= " + after.mMasterKeyId + ")";
+            selectionArgs = new String[]{ after.mSortUserId, after.mSortUserId };
+            offset = 0;
+        }
+
+        Cursor cursor = mContentResolver.query(
+                KeyRings.buildPageUri(KeyRings.buildListUri(mUri), offset, limit),
+                LIST_PROJECTION, selection, selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            SortKey last = null;
+            while (cursor.moveToNext()) {
+                masterKeyIds.add(cursor.getLong(INDEX_LIST_MASTER_KEY_ID));
+                last = new SortKey(cursor.getInt(INDEX_LIST_HAS_ANY_SECRET) != 0,
+                        cursor.getString(INDEX_LIST_SORT_USER_ID),
+                        cursor.getLong(INDEX_LIST_MASTER_KEY_ID));
+            }
+            return last;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mRow = null;
+        mExecutor.shutdownNow();
+        mPages.evictAll();
+    }
+
+    @Override
+    public String getString(int column) {
+        return mRow != null ? mRow.getString(column) : null;
+    }
+
+    @Override
+    public short getShort(int column) {
+        return mRow != null ? mRow.getShort(column) : 0;
+    }
+
+    @Override
+    public int getInt(int column) {
+        return mRow != null ? mRow.getInt(column) : 0;
+    }
+
+    @Override
+    public long getLong(int column) {
+        return mRow != null ? mRow.getLong(column) : 0;
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return mRow != null ? mRow.getFloat(column) : 0;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return mRow != null ? mRow.getDouble(column) : 0;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return mRow != null ? mRow.getBlob(column) : null;
+    }
+
+    @Override
+    public int getType(int column) {
+        return mRow != null ? mRow.getType(column) : FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mRow == null || mRow.isNull(column);
+    }
+
+}
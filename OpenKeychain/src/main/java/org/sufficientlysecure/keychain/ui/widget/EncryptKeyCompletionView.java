@@ -140,10 +140,8 @@ public class EncryptKeyCompletionView extends TokenCompleteTextView
             String query = args.getString(ARG_QUERY);
             mAdapter.setSearchQuery(query);
 
-            where += " AND " + KeyRings.USER_ID + " LIKE ?";
-
-            return new CursorLoader(getContext(), baseUri, projection, where,
-                    new String[]{"%" + query + "%"}, null);
+            return new CursorLoader(getContext(), KeyRings.buildUnifiedKeyRingsFindByQueryUri(query),
+                    projection, where, null, null);
         }
 
         mAdapter.setSearchQuery(null);
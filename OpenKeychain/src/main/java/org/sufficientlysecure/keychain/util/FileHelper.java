@@ -38,6 +38,7 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.widget.Toast;
 
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.DialogFragmentWorkaround;
 import org.sufficientlysecure.keychain.ui.dialog.FileDialogFragment;
@@ -178,6 +179,36 @@ public class FileHelper {
         fragment.startActivityForResult(intent, requestCode);
     }
 
+    /**
+     * Opens the storage browser on Android 5.0 or later for choosing a directory
+     *
+     * @param requestCode used to identify the result coming back from storage browser onActivityResult() in your
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static void openDocumentTree(Fragment fragment, int requestCode) {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        intent.putExtra("android.content.extra.SHOW_ADVANCED", true); // Note: This is not documented, but works
+        fragment.startActivityForResult(intent, requestCode);
+    }
+
+    /**
+     * Creates a new document in a directory chosen with openDocumentTree
+     *
+     * @return uri of the new document, or null if it could not be created
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static Uri createDocumentInTree(Context context, Uri treeUri, String mimeType, String name) {
+        try {
+            Uri directoryUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                    DocumentsContract.getTreeDocumentId(treeUri));
+            return DocumentsContract.createDocument(context.getContentResolver(),
+                    directoryUri, mimeType, name);
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "could not create document", e);
+            return null;
+        }
+    }
+
     public static String getFilename(Context context, Uri uri) {
         String filename = null;
         try {
@@ -54,4 +54,8 @@ public class InputData {
     public long getStreamPosition() {
         return mInputStream.position();
     }
+
+    public long getStreamReadTime() {
+        return mInputStream.readTime();
+    }
 }
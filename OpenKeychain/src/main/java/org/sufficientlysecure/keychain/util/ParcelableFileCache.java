@@ -24,6 +24,9 @@ import android.os.Parcelable;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -33,6 +36,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * When sending large data (over 1MB) through Androids Binder IPC you get
@@ -40,9 +45,23 @@ import java.util.Iterator;
  * <p/>
  * To overcome this problem, we cache large Parcelables into a file in our private cache directory
  * instead of sending them through IPC.
+ * <p/>
+ * The file starts with a header holding the expected number of entries. Each entry is framed by
+ * its length and a CRC32 checksum, and the last one is followed by a commit marker with the
+ * number of entries actually written. The file is written under a temporary name, synced to
+ * disk and only then renamed, so there is either a complete cache file or none at all. How the
+ * entries themselves are encoded is up to writeEntry and readEntry, by default as Parcels.
+ * <p/>
+ * Files in the older format, which is just the number of entries followed by length-prefixed
+ * Parcels, are still read. They may hold the only copy of a user's keys, when a consolidation
+ * was interrupted before an update.
  */
 public class ParcelableFileCache<E extends Parcelable> {
 
+    private static final int MAGIC = 0x4f4b4331;
+    // takes the place of the length after the last entry
+    private static final int COMMIT_MARKER = -1;
+
     private Context mContext;
 
     private final String mFilename;
@@ -64,26 +83,83 @@ public class ParcelableFileCache<E extends Parcelable> {
             throw new IOException("cache dir is null!");
         }
 
-        File tempFile = new File(mContext.getCacheDir(), mFilename);
+        File cacheFile = new File(cacheDir, mFilename);
+        File tempFile = new File(cacheDir, mFilename + ".tmp");
 
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        DataOutputStream oos = new DataOutputStream(new BufferedOutputStream(fos));
 
-        DataOutputStream oos = new DataOutputStream(new FileOutputStream(tempFile));
+        // entries are encoded into this buffer first, to get their length and checksum
+        ByteArrayOutputStream entryBuf = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        DataOutputStream entryOut = new DataOutputStream(new CheckedOutputStream(entryBuf, crc));
 
+        boolean committed = false;
         try {
+            oos.writeInt(MAGIC);
             oos.writeInt(numEntries);
 
+            int written = 0;
             while (it.hasNext()) {
-                Parcel p = Parcel.obtain(); // creating empty parcel object
-                p.writeParcelable(it.next(), 0); // saving bundle as parcel
-                byte[] buf = p.marshall();
-                oos.writeInt(buf.length);
-                oos.write(buf);
-                p.recycle();
+                entryBuf.reset();
+                crc.reset();
+                writeEntry(entryOut, it.next());
+                entryOut.flush();
+
+                oos.writeInt(entryBuf.size());
+                oos.writeInt((int) crc.getValue());
+                entryBuf.writeTo(oos);
+                written += 1;
             }
+
+            oos.writeInt(COMMIT_MARKER);
+            oos.writeInt(written);
+            oos.flush();
+            fos.getFD().sync();
+            committed = true;
         } finally {
             oos.close();
+            if (!committed) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
         }
 
+        if (!tempFile.renameTo(cacheFile)) {
+            throw new IOException("cache file could not be committed!");
+        }
+
+    }
+
+    /**
+     * Writes a single entry, as a marshalled Parcel unless overridden.
+     */
+    protected void writeEntry(DataOutputStream out, E entry) throws IOException {
+        Parcel p = Parcel.obtain(); // creating empty parcel object
+        try {
+            p.writeParcelable(entry, 0); // saving bundle as parcel
+            out.write(p.marshall());
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * Reads a single entry from the first length bytes of data, as written by writeEntry.
+     */
+    protected E readEntry(byte[] data, int length) throws IOException {
+        return readParcelEntry(data, length);
+    }
+
+    private E readParcelEntry(byte[] data, int length) {
+        Parcel parcel = Parcel.obtain(); // creating empty parcel object
+        try {
+            parcel.unmarshall(data, 0, length);
+            parcel.setDataPosition(0);
+            return parcel.readParcelable(KeychainApplication.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
     }
 
     /**
@@ -104,28 +180,14 @@ public class ParcelableFileCache<E extends Parcelable> {
      */
     public IteratorWithSize<E> readCache(final boolean deleteAfterRead) throws IOException {
 
-        File cacheDir = mContext.getCacheDir();
-        if (cacheDir == null) {
-            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
-            throw new IOException("cache dir is null!");
-        }
-
-        final File tempFile = new File(cacheDir, mFilename);
-        final DataInputStream ois;
-        try {
-            ois = new DataInputStream(new FileInputStream(tempFile));
-        } catch (FileNotFoundException e) {
-            Log.e(Constants.TAG, "parcel import file not existing", e);
-            throw new IOException(e);
-        }
-
-        final int numEntries = ois.readInt();
+        final File tempFile = getCacheFile();
+        final FrameReader reader = new FrameReader(tempFile);
+        final int numEntries = reader.mNumEntries;
 
         return new IteratorWithSize<E>() {
 
             E mRing = null;
             boolean closed = false;
-            byte[] buf = new byte[512];
 
             public int getSize() {
                 return numEntries;
@@ -137,23 +199,18 @@ public class ParcelableFileCache<E extends Parcelable> {
                 }
 
                 try {
-
-                    int length = ois.readInt();
-                    while (buf.length < length) {
-                        buf = new byte[buf.length * 2];
+                    if (reader.next()) {
+                        // entries of the older format are always Parcels
+                        mRing = reader.mLegacy
+                                ? readParcelEntry(reader.mBuf, reader.mLength)
+                                : readEntry(reader.mBuf, reader.mLength);
+                    } else {
+                        // aight
+                        close(deleteAfterRead);
                     }
-                    ois.readFully(buf, 0, length);
-
-                    Parcel parcel = Parcel.obtain(); // creating empty parcel object
-                    parcel.unmarshall(buf, 0, length);
-                    parcel.setDataPosition(0);
-                    mRing = parcel.readParcelable(KeychainApplication.class.getClassLoader());
-                    parcel.recycle();
-                } catch (EOFException e) {
-                    // aight
-                    close();
                 } catch (IOException e) {
                     Log.e(Constants.TAG, "Encountered IOException during cache read!", e);
+                    close(false);
                 }
 
             }
@@ -181,20 +238,16 @@ public class ParcelableFileCache<E extends Parcelable> {
 
             @Override
             public void finalize() throws Throwable {
-                close();
+                close(false);
                 super.finalize();
             }
 
-            private void close() {
+            private void close(boolean delete) {
                 if (!closed) {
-                    try {
-                        ois.close();
-                        if (deleteAfterRead) {
-                            //noinspection ResultOfMethodCallIgnored
-                            tempFile.delete();
-                        }
-                    } catch (IOException e) {
-                        // nvm
+                    reader.close();
+                    if (delete) {
+                        //noinspection ResultOfMethodCallIgnored
+                        tempFile.delete();
                     }
                 }
                 closed = true;
@@ -204,6 +257,147 @@ public class ParcelableFileCache<E extends Parcelable> {
         };
     }
 
+    /**
+     * Checks that the cache file exists, was completely written, and that none of its entries
+     * are corrupted, without decoding any of them.
+     */
+    public boolean verify() {
+        FrameReader reader = null;
+        try {
+            reader = new FrameReader(getCacheFile());
+            //noinspection StatementWithEmptyBody
+            while (reader.next()) {
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "cache file " + mFilename + " failed verification", e);
+            return false;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private File getCacheFile() throws IOException {
+        File cacheDir = mContext.getCacheDir();
+        if (cacheDir == null) {
+            // https://groups.google.com/forum/#!topic/android-developers/-694j87eXVU
+            throw new IOException("cache dir is null!");
+        }
+        return new File(cacheDir, mFilename);
+    }
+
+    /**
+     * Reads the frames of a cache file one by one, checking each against its checksum. Files
+     * of the older format have no checksums and no commit marker, they simply end after the
+     * last entry.
+     */
+    private static class FrameReader {
+        final DataInputStream mIn;
+        final long mFileLength;
+        final boolean mLegacy;
+        final int mNumEntries;
+        final CRC32 mCrc = new CRC32();
+
+        byte[] mBuf = new byte[4096];
+        int mLength;
+        int mRead = 0;
+
+        FrameReader(File file) throws IOException {
+            try {
+                mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            } catch (FileNotFoundException e) {
+                Log.e(Constants.TAG, "parcel import file not existing", e);
+                throw new IOException(e);
+            }
+            mFileLength = file.length();
+
+            try {
+                int header = mIn.readInt();
+                // the older format starts right with the number of entries
+                mLegacy = header != MAGIC;
+                mNumEntries = mLegacy ? header : mIn.readInt();
+                if (mNumEntries < 0) {
+                    throw new IOException("not a cache file!");
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the next frame into mBuf, or returns false at the commit marker.
+         * @throws IOException if the frame is corrupted, or the file ends before the marker
+         */
+        boolean next() throws IOException {
+            if (mLegacy) {
+                return nextLegacy();
+            }
+
+            int length = mIn.readInt();
+            if (length == COMMIT_MARKER) {
+                if (mIn.readInt() != mRead) {
+                    throw new IOException("number of entries doesn't match commit marker!");
+                }
+                return false;
+            }
+            if (length < 0 || length > mFileLength) {
+                throw new IOException("bad entry length " + length);
+            }
+
+            int checksum = mIn.readInt();
+            if (mBuf.length < length) {
+                mBuf = new byte[Math.max(length, mBuf.length * 2)];
+            }
+            mIn.readFully(mBuf, 0, length);
+
+            mCrc.reset();
+            mCrc.update(mBuf, 0, length);
+            if ((int) mCrc.getValue() != checksum) {
+                throw new IOException("checksum mismatch in entry " + mRead);
+            }
+
+            mLength = length;
+            mRead += 1;
+            return true;
+        }
+
+        private boolean nextLegacy() throws IOException {
+            int length;
+            try {
+                length = mIn.readInt();
+            } catch (EOFException e) {
+                if (mRead != mNumEntries) {
+                    throw new IOException("old cache file has " + mRead + " entries, expected "
+                            + mNumEntries);
+                }
+                return false;
+            }
+            if (length < 0 || length > mFileLength) {
+                throw new IOException("bad entry length " + length);
+            }
+
+            if (mBuf.length < length) {
+                mBuf = new byte[Math.max(length, mBuf.length * 2)];
+            }
+            mIn.readFully(mBuf, 0, length);
+
+            mLength = length;
+            mRead += 1;
+            return true;
+        }
+
+        void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // nvm
+            }
+        }
+    }
+
     public boolean delete() throws IOException {
 
         File cacheDir = mContext.getCacheDir();
@@ -23,6 +23,8 @@ import java.io.InputStream;
 public class PositionAwareInputStream extends InputStream {
     private InputStream mStream;
     private long mPosition;
+    // time spent in reads from the underlying stream, in nanoseconds
+    private long mReadTime;
 
     public PositionAwareInputStream(InputStream in) {
         mStream = in;
@@ -31,8 +33,12 @@ public class PositionAwareInputStream extends InputStream {
 
     @Override
     public int read() throws IOException {
+        long start = System.nanoTime();
         int ch = mStream.read();
-        ++mPosition;
+        mReadTime += System.nanoTime() - start;
+        if (ch >= 0) {
+            ++mPosition;
+        }
         return ch;
     }
 
@@ -53,15 +59,23 @@ public class PositionAwareInputStream extends InputStream {
 
     @Override
     public int read(byte[] b) throws IOException {
+        long start = System.nanoTime();
         int result = mStream.read(b);
-        mPosition += result;
+        mReadTime += System.nanoTime() - start;
+        if (result > 0) {
+            mPosition += result;
+        }
         return result;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
+        long start = System.nanoTime();
         int result = mStream.read(b, offset, length);
-        mPosition += result;
+        mReadTime += System.nanoTime() - start;
+        if (result > 0) {
+            mPosition += result;
+        }
         return result;
     }
 
@@ -73,7 +87,9 @@ public class PositionAwareInputStream extends InputStream {
 
     @Override
     public long skip(long n) throws IOException {
+        long start = System.nanoTime();
         long result = mStream.skip(n);
+        mReadTime += System.nanoTime() - start;
         mPosition += result;
         return result;
     }
@@ -81,4 +97,9 @@ public class PositionAwareInputStream extends InputStream {
     public long position() {
         return mPosition;
     }
+
+    /** @return the time spent reading from the underlying stream so far, in nanoseconds */
+    public long readTime() {
+        return mReadTime;
+    }
 }
@@ -109,6 +109,16 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getPassphraseCacheUnlocked() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED, false);
+    }
+
+    public void setPassphraseCacheUnlocked(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED, value);
+        editor.commit();
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -38,6 +38,7 @@ import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
@@ -172,6 +173,47 @@ public class CertifyOperationTest {
 
     }
 
+    @Test
+    public void testCertifierDeleted() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                providerHelper, null, null);
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(new Date(), mKeyPhrase1));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        // same steps as the DeleteOperation
+        providerHelper.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(mStaticRing1.getMasterKeyId()), null, null);
+        ProviderHelper.invalidateTrustedMasterKeys(mStaticRing1.getMasterKeyId());
+        ArrayList<Long> deleted = new ArrayList<>();
+        deleted.add(mStaticRing1.getMasterKeyId());
+        Assert.assertTrue("consolidation must succeed", providerHelper
+                .consolidateDatabaseIncremental(deleted, new ProgressScaler()).success());
+
+        {
+            CanonicalizedPublicKeyRing ring = providerHelper
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("key must not be verified after its certifier was deleted",
+                    Certs.UNVERIFIED, ring.getVerified());
+        }
+
+        providerHelper.saveSecretKeyRing(mStaticRing1, new ProgressScaler());
+        Assert.assertTrue("consolidation must succeed", providerHelper
+                .consolidateDatabaseIncremental(deleted, new ProgressScaler()).success());
+
+        {
+            CanonicalizedPublicKeyRing ring = providerHelper
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("key must be verified again after its certifier was re-added",
+                    Certs.VERIFIED_SECRET, ring.getVerified());
+        }
+
+    }
+
     @Test
     public void testCertifyAttribute() throws Exception {
         CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
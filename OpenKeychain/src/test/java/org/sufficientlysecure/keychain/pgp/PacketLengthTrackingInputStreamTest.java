@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.PacketTags;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.jcajce.JcaPGPObjectFactory;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class PacketLengthTrackingInputStreamTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testDefiniteLength() throws Exception {
+
+        // one, two and five octet lengths in new format
+        for (int size : new int[] { 10, 1000, 70000 }) {
+            byte[] packet = createLiteralData(new PGPLiteralDataGenerator(), size, false);
+            PacketLengthTrackingInputStream in =
+                    new PacketLengthTrackingInputStream(new ByteArrayInputStream(packet));
+            PGPLiteralData literalData = (PGPLiteralData) new JcaPGPObjectFactory(in).nextObject();
+
+            Assert.assertEquals("packet must be literal data",
+                    PacketTags.LITERAL_DATA, in.getLastPacketTag());
+            Assert.assertEquals("data length must be correct", size,
+                    in.getLastBodyLength() - 6 - literalData.getRawFileName().length);
+        }
+
+    }
+
+    @Test
+    public void testOldFormatLength() throws Exception {
+
+        byte[] packet = createLiteralData(new PGPLiteralDataGenerator(true), 1000, false);
+        PacketLengthTrackingInputStream in =
+                new PacketLengthTrackingInputStream(new ByteArrayInputStream(packet));
+        PGPLiteralData literalData = (PGPLiteralData) new JcaPGPObjectFactory(in).nextObject();
+
+        Assert.assertEquals("packet must be literal data",
+                PacketTags.LITERAL_DATA, in.getLastPacketTag());
+        Assert.assertEquals("data length must be correct", 1000,
+                in.getLastBodyLength() - 6 - literalData.getRawFileName().length);
+
+    }
+
+    @Test
+    public void testPartialLength() throws Exception {
+
+        byte[] packet = createLiteralData(new PGPLiteralDataGenerator(), 5000, true);
+        PacketLengthTrackingInputStream in =
+                new PacketLengthTrackingInputStream(new ByteArrayInputStream(packet));
+        new JcaPGPObjectFactory(in).nextObject();
+
+        Assert.assertEquals("packet must be literal data",
+                PacketTags.LITERAL_DATA, in.getLastPacketTag());
+        Assert.assertEquals("partial length must be unknown", -1, in.getLastBodyLength());
+
+    }
+
+    private static byte[] createLiteralData(PGPLiteralDataGenerator generator, int size,
+                                            boolean partial) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream literalOut;
+        if (partial) {
+            literalOut = generator.open(out, PGPLiteralData.BINARY, "file.bin", new Date(),
+                    new byte[1 << 10]);
+        } else {
+            literalOut = generator.open(out, PGPLiteralData.BINARY, "file.bin", size, new Date());
+        }
+        literalOut.write(new byte[size]);
+        generator.close();
+        return out.toByteArray();
+    }
+
+}
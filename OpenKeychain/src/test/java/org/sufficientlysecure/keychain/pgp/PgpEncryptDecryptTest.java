@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.pgp;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
@@ -637,6 +638,65 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testCleartextSignVerify() throws Exception {
+
+        // mixed line endings, trailing whitespace (including a multibyte one) and a line which
+        // is not valid UTF-8
+        byte[] plaindata = "dies ist ein plaintext  \r\nzweite zeile\t\rdritte zeile\u2003\n"
+                .getBytes("UTF-8");
+        byte[] latin1 = "vierte zeile: \u00e4 ".getBytes("ISO-8859-1");
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        plainOut.write(plaindata);
+        plainOut.write(latin1);
+        plaindata = plainOut.toByteArray();
+
+        byte[] signed;
+
+        { // sign with cleartext signature
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaindata);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setCleartextSignature(true);
+            b.setEnableAsciiArmorOutput(true);
+
+            PgpSignEncryptResult result = op.execute(b,
+                    new CryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            signed = out.toByteArray();
+
+            String expected = "dies ist ein plaintext\r\nzweite zeile\r\n";
+            Assert.assertTrue("cleartext must be canonicalized",
+                    new String(signed, "UTF-8").contains(expected));
+        }
+
+        { // verify cleartext signature
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(signed);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("verification must succeed", result.success());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.SIGNATURE_SUCCESS_CERTIFIED,
+                    result.getSignatureResult().getStatus());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
@@ -692,6 +752,65 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testBatchDecrypt() {
+
+        String[] plaintexts = new String[3];
+        ArrayList<InputData> inputs = new ArrayList<>();
+        ArrayList<OutputStream> outputs = new ArrayList<>();
+
+        for (int i = 0; i < plaintexts.length; i++) { // encrypt messages with key
+            plaintexts[i] = "dies ist plaintext nummer " + i + TestingUtils.genPassphrase(true);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintexts[i].getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel input = new PgpSignEncryptInputParcel();
+
+            input.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            input.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+            PgpSignEncryptResult result = op.execute(input, new CryptoInputParcel(new Date()),
+                    data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            byte[] ciphertext = out.toByteArray();
+            inputs.add(new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length));
+            outputs.add(new ByteArrayOutputStream());
+        }
+
+        { // batch decryption should need the passphrase only once
+
+            final int[] passphraseRequests = new int[] { 0 };
+            PgpDecryptVerify op = new PgpDecryptVerify(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null) {
+                @Override
+                public Passphrase getCachedPassphrase(long masterKeyId, long subKeyId)
+                        throws NoSecretKeyException {
+                    passphraseRequests[0] += 1;
+                    return mKeyPhrase1;
+                }
+            };
+
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            ArrayList<DecryptVerifyResult> results =
+                    op.executeBatch(input, new CryptoInputParcel(), inputs, outputs);
+
+            Assert.assertEquals("must return one result per message", plaintexts.length, results.size());
+            for (int i = 0; i < plaintexts.length; i++) {
+                Assert.assertTrue("decryption in batch must succeed", results.get(i).success());
+                Assert.assertArrayEquals("decrypted ciphertext in batch should equal plaintext",
+                        plaintexts[i].getBytes(), ((ByteArrayOutputStream) outputs.get(i)).toByteArray());
+            }
+            Assert.assertEquals("passphrase must be requested only once per batch",
+                    1, passphraseRequests[0]);
+        }
+
+    }
+
     private PgpDecryptVerify operationWithFakePassphraseCache(
             final Passphrase passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
 
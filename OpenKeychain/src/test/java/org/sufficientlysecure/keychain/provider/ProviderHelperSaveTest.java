@@ -18,6 +18,9 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -37,13 +40,19 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Locale;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
@@ -249,6 +258,274 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testFindByEmail() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        String email = null;
+        for (String userId : pubkey.getPublicKey().getUnorderedUserIds()) {
+            email = ProviderHelper.getNormalizedEmail(userId);
+            if (email != null) {
+                break;
+            }
+        }
+        Assert.assertNotNull("test key must have a user id with email", email);
+
+        // lookups are case insensitive, and allow multiple comma separated addresses
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsFindByEmailUri(
+                        "nobody@example.com, " + email.toUpperCase(Locale.ENGLISH)),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull("query must return a cursor", cursor);
+        try {
+            Assert.assertTrue("key must be found by email", cursor.moveToFirst());
+            Assert.assertEquals("found key must have correct master key id",
+                    pubkey.getMasterKeyId(), cursor.getLong(0));
+            Assert.assertFalse("key must be found only once", cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+
+        cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsFindByEmailUri("nobody@example.com"),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull("query must return a cursor", cursor);
+        try {
+            Assert.assertFalse("unknown email must not be found", cursor.moveToFirst());
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    @Test public void testMasterKeyIdsByEmails() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        HashMap<String, ArrayList<Long>> ids = mProviderHelper.getMasterKeyIdsByEmails(
+                "nobody@example.com", "test@blahblah.de", "Test@BlahBlah.de", "");
+        Assert.assertEquals("all emails must be in the result", 4, ids.size());
+        Assert.assertEquals("email must be resolved to its key",
+                Collections.singletonList(pubkey.getMasterKeyId()), ids.get("test@blahblah.de"));
+        Assert.assertEquals("lookup must be case insensitive",
+                Collections.singletonList(pubkey.getMasterKeyId()), ids.get("Test@BlahBlah.de"));
+        Assert.assertTrue("unknown email must not be resolved", ids.get("nobody@example.com").isEmpty());
+        Assert.assertTrue("empty email must not be resolved", ids.get("").isEmpty());
+
+    }
+
+    @Test public void testFindByQuery() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        // word prefixes of user ids, and of hex fingerprints and key ids of all subkeys
+        for (String query : new String[] { "tes", "Test blahbl", "test@blahblah.de",
+                "88142886BE72", "0xCE1C9D9C", "b5e6c549" }) {
+            Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                    KeyRings.buildUnifiedKeyRingsFindByQueryUri(query),
+                    new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+            Assert.assertNotNull("query must return a cursor", cursor);
+            try {
+                Assert.assertTrue("key must be found by " + query, cursor.moveToFirst());
+                Assert.assertEquals("found key must have correct master key id",
+                        pubkey.getMasterKeyId(), cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // queries without any words, like a single separator, must not match everything
+        for (String query : new String[] { "est", "test nobody", "9d9c", "@", "<" }) {
+            Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                    KeyRings.buildUnifiedKeyRingsFindByQueryUri(query),
+                    new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+            Assert.assertNotNull("query must return a cursor", cursor);
+            try {
+                Assert.assertFalse("key must not be found by " + query, cursor.moveToFirst());
+            } finally {
+                cursor.close();
+            }
+        }
+
+    }
+
+    @Test public void testPagesAndSections() throws Exception {
+
+        mProviderHelper.savePublicKeyRing(readRingFromResource("/test-keys/symantec_public.asc"));
+        mProviderHelper.savePublicKeyRing(readRingFromResource(
+                "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc"));
+
+        String order = KeyRings.MASTER_KEY_ID + " ASC";
+        Cursor all = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), new String[] { KeyRings.MASTER_KEY_ID },
+                null, null, order);
+        Cursor page = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildPageUri(KeyRings.buildUnifiedKeyRingsUri(), 1, 1),
+                new String[] { KeyRings.MASTER_KEY_ID }, null, null, order);
+        Cursor sections = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildSectionsUri(KeyRings.buildUnifiedKeyRingsUri()),
+                new String[] { KeyRings.SECTION, KeyRings._COUNT }, null, null, null);
+        Cursor list = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildListUri(KeyRings.buildUnifiedKeyRingsUri()),
+                new String[] { KeyRings.SORT_USER_ID }, null, null, null);
+        try {
+            Assert.assertEquals("both keys must be listed", 2, all.getCount());
+            Assert.assertEquals("page must contain a single key", 1, page.getCount());
+            Assert.assertTrue("cursors must have rows", all.moveToPosition(1) && page.moveToFirst());
+            Assert.assertEquals("page must start at offset", all.getLong(0), page.getLong(0));
+
+            int count = 0;
+            while (sections.moveToNext()) {
+                count += sections.getInt(1);
+            }
+            Assert.assertEquals("sections must count all keys", 2, count);
+
+            Assert.assertEquals("list order must contain all keys", 2, list.getCount());
+            Assert.assertTrue("list order must have rows", list.moveToFirst());
+            String first = list.getString(0);
+            Assert.assertEquals("sort key must be upper case",
+                    first.toUpperCase(Locale.ENGLISH), first);
+            Assert.assertTrue("list order must have rows", list.moveToNext());
+            Assert.assertTrue("list must be sorted by user id", first.compareTo(list.getString(0)) <= 0);
+        } finally {
+            all.close();
+            page.close();
+            sections.close();
+            list.close();
+        }
+
+    }
+
+    @Test public void testNormalizedEmail() throws Exception {
+
+        Assert.assertEquals("email must be extracted and lower-cased", "alice@example.com",
+                ProviderHelper.getNormalizedEmail("Alice (work) <Alice@Example.COM>"));
+        Assert.assertNull("user id without email must have none",
+                ProviderHelper.getNormalizedEmail("Alice"));
+        Assert.assertNull("email must be at the end of the user id",
+                ProviderHelper.getNormalizedEmail("<alice@example.com> Alice"));
+
+    }
+
+    @Test public void testFindBySubkey() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        for (UncachedPublicKey key : new IterableIterator<>(pubkey.getPublicKeys())) {
+            Assert.assertEquals("subkey must resolve to its master key id",
+                    pubkey.getMasterKeyId(), mProviderHelper.getMasterKeyId(key.getKeyId()));
+            CanonicalizedPublicKeyRing ring =
+                    mProviderHelper.getCanonicalizedPublicKeyRingBySubkey(key.getKeyId());
+            Assert.assertEquals("key ring must be found by subkey id",
+                    pubkey.getMasterKeyId(), ring.getMasterKeyId());
+        }
+
+        try {
+            mProviderHelper.getMasterKeyId(0x1234567812345678L);
+            Assert.fail("unknown subkey id must not be found");
+        } catch (ProviderHelper.NotFoundException e) {
+            // expected
+        }
+
+    }
+
+    @Test public void testKeySummary() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+
+        // time dependent columns together with selection arguments
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(), new String[] {
+                        KeyRings.MASTER_KEY_ID, KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN,
+                        KeyRings.IS_EXPIRED
+                }, KeyRings.USER_ID + " LIKE ?", new String[] { "Test%" }, null);
+        Assert.assertNotNull("query must return a cursor", cursor);
+        try {
+            Assert.assertTrue("key must be found", cursor.moveToFirst());
+            Assert.assertEquals("found key must have correct master key id",
+                    pubkey.getMasterKeyId(), cursor.getLong(0));
+            Assert.assertEquals("encryption subkey must be found",
+                    0xB5E6C5493FA64139L, cursor.getLong(1));
+            Assert.assertTrue("there must be no signing key without secret", cursor.isNull(2));
+            Assert.assertEquals("key must not be expired", 0, cursor.getInt(3));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    @Test public void testKeyRingCache() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        CanonicalizedPublicKeyRing first = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        int hits = KeyRingCache.getHitCount();
+        CanonicalizedPublicKeyRing second = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("key ring must be taken from cache", first, second);
+        Assert.assertEquals("cache hit must be counted", hits + 1, KeyRingCache.getHitCount());
+
+        // any change to the database invalidates the cache
+        result = mProviderHelper.savePublicKeyRing(readRingFromResource(
+                "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc"));
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        CanonicalizedPublicKeyRing third = mProviderHelper.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertNotSame("key ring must be read again after change", first, third);
+        Assert.assertEquals("key ring must have correct master key id",
+                masterKeyId, third.getMasterKeyId());
+
+    }
+
+    @Test public void testCachedPublicKeyRingSnapshot() throws Exception {
+
+        UncachedKeyRing pubkey = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mProviderHelper.savePublicKeyRing(pubkey);
+        Assert.assertTrue("public keyring import should succeed", result.success());
+        long masterKeyId = pubkey.getMasterKeyId();
+
+        CachedPublicKeyRing cached = mProviderHelper.getCachedPublicKeyRing(masterKeyId);
+        CachedPublicKeyRing snapshot = mProviderHelper.getCachedPublicKeyRing(masterKeyId).snapshot();
+        assertSameCachedData(cached, snapshot);
+
+        LongSparseArray<CachedPublicKeyRing> snapshots =
+                mProviderHelper.getCachedPublicKeyRingSnapshots(masterKeyId, 0x1234567812345678L);
+        Assert.assertEquals("only existing key rings must be returned", 1, snapshots.size());
+        assertSameCachedData(cached, snapshots.get(masterKeyId));
+
+    }
+
+    private static void assertSameCachedData(CachedPublicKeyRing expected, CachedPublicKeyRing actual)
+            throws Exception {
+        Assert.assertEquals("master key id must be equal",
+                expected.getMasterKeyId(), actual.getMasterKeyId());
+        Assert.assertArrayEquals("fingerprint must be equal",
+                expected.getFingerprint(), actual.getFingerprint());
+        Assert.assertEquals("primary user id must be equal",
+                expected.getPrimaryUserId(), actual.getPrimaryUserId());
+        Assert.assertEquals("revocation status must be equal",
+                expected.isRevoked(), actual.isRevoked());
+        Assert.assertEquals("certify capability must be equal",
+                expected.canCertify(), actual.canCertify());
+        Assert.assertEquals("encrypt id must be equal",
+                expected.getEncryptId(), actual.getEncryptId());
+        Assert.assertEquals("verification status must be equal",
+                expected.getVerified(), actual.getVerified());
+        Assert.assertEquals("secret availability must be equal",
+                expected.hasAnySecret(), actual.hasAnySecret());
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(ProviderHelperSaveTest.class.getResourceAsStream(name)).next();
     }
@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.util;
 
 import android.os.Bundle;
+import android.os.Parcel;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -32,8 +33,14 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.KeyRingFileCache;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache.IteratorWithSize;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -79,4 +86,114 @@ public class ParcelableFileCacheTest {
 
     }
 
+    @Test
+    public void testKeyRingCache() throws Exception {
+
+        ParcelableFileCache<ParcelableKeyRing> cache =
+                new KeyRingFileCache(RuntimeEnvironment.application, "test_keys.pcl");
+
+        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            list.add(new ParcelableKeyRing(new byte[] { (byte) i, 1, 2, 3 }));
+        }
+        list.add(new ParcelableKeyRing("fingerprint", "0x1234", null));
+
+        cache.writeCache(list.size(), list.iterator());
+        Assert.assertTrue("complete cache file must verify", cache.verify());
+
+        IteratorWithSize<ParcelableKeyRing> it = cache.readCache(false);
+        Assert.assertEquals("number of entries must be correct", list.size(), it.getSize());
+        for (ParcelableKeyRing expected : list) {
+            Assert.assertTrue("all entries must be read back", it.hasNext());
+            ParcelableKeyRing ring = it.next();
+            Assert.assertArrayEquals("key ring data must be equal", expected.mBytes, ring.mBytes);
+            Assert.assertEquals("fingerprint must be equal",
+                    expected.mExpectedFingerprint, ring.mExpectedFingerprint);
+            Assert.assertEquals("key id must be equal", expected.mKeyIdHex, ring.mKeyIdHex);
+            Assert.assertNull("keybase name must be null", ring.mKeybaseName);
+        }
+        Assert.assertFalse("no more entries than written must be read", it.hasNext());
+
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test_keys.pcl");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // flip a byte of the first entry's data
+            raf.seek(18);
+            int b = raf.read();
+            raf.seek(18);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        Assert.assertFalse("corrupted cache file must not verify", cache.verify());
+
+        cache.writeCache(list.size(), list.iterator());
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            // cut off the commit marker
+            raf.setLength(raf.length() - 8);
+        } finally {
+            raf.close();
+        }
+        Assert.assertFalse("incomplete cache file must not verify", cache.verify());
+
+    }
+
+    @Test
+    public void testLegacyKeyRingCache() throws Exception {
+
+        ArrayList<ParcelableKeyRing> list = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            list.add(new ParcelableKeyRing(new byte[] { (byte) i, 1, 2, 3 }));
+        }
+
+        // write the file as it was before there were frames, just parcels
+        File file = new File(RuntimeEnvironment.application.getCacheDir(), "test_legacy.pcl");
+        DataOutputStream oos = new DataOutputStream(new FileOutputStream(file));
+        try {
+            oos.writeInt(list.size());
+            for (ParcelableKeyRing ring : list) {
+                Parcel p = Parcel.obtain();
+                p.writeParcelable(ring, 0);
+                byte[] buf = p.marshall();
+                oos.writeInt(buf.length);
+                oos.write(buf);
+                p.recycle();
+            }
+        } finally {
+            oos.close();
+        }
+
+        ParcelableFileCache<ParcelableKeyRing> cache =
+                new KeyRingFileCache(RuntimeEnvironment.application, "test_legacy.pcl");
+        Assert.assertTrue("old cache file must verify", cache.verify());
+
+        IteratorWithSize<ParcelableKeyRing> it = cache.readCache(false);
+        Assert.assertEquals("number of entries must be correct", list.size(), it.getSize());
+        for (ParcelableKeyRing expected : list) {
+            Assert.assertTrue("all entries must be read back", it.hasNext());
+            Assert.assertArrayEquals("key ring data must be equal",
+                    expected.mBytes, it.next().mBytes);
+        }
+        Assert.assertFalse("no more entries than written must be read", it.hasNext());
+
+        oos = new DataOutputStream(new FileOutputStream(file));
+        try {
+            // claim one more entry than is actually written
+            oos.writeInt(list.size() + 1);
+            for (ParcelableKeyRing ring : list) {
+                Parcel p = Parcel.obtain();
+                p.writeParcelable(ring, 0);
+                byte[] buf = p.marshall();
+                oos.writeInt(buf.length);
+                oos.write(buf);
+                p.recycle();
+            }
+        } finally {
+            oos.close();
+        }
+        Assert.assertFalse("incomplete old cache file must not verify", cache.verify());
+
+    }
+
 }